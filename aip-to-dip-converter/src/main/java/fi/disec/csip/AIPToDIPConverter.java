@@ -8,19 +8,28 @@ import org.roda_project.commons_ip2.model.*;
 import org.roda_project.commons_ip2.model.impl.BasicAIP;
 import org.roda_project.commons_ip2.model.impl.eark.EARKAIP;
 import org.roda_project.commons_ip2.model.impl.eark.EARKSIP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static fi.disec.csip.Utils.*;
 
 
 public class AIPToDIPConverter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AIPToDIPConverter.class);
+    private static final String CONVERTER = "aip-to-dip";
     private static final String DIP_PROFILE = "https://earkdip.dilcis.eu/profile/E-ARK-DIP.xml";
+    private static final String METS_FILENAME = "METS.xml";
+    private static final String CHECKSUM_ALGORITHM = "SHA-256";
 
     private static final String PREMIS_PACKAGE = "gov.loc.premis.v3";
     private static final String PREMIS_FILENAME = "premis.xml";
@@ -36,6 +45,40 @@ public class AIPToDIPConverter {
             IPAgentNoteTypeEnum.SOFTWARE_VERSION
     );
 
+    private final CompressionPolicy compressionPolicy;
+    private final ConversionListener listener;
+    private final ConverterConfig config;
+
+    public AIPToDIPConverter() {
+        this(CompressionPolicy.DEFAULT);
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the DIP zip are stored and which are deflated with which level
+     */
+    public AIPToDIPConverter(final CompressionPolicy compressionPolicy) {
+        this(compressionPolicy, ConversionListener.NONE);
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the DIP zip are stored and which are deflated with which level
+     * @param listener Receives the metrics of each stage and the progress of conversions from a path
+     */
+    public AIPToDIPConverter(final CompressionPolicy compressionPolicy, final ConversionListener listener) {
+        this(compressionPolicy, listener, ConverterConfig.DEFAULT);
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the DIP zip are stored and which are deflated with which level
+     * @param listener Receives the metrics of each stage and the progress of conversions from a path
+     * @param config Where the temp folders are created and how much space they may use
+     */
+    public AIPToDIPConverter(final CompressionPolicy compressionPolicy, final ConversionListener listener, final ConverterConfig config) {
+        this.compressionPolicy = compressionPolicy;
+        this.listener = listener;
+        this.config = config;
+    }
+
     /**
      * Convert a SIP into a zipped AIP and write it to disk
      *
@@ -44,13 +87,39 @@ public class AIPToDIPConverter {
      * @return The resulting AIP that has already been written to the given path
      */
     public AIP convert(final Path sip, final Path aip) {
+        return convert(sip, aip, DipSelection.ALL);
+    }
+
+    /**
+     * Convert the selected parts of an AIP into a zipped DIP and write it to disk
+     *
+     * @param sip Path to the zipped or extracted AIP
+     * @param aip Path to write the zip file to
+     * @param selection The parts of the AIP that are put into the DIP, the rest is not read
+     * @return The resulting DIP that has already been written to the given path
+     */
+    public AIP convert(final Path sip, final Path aip, final DipSelection selection) {
         try (final var out = Files.newOutputStream(aip)) {
-            return convert(sip, out);
+            return convert(sip, out, selection);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Convert the selected parts of an AIP into a zipped DIP and write it to a sink, e.g. to upload it while it is
+     * written. The DIP is named after the AIP without a .zip extension, and its output is aborted when the
+     * conversion fails.
+     *
+     * @param sip Path to the zipped or extracted AIP
+     * @param sink Where the zip file is written to
+     * @param selection The parts of the AIP that are put into the DIP, the rest is not read
+     * @return The resulting DIP that has already been written to the sink
+     */
+    public AIP convert(final Path sip, final OutputSink sink, final DipSelection selection) {
+        return sink.write(BatchConverter.name(sip), out -> convert(sip, out, selection));
+    }
+
     /**
      * Convert a SIP into a zipped AIP and write it into an outputStream
      *
@@ -59,35 +128,84 @@ public class AIPToDIPConverter {
      * @return The resulting AIP that has already been written to the outputStream
      */
     public AIP convert(final Path sip, final OutputStream out) {
-        Path tempFolder = null;
+        return convert(sip, out, DipSelection.ALL);
+    }
+
+    /**
+     * Convert the selected parts of an AIP into a zipped DIP and write it into an outputStream. Only the selected
+     * files are extracted from a zipped AIP and put into the submission of the DIP.
+     *
+     * @param sip Path to the zipped or extracted AIP
+     * @param out The stream to write the zip file to
+     * @param selection The parts of the AIP that are put into the DIP, the rest is not read
+     * @return The resulting DIP that has already been written to the outputStream
+     */
+    public AIP convert(final Path sip, final OutputStream out, final DipSelection selection) {
+        ScratchSpace.Lease scratch = null;
         try {
-            tempFolder = Files.createTempDirectory("sip-to-aip");
+            // The AIP is extracted and zipped again as the submission of the DIP
+            scratch = ScratchSpace.acquire(config, "aip-to-dip", selection.all() ? extractedSize(sip) + size(sip) : 2 * selection.size(sip));
+            // The zipped submission of an AIP whose content was converted before is taken from the content store
+            final var cacheKey = config.contentStore() == null ? null : ContentStore.key(CONVERTER, selection.contentKey(sip), selection);
+            final var tempFolder = scratch.folder();
+            final var recorder = new ConversionRecorder(CONVERTER, sip, tempFolder, listener);
             final var sipTemp = Files.createTempDirectory(tempFolder, "sip-extracted");
             final var aipTemp = Files.createTempDirectory(tempFolder, "aip-extracted");
-            final IPInterface earksip = EARKAIP.parse(sip, sipTemp);
-            final var aip = convert(earksip, tempFolder);
-            final Path built;
+            recorder.start();
+            // A selected AIP is parsed in place
+            final IPInterface earksip = EARKAIP.parse(selection.all() ? sip : selection.extract(sip, sipTemp), sipTemp);
+            recorder.end(Stage.PARSE, selection.all() ? recorder.usage(sip).bytes() : recorder.usage(sipTemp).bytes());
+            scratch.checkQuota();
+            final var submissionFixity = new FixityDigest(List.of(CHECKSUM_ALGORITHM));
+            final var submissionZip = zipSubmission(earksip, tempFolder, recorder, submissionFixity, cacheKey);
+            // The submission is only a placeholder while building and is staged afterwards, so that its bytes are
+            // linked into the built DIP instead of copied where the file system allows it
+            final var placeholder = Files.createFile(tempFolder.resolve("submission-placeholder"));
+            final var aip = convert(earksip, tempFolder, new IPFile(placeholder, earksip.getId() + ".zip"), recorder);
+            recorder.start();
             try {
-                built = aip.build(aipTemp);
+                aip.build(aipTemp);
             } catch (final IPException | InterruptedException e) {
                 throw new RuntimeException(e);
             }
-            // copyFolder(sipTemp.resolve(earksip.getId()).resolve(IPConstants.SUBMISSION), built.resolve(IPConstants.SUBMISSION), StandardCopyOption.REPLACE_EXISTING);
+            final var submission = IPConstants.SUBMISSION + "/" + earksip.getId() + ".zip";
+            final var stagedSubmission = aipTemp.resolve(aip.getId()).resolve(submission);
+            Files.delete(stagedSubmission);
+            final var method = Staging.stage(submissionZip, stagedSubmission);
+            LOGGER.debug("Staged submission of DIP {} by {}", aip.getId(), method);
+            final var dipSize = recorder.usage(aipTemp).bytes();
+            recorder.end(Stage.BUILD, dipSize);
+            scratch.checkQuota();
             aip.setType(IPEnums.IPType.DIP);
 
-            Files.writeString(
-                    aipTemp.resolve(aip.getId()).resolve("METS.xml"),
-                    Files.readString(aipTemp.resolve(aip.getId()).resolve("METS.xml")).replace("csip:OAISPACKAGETYPE=\"AIP\"", "csip:OAISPACKAGETYPE=\"DIP\"")
-            );
-
-            zip(aipTemp, out);
+            // The package type is changed while the METS is streamed into the zip, commons-ip only builds AIPs
+            final var mets = aipTemp.resolve(aip.getId()).resolve(METS_FILENAME);
+            final var validator = config.validate() ? new PackageValidator("DIP") : null;
+            recorder.start();
+            final var stats = zip(aipTemp, out, ParallelZipWriter.Options.DEFAULT.withPolicy(compressionPolicy)
+                    .withProgress(recorder.progress(Stage.ZIP, dipSize)).withContentStore(config.contentStore()).withValidator(validator), Map.of(aip.getId() + "/" + METS_FILENAME, metsOut -> {
+                try (final var in = Files.newInputStream(mets)) {
+                    new MetsPatcher()
+                            .packageType("DIP")
+                            .file(submission, submissionFixity.size(), submissionFixity.checksums().get(CHECKSUM_ALGORITHM), CHECKSUM_ALGORITHM)
+                            .patch(in, metsOut);
+                }
+            }));
+            recorder.end(Stage.ZIP, stats);
+            LOGGER.info("Zipped DIP {}: {}", aip.getId(), stats);
+            if (validator != null) {
+                recorder.validated(validator.report(null));
+            }
+            recorder.completed(aip.getId());
             return aip;
         } catch (final IOException ex) {
             throw new UncheckedIOException(ex);
         } catch (final ParseException ex) {
             throw new RuntimeException(ex);
         } finally {
-            deleteIfExists(tempFolder);
+            if (scratch != null) {
+                scratch.close();
+            }
         }
     }
 
@@ -102,6 +220,87 @@ public class AIPToDIPConverter {
      * @see #convert(Path, OutputStream)
      */
     public AIP convert(final IPInterface aip, final Path tempFolder) {
+        final var recorder = new ConversionRecorder(CONVERTER, aip.getBasePath(), tempFolder, ConversionListener.NONE);
+        return convert(aip, tempFolder, new IPFile(zipSubmission(aip, tempFolder, recorder, null, null)), recorder);
+    }
+
+    /**
+     * Zip an extracted AIP into the temp folder so that it can be added as the submission
+     *
+     * @param fixity Updated with the bytes of the zip as they are written, may be null
+     * @param cacheKey The key of the zip in the content store, null to always zip the AIP
+     * @return The zip file
+     */
+    private Path zipSubmission(final IPInterface aip, final Path tempFolder, final ConversionRecorder recorder, final FixityDigest fixity, final String cacheKey) {
+        recorder.start();
+        final Path sipZip = tempFolder.resolve(aip.getId() + ".zip");
+        final var contentStore = config.contentStore();
+        if (cacheKey != null && fixity != null && stageCached(contentStore, cacheKey, sipZip, fixity)) {
+            LOGGER.debug("Took zipped AIP {} from the content store", aip.getId());
+            recorder.end(Stage.ZIP_SUBMISSION, 0);
+            return sipZip;
+        }
+        final CompressionStats stats;
+        try (var stream = fixity == null ? Files.newOutputStream(sipZip) : fixity.wrap(Files.newOutputStream(sipZip))) {
+            stats = zip(aip.getBasePath(), stream, ParallelZipWriter.Options.DEFAULT.withPolicy(compressionPolicy).withContentStore(contentStore), Map.of());
+            LOGGER.debug("Zipped AIP {}: {}", aip.getId(), stats);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (cacheKey != null && fixity != null) {
+            contentStore.put(cacheKey, sipZip, Map.of(CHECKSUM_ALGORITHM, fixity.checksums().get(CHECKSUM_ALGORITHM)));
+        }
+        recorder.end(Stage.ZIP_SUBMISSION, stats);
+        return sipZip;
+    }
+
+    /**
+     * Stage a zipped submission from the content store
+     *
+     * @return Whether the store had the zip
+     */
+    private static boolean stageCached(final ContentStore contentStore, final String cacheKey, final Path sipZip, final FixityDigest fixity) {
+        final var cached = contentStore.get(cacheKey);
+        if (cached == null) {
+            return false;
+        }
+        try {
+            Staging.stage(cached.file(), sipZip);
+            fixity.restore(Files.size(sipZip), Map.of(CHECKSUM_ALGORITHM, cached.attributes().get(CHECKSUM_ALGORITHM)));
+            return true;
+        } catch (final IOException e) {
+            // Evicted in the meantime
+            LOGGER.debug("Could not stage {} from the content store", cacheKey, e);
+            deleteIfExists(sipZip);
+            return false;
+        }
+    }
+
+    private static AIP convert(final IPInterface aip, final Path tempFolder, final IPFile submission, final ConversionRecorder recorder) {
+        try {
+            recorder.start();
+            final var schemas = aip.getBasePath().resolve(IPConstants.SCHEMAS);
+            final List<IPFileInterface> schemaFiles = new ArrayList<>();
+            if (Files.exists(schemas)) {
+                try (final var stream = Files.list(schemas)) {
+                    stream.forEach(p -> schemaFiles.add(new IPFile(p)));
+                }
+            }
+            final var dip = dip(aip.getDescriptiveMetadata(), aip.getPreservationMetadata(), schemaFiles, submission);
+            recorder.end(Stage.METADATA, recorder.usage(aip.getBasePath().resolve(IPConstants.METADATA)).bytes() + recorder.usage(schemas).bytes());
+            return dip;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Create a DIP with the metadata and schemas of an AIP, which has not yet been built
+     *
+     * @param schemas The schemas of the AIP, the default schemas are added when there are none
+     * @param submission The zipped AIP
+     */
+    static AIP dip(final List<IPDescriptiveMetadata> descriptiveMetadata, final List<IPMetadata> preservationMetadata, final List<IPFileInterface> schemas, final IPFileInterface submission) {
         try {
             final AIP dip = new EARKAIP(new BasicAIP(UUID.randomUUID().toString(), IPContentType.getMIXED()));
             dip.setType(IPEnums.IPType.AIP);
@@ -112,38 +311,25 @@ public class AIPToDIPConverter {
 	            dip.addRepresentation(representation);
 	        } */
 
-            for (final var descriptiveMetadatum : aip.getDescriptiveMetadata()) {
+            for (final var descriptiveMetadatum : descriptiveMetadata) {
                 dip.addDescriptiveMetadata(descriptiveMetadatum);
             }
 
-            for (final var preservationMetadatum : aip.getPreservationMetadata()) {
+            for (final var preservationMetadatum : preservationMetadata) {
                 dip.addPreservationMetadata(preservationMetadatum);
             }
 
-            final var schemas = aip.getBasePath().resolve(IPConstants.SCHEMAS);
-            if (Files.exists(schemas)) {
-                try (final var stream = Files.list(schemas)) {
-                    stream.forEach(p -> dip.addSchema(new IPFile(p)));
-                }
-            }
+            schemas.forEach(dip::addSchema);
 
             if (dip.getSchemas().isEmpty()) {
-                addDefaultSchemas(dip.getSchemas(), tempFolder);
+                addDefaultSchemas(dip.getSchemas());
             }
 
             dip.addAgent(CREATOR_AGENT);
-
-            final Path sipZip = tempFolder.resolve(aip.getId() + ".zip");
-            try (var stream = Files.newOutputStream(sipZip)) {
-                zip(aip.getBasePath(), stream);
-            }
-            dip.addSubmission(new IPFile(sipZip));
-
+            dip.addSubmission(submission);
             return dip;
-        } catch (final IPException | InterruptedException e) {
+        } catch (final IPException e) {
             throw new RuntimeException(e);
-        } catch (final IOException e) {
-            throw new UncheckedIOException(e);
         }
     }
 
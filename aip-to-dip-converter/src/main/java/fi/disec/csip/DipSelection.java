@@ -0,0 +1,282 @@
+package fi.disec.csip;
+
+import org.roda_project.commons_ip2.model.IPConstants;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The parts of an AIP that are put into a DIP. The METS files, metadata and schemas of the package and of its
+ * representations are always selected, as they are needed to parse the AIP and to describe the DIP. Files that
+ * are not selected are neither extracted nor read.
+ */
+public final class DipSelection {
+    /**
+     * Selects the whole AIP
+     */
+    public static final DipSelection ALL = new DipSelection(true, Set.of(), List.of());
+    /**
+     * Selects only the METS files, metadata and schemas
+     */
+    public static final DipSelection METADATA_ONLY = new DipSelection(false, Set.of(), List.of());
+    private static final String METS_FILENAME = "METS.xml";
+    private static final Set<String> METADATA_FOLDERS = Set.of(METS_FILENAME, IPConstants.METADATA, IPConstants.SCHEMAS);
+
+    private final boolean all;
+    private final SortedSet<String> representations;
+    private final List<String> paths;
+    private final List<Pattern> matchers;
+
+    private DipSelection(final boolean all, final Set<String> representations, final List<String> paths) {
+        this.all = all;
+        this.representations = new TreeSet<>(representations);
+        this.paths = List.copyOf(paths);
+        this.matchers = this.paths.stream().map(DipSelection::glob).toList();
+    }
+
+    /**
+     * Select the metadata and the representations with the given ids
+     */
+    public static DipSelection representations(final String... ids) {
+        return METADATA_ONLY.withRepresentations(ids);
+    }
+
+    /**
+     * Select the metadata and the files whose package relative path matches one of the globs, e.g. {@code submission/*.zip}.
+     * The globs use / as the separator on every platform, {@code *} and {@code ?} match within a folder, {@code **}
+     * across folders, and {@code [...]} and {@code {a,b}} work as in {@link java.nio.file.FileSystem#getPathMatcher(String)}.
+     */
+    public static DipSelection paths(final String... globs) {
+        return METADATA_ONLY.withPaths(globs);
+    }
+
+    /**
+     * @return This selection with the representations with the given ids also selected
+     */
+    public DipSelection withRepresentations(final String... ids) {
+        final var selected = new TreeSet<>(representations);
+        selected.addAll(Arrays.asList(ids));
+        return new DipSelection(all, selected, paths);
+    }
+
+    /**
+     * @return This selection with the files matching the globs also selected
+     */
+    public DipSelection withPaths(final String... globs) {
+        final List<String> selected = new ArrayList<>(paths);
+        selected.addAll(Arrays.asList(globs));
+        return new DipSelection(all, representations, selected);
+    }
+
+    /**
+     * @return Whether the whole AIP is selected
+     */
+    public boolean all() {
+        return all;
+    }
+
+    /**
+     * @param path The package relative path of a file with / as the separator
+     */
+    public boolean includes(final String path) {
+        if (all || isMetadata(path)) {
+            return true;
+        }
+        final var segments = path.split("/");
+        if (segments.length > 2 && segments[0].equals(IPConstants.REPRESENTATIONS) && representations.contains(segments[1])) {
+            return true;
+        }
+        return matchers.stream().anyMatch(matcher -> matcher.matcher(path).matches());
+    }
+
+    /**
+     * @return The total size of the selected files of a zipped or extracted AIP
+     */
+    long size(final Path pkg) {
+        try {
+            if (Files.isDirectory(pkg)) {
+                return selectedFiles(pkg).stream().mapToLong(Utils::size).sum();
+            }
+            try (final var zipFile = new ZipFile(pkg.toFile())) {
+                return selectedEntries(zipFile, pkg).stream().mapToLong(entry -> entry.getSize() < 0 ? entry.getCompressedSize() : entry.getSize()).sum();
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return A key of the content of a zipped or extracted AIP, computed from the central directory of a zip or
+     * from the names, sizes and modification times of the selected files of a folder, so no file is read
+     * @see ContentStore#contentKey(Path, List)
+     */
+    String contentKey(final Path pkg) {
+        if (!Files.isDirectory(pkg)) {
+            return ContentStore.contentKey(pkg);
+        }
+        try {
+            return ContentStore.contentKey(pkg, selectedFiles(pkg));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Put the selected files of a zipped or extracted AIP into a new folder. The files of a zip are extracted, the
+     * files of a folder are {@link Staging#stageInput(Path, Path) staged} without copying them where possible.
+     *
+     * @param target The folder the selected AIP is put in
+     * @return The root folder of the selected AIP
+     */
+    Path extract(final Path pkg, final Path target) throws IOException {
+        final var root = Files.createDirectories(target.resolve("selected"));
+        if (Files.isDirectory(pkg)) {
+            for (final var file : selectedFiles(pkg)) {
+                final var staged = root.resolve(pkg.relativize(file).toString());
+                Files.createDirectories(staged.getParent());
+                Staging.stageInput(file, staged);
+            }
+            return root;
+        }
+        try (final var zipFile = new ZipFile(pkg.toFile())) {
+            final var prefix = prefix(zipFile, pkg);
+            for (final var entry : selectedEntries(zipFile, pkg)) {
+                final var extracted = root.resolve(entry.getName().substring(prefix.length())).normalize();
+                if (!extracted.startsWith(root)) {
+                    throw new IOException("Entry " + entry.getName() + " is outside of the package");
+                }
+                Files.createDirectories(extracted.getParent());
+                try (final var in = zipFile.getInputStream(entry)) {
+                    Files.copy(in, extracted);
+                }
+            }
+        }
+        return root;
+    }
+
+    private List<Path> selectedFiles(final Path folder) throws IOException {
+        try (final var stream = Files.walk(folder)) {
+            return stream.filter(Files::isRegularFile)
+                    .filter(file -> includes(folder.relativize(file).toString().replace(folder.getFileSystem().getSeparator(), "/")))
+                    .toList();
+        }
+    }
+
+    private List<? extends ZipEntry> selectedEntries(final ZipFile zipFile, final Path pkg) throws IOException {
+        final var prefix = prefix(zipFile, pkg);
+        return zipFile.stream()
+                .filter(entry -> !entry.isDirectory() && entry.getName().startsWith(prefix) && includes(entry.getName().substring(prefix.length())))
+                .toList();
+    }
+
+    /**
+     * @return The path of the package root in the zip, the folder of the topmost METS.xml
+     */
+    private static String prefix(final ZipFile zipFile, final Path pkg) throws IOException {
+        final var root = zipFile.stream()
+                .map(ZipEntry::getName)
+                .filter(name -> name.equals(METS_FILENAME) || name.endsWith("/" + METS_FILENAME))
+                .min(Comparator.comparingInt(String::length))
+                .orElseThrow(() -> new IOException("No " + METS_FILENAME + " found in " + pkg));
+        return root.substring(0, root.length() - METS_FILENAME.length());
+    }
+
+    /**
+     * @return The pattern of a glob that matches / separated paths whatever the separator of the file system is
+     */
+    static Pattern glob(final String glob) {
+        final var regex = new StringBuilder();
+        var group = false;
+        for (var i = 0; i < glob.length(); i++) {
+            final var c = glob.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '[' -> {
+                    final var end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Missing ] in the glob " + glob);
+                    }
+                    regex.append('[');
+                    var start = i + 1;
+                    if (glob.charAt(start) == '!') {
+                        regex.append('^');
+                        start++;
+                    }
+                    for (var j = start; j < end; j++) {
+                        final var member = glob.charAt(j);
+                        regex.append(member == '-' || Character.isLetterOrDigit(member) ? "" : "\\").append(member);
+                    }
+                    regex.append("&&[^/]]");
+                    i = end;
+                }
+                case '{' -> {
+                    if (group) {
+                        throw new IllegalArgumentException("Nested { in the glob " + glob);
+                    }
+                    regex.append("(?:");
+                    group = true;
+                }
+                case '}' -> {
+                    regex.append(group ? ")" : "\\}");
+                    group = false;
+                }
+                case ',' -> regex.append(group ? "|" : ",");
+                case '\\' -> {
+                    if (++i == glob.length()) {
+                        throw new IllegalArgumentException("Nothing to escape at the end of the glob " + glob);
+                    }
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                }
+                default -> regex.append(Character.isLetterOrDigit(c) ? String.valueOf(c) : Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (group) {
+            throw new IllegalArgumentException("Missing } in the glob " + glob);
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static boolean isMetadata(final String relativePath) {
+        final var segments = relativePath.split("/");
+        if (METADATA_FOLDERS.contains(segments[0])) {
+            return segments.length > 1 || segments[0].equals(METS_FILENAME);
+        }
+        return segments.length > 2 && segments[0].equals(IPConstants.REPRESENTATIONS) && METADATA_FOLDERS.contains(segments[2]) && (segments.length > 3 || segments[2].equals(METS_FILENAME));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof DipSelection other && all == other.all && representations.equals(other.representations) && paths.equals(other.paths);
+    }
+
+    @Override
+    public int hashCode() {
+        return Boolean.hashCode(all) * 31 * 31 + representations.hashCode() * 31 + paths.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return all ? "DipSelection[all]" : "DipSelection[representations=" + representations + ", paths=" + paths + "]";
+    }
+
+}
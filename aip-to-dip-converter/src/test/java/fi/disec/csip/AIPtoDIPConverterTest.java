@@ -1,12 +1,14 @@
 package fi.disec.csip;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.roda_project.commons_ip2.validator.EARKSIPValidator;
 import org.roda_project.commons_ip2.validator.reporter.ValidationReportOutputJson;
 import org.roda_project.commons_ip2.validator.state.MetsValidatorState;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
@@ -14,21 +16,45 @@ import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class AIPtoDIPConverterTest {
 
+    /**
+     * Deleted with everything in it after each test
+     */
+    @TempDir
+    Path temp;
+
+    private static Path sampleAip() {
+        try {
+            return Path.of(Objects.requireNonNull(AIPToDIPConverter.class.getClassLoader().getResource("aip.zip")).toURI());
+        } catch (final URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Test
     void testConvert() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, NoSuchFieldException, IllegalAccessException {
         final var aipToDIPConverter = new AIPToDIPConverter();
         final var tempFile = Files.createTempFile(UUID.randomUUID().toString(), "aip.zip");
         final var sampleSip = Path.of(Objects.requireNonNull(AIPToDIPConverter.class.getClassLoader().getResource("aip.zip")).toURI());
+        final String dipId;
         try (var outputStream = Files.newOutputStream(tempFile)) {
             final var dip = aipToDIPConverter.convert(sampleSip, outputStream);
+            dipId = dip.getId();
             assertEquals("DIP", dip.getType());
             assertEquals("https://earkdip.dilcis.eu/profile/E-ARK-DIP.xml", dip.getProfile());
             assertEquals(Set.of("metadata/descriptive/DC.xml",
@@ -43,6 +69,10 @@ class AIPtoDIPConverterTest {
             assertNotEquals(dip.getId(), "6b3bd4ac-7b83-4605-888a-a8a4989223d0");
         }
         assertTrue(Files.size(tempFile) > 0);
+        try (final var zipFile = new ZipFile(tempFile.toFile()); final var mets = zipFile.getInputStream(zipFile.getEntry(dipId + "/METS.xml"))) {
+            final var content = new String(mets.readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(content.contains("csip:OAISPACKAGETYPE=\"DIP\""), content);
+        }
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
         final ValidationReportOutputJson jsonReporter = new ValidationReportOutputJson(tempFile, baos);
         jsonReporter.setIpType("DIP");
@@ -54,4 +84,173 @@ class AIPtoDIPConverterTest {
         assertTrue(isValid, baos.toString(StandardCharsets.UTF_8));
     }
 
+    @Test
+    void testConvertWithContentStore() throws IOException {
+        final var storeRoot = Files.createDirectory(temp.resolve("content-store"));
+        final var first = temp.resolve("first-dip.zip");
+        final var second = temp.resolve("second-dip.zip");
+        final var sampleAip = sampleAip();
+        final var store = new ContentStore(storeRoot, 1L << 30);
+        final var bytesRead = new ArrayList<Long>();
+        final var listener = new ConversionListener() {
+            @Override
+            public void stageCompleted(final Path input, final StageMetrics metrics) {
+                if (metrics.stage() == Stage.ZIP_SUBMISSION) {
+                    bytesRead.add(metrics.bytesRead());
+                }
+            }
+        };
+        final var converter = new AIPToDIPConverter(CompressionPolicy.DEFAULT, listener, ConverterConfig.DEFAULT.withContentStore(store));
+        final var firstDip = converter.convert(sampleAip, first);
+        assertTrue(store.size() > 0);
+        final var secondDip = converter.convert(sampleAip, second);
+        // The second DIP takes the zipped AIP from the store instead of reading the AIP
+        assertEquals(2, bytesRead.size());
+        assertTrue(bytesRead.get(0) > 0);
+        assertEquals(0, bytesRead.get(1));
+        final var submission = "/submission/6b3bd4ac-7b83-4605-888a-a8a4989223d0.zip";
+        try (final var firstZip = new ZipFile(first.toFile()); final var secondZip = new ZipFile(second.toFile())) {
+            assertEquals(firstZip.getEntry(firstDip.getId() + submission).getCrc(), secondZip.getEntry(secondDip.getId() + submission).getCrc());
+        }
+    }
+
+    @Test
+    void testContentKeyOfExtractedAip() throws IOException {
+        final var aip = Files.createDirectory(temp.resolve("aip"));
+        Files.writeString(aip.resolve("METS.xml"), "<mets/>");
+        final var selected = Files.createDirectories(aip.resolve("representations/rep1/data")).resolve("a.txt");
+        final var other = Files.createDirectories(aip.resolve("representations/rep2/data")).resolve("b.txt");
+        Files.writeString(selected, "a");
+        Files.writeString(other, "b");
+        final var selection = DipSelection.representations("rep1");
+        final var key = selection.contentKey(aip);
+        // Files that are not selected do not change the key, a changed selected file does
+        Files.writeString(other, "changed");
+        assertEquals(key, selection.contentKey(aip));
+        assertNotEquals(key, DipSelection.ALL.contentKey(aip));
+        Files.writeString(selected, "changed");
+        assertNotEquals(key, selection.contentKey(aip));
+    }
+
+    @Test
+    void testConvertWithSelection() throws IOException {
+        final var tempFile = temp.resolve("dip.zip");
+        final var sampleAip = sampleAip();
+        final var dip = new AIPToDIPConverter().convert(sampleAip, tempFile, DipSelection.METADATA_ONLY);
+        final var names = new ArrayList<String>();
+        try (final var zipFile = new ZipFile(tempFile.toFile());
+             final var submission = new ZipInputStream(zipFile.getInputStream(zipFile.getEntry(dip.getId() + "/submission/6b3bd4ac-7b83-4605-888a-a8a4989223d0.zip")))) {
+            for (var entry = submission.getNextEntry(); entry != null; entry = submission.getNextEntry()) {
+                names.add(entry.getName());
+            }
+        }
+        assertTrue(names.contains("METS.xml"), names.toString());
+        assertTrue(names.stream().noneMatch(name -> name.startsWith("submission/")), names.toString());
+    }
+
+    @Test
+    void testConvertWithPathSelection() throws IOException {
+        final var tempFile = temp.resolve("dip.zip");
+        final var sampleAip = sampleAip();
+        final var dip = new AIPToDIPConverter().convert(sampleAip, tempFile, DipSelection.paths("submission/representations/*/data/*.txt"));
+        final var names = new ArrayList<String>();
+        try (final var zipFile = new ZipFile(tempFile.toFile());
+             final var submission = new ZipInputStream(zipFile.getInputStream(zipFile.getEntry(dip.getId() + "/submission/6b3bd4ac-7b83-4605-888a-a8a4989223d0.zip")))) {
+            for (var entry = submission.getNextEntry(); entry != null; entry = submission.getNextEntry()) {
+                names.add(entry.getName());
+            }
+        }
+        assertTrue(names.contains("METS.xml"), names.toString());
+        assertTrue(names.contains("submission/representations/rep1/data/example.txt"), names.toString());
+        assertFalse(names.contains("submission/METS.xml"), names.toString());
+        assertFalse(names.contains("submission/schemas/xlink.xsd"), names.toString());
+    }
+
+    @Test
+    void testSelectionOfZippedAip() throws IOException {
+        // The package root is the folder of the topmost METS.xml, entries outside of it are ignored
+        final var aip = zip(temp.resolve("aip.zip"), "readme.txt", "aip/METS.xml", "aip/metadata/descriptive/DC.xml", "aip/representations/rep1/METS.xml",
+                "aip/representations/rep1/data/a.txt", "aip/representations/rep2/METS.xml", "aip/representations/rep2/data/b.txt",
+                "aip/submission/sip.zip", "aip/submission/nested/sip.zip");
+        final var metadata = Set.of("METS.xml", "metadata/descriptive/DC.xml", "representations/rep1/METS.xml", "representations/rep2/METS.xml");
+        assertEquals(metadata, extracted(DipSelection.METADATA_ONLY.extract(aip, Files.createDirectory(temp.resolve("metadata")))));
+        final var representation = new HashSet<>(metadata);
+        representation.add("representations/rep1/data/a.txt");
+        assertEquals(representation, extracted(DipSelection.representations("rep1").extract(aip, Files.createDirectory(temp.resolve("representation")))));
+        // Globs use / on every platform, * stays within a folder
+        final var paths = new HashSet<>(metadata);
+        paths.add("submission/sip.zip");
+        assertEquals(paths, extracted(DipSelection.paths("submission/*.zip").extract(aip, Files.createDirectory(temp.resolve("paths")))));
+        paths.add("submission/nested/sip.zip");
+        paths.add("representations/rep2/data/b.txt");
+        assertEquals(paths, extracted(DipSelection.paths("submission/**.zip", "**/[b-c].{txt,xml}").extract(aip, Files.createDirectory(temp.resolve("globs")))));
+        // A selected entry must not be extracted outside of the package
+        final var escaping = zip(temp.resolve("escaping.zip"), "aip/METS.xml", "aip/metadata/../../escaped.txt");
+        final var target = Files.createDirectory(temp.resolve("escaping"));
+        final var e = assertThrows(IOException.class, () -> DipSelection.METADATA_ONLY.extract(escaping, target));
+        assertTrue(e.getMessage().contains("outside of the package"), e.getMessage());
+        assertFalse(Files.exists(target.resolve("escaped.txt")));
+    }
+
+    @Test
+    void testConvertWithValidation() throws IOException {
+        final var tempFile = temp.resolve("dip.zip");
+        final var sampleAip = sampleAip();
+        final var reports = new ArrayList<ValidationReport>();
+        final var listener = new ConversionListener() {
+            @Override
+            public void validated(final Path input, final ValidationReport report) {
+                reports.add(report);
+            }
+        };
+        new AIPToDIPConverter(CompressionPolicy.DEFAULT, listener, ConverterConfig.DEFAULT.withValidation(true)).convert(sampleAip, tempFile);
+        assertEquals(1, reports.size());
+        final var report = reports.get(0);
+        // The package type is checked against the patched METS
+        assertEquals(ValidationReport.Outcome.PASSED, report.requirement("CSIP9").outcome(), report::toJson);
+        assertEquals(ValidationReport.Outcome.PASSED, report.requirement("CSIP71").outcome(), report::toJson);
+        assertTrue(report.valid(), report::toJson);
+    }
+
+    @Test
+    void testConvertToSink() throws IOException {
+        final var sampleAip = sampleAip();
+        final var memory = OutputSink.memory();
+        final var dip = new AIPToDIPConverter().convert(sampleAip, memory, DipSelection.ALL);
+        assertEquals(Set.of("aip"), memory.names());
+        final var names = new ArrayList<String>();
+        try (final var in = new ZipInputStream(new ByteArrayInputStream(memory.get("aip")))) {
+            for (var entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                names.add(entry.getName());
+            }
+        }
+        assertTrue(names.contains(dip.getId() + "/METS.xml"), names.toString());
+        final var output = Files.createDirectory(temp.resolve("dips"));
+        new AIPToDIPConverter().convert(sampleAip, OutputSink.directory(output), DipSelection.ALL);
+        assertArrayEquals(new byte[]{'P', 'K'}, Arrays.copyOf(Files.readAllBytes(output.resolve("aip.zip")), 2));
+    }
+
+
+    /**
+     * @return A zip file with an entry for each name whose content is the name
+     */
+    private static Path zip(final Path file, final String... names) throws IOException {
+        try (final var out = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (final var name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return The / separated paths of the files below the folder
+     */
+    private static Set<String> extracted(final Path folder) throws IOException {
+        try (final var files = Files.walk(folder)) {
+            return files.filter(Files::isRegularFile).map(file -> folder.relativize(file).toString().replace(folder.getFileSystem().getSeparator(), "/")).collect(Collectors.toSet());
+        }
+    }
+
 }
\ No newline at end of file
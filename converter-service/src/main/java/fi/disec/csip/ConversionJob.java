@@ -0,0 +1,220 @@
+package fi.disec.csip;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * A conversion submitted to a {@link ConverterService}. Its state and progress are updated by the worker running
+ * it and can be read from any thread.
+ */
+public final class ConversionJob {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final String id;
+    private final String type;
+    private final Path input;
+    private final Path output;
+    private final int priority;
+    private final long sequence;
+    private final Instant submitted = Instant.now();
+    private volatile State state = State.QUEUED;
+    private volatile Instant started;
+    private volatile Instant finished;
+    private volatile Stage stage;
+    private volatile long bytesDone;
+    private volatile long bytesTotal;
+    private volatile String packageId;
+    private volatile String error;
+    private Thread worker;
+
+    ConversionJob(final String id, final String type, final Path input, final Path output, final int priority, final long sequence) {
+        this.id = id;
+        this.type = type;
+        this.input = input;
+        this.output = output;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public Path input() {
+        return input;
+    }
+
+    public Path output() {
+        return output;
+    }
+
+    /**
+     * @return The priority of the job, jobs with a higher priority are started first
+     */
+    public int priority() {
+        return priority;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * @return The id of the converted package, null until the job has succeeded
+     */
+    public String packageId() {
+        return packageId;
+    }
+
+    /**
+     * @return The message of the exception that failed the job, null if it has not failed
+     */
+    public String error() {
+        return error;
+    }
+
+    /**
+     * @return The order in which jobs with the same priority are started
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Receives the progress of the conversion
+     */
+    ConversionListener listener() {
+        return new ConversionListener() {
+            @Override
+            public void stageCompleted(final Path input, final StageMetrics metrics) {
+                stage = metrics.stage();
+            }
+
+            @Override
+            public void progress(final Path input, final Stage progressStage, final long done, final long total) {
+                stage = progressStage;
+                bytesDone = done;
+                bytesTotal = total;
+            }
+        };
+    }
+
+    /**
+     * Mark the job as running on the current thread
+     *
+     * @return false if the job was cancelled before it could be started
+     */
+    synchronized boolean start() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        state = State.RUNNING;
+        started = Instant.now();
+        worker = Thread.currentThread();
+        return true;
+    }
+
+    synchronized void succeeded(final String convertedId) {
+        if (finish(State.SUCCEEDED)) {
+            packageId = convertedId;
+        }
+    }
+
+    synchronized void failed(final Throwable e) {
+        if (finish(State.FAILED)) {
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+    }
+
+    /**
+     * Cancel the job, a running job is interrupted and its output is deleted by the worker once the conversion
+     * has stopped
+     *
+     * @return false if the job has already finished
+     */
+    synchronized boolean cancel() {
+        if (state.done()) {
+            return false;
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+        finish(State.CANCELLED);
+        return true;
+    }
+
+    private boolean finish(final State finalState) {
+        worker = null;
+        // A cancelled job stays cancelled even if its conversion completes afterwards
+        if (state == State.CANCELLED) {
+            return false;
+        }
+        state = finalState;
+        finished = Instant.now();
+        return true;
+    }
+
+    /**
+     * @return The job as a single line JSON object, fields without a value are left out
+     */
+    public String toJson() {
+        final var writer = new StringWriter();
+        try (final var json = JSON.createGenerator(writer)) {
+            json.writeStartObject();
+            json.writeStringField("id", id);
+            json.writeStringField("type", type);
+            json.writeStringField("input", input.toString());
+            json.writeStringField("output", output.toString());
+            json.writeNumberField("priority", priority);
+            json.writeStringField("state", state.name());
+            json.writeStringField("submitted", submitted.toString());
+            if (started != null) {
+                json.writeStringField("started", started.toString());
+            }
+            if (finished != null) {
+                json.writeStringField("finished", finished.toString());
+            }
+            if (stage != null) {
+                json.writeStringField("stage", stage.name());
+                json.writeNumberField("bytesDone", bytesDone);
+                json.writeNumberField("bytesTotal", bytesTotal);
+            }
+            if (packageId != null) {
+                json.writeStringField("packageId", packageId);
+            }
+            if (error != null) {
+                json.writeStringField("error", error);
+            }
+            json.writeEndObject();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        /**
+         * @return Whether the job has finished and its state does not change anymore
+         */
+        public boolean done() {
+            return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+}
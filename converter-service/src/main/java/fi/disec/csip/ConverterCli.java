@@ -0,0 +1,177 @@
+package fi.disec.csip;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * A command line client of a running {@link ConverterService}:
+ * <pre>
+ * ConverterCli [--url URL] [--token-file FILE] submit TYPE INPUT OUTPUT [--priority N] [--wait]
+ * ConverterCli [--url URL] [--token-file FILE] status ID
+ * ConverterCli [--url URL] [--token-file FILE] cancel ID
+ * ConverterCli [--url URL] [--token-file FILE] list
+ * </pre>
+ * The token is read from the token file of the service, by default the one of the user. The responses of the
+ * service are printed as they are. The exit status is 0 when the request succeeded and, with {@code --wait}, the
+ * job succeeded, and 1 otherwise.
+ */
+public final class ConverterCli {
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(200);
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final URI url;
+    private final String token;
+
+    ConverterCli(final URI url, final String token) {
+        this.url = url;
+        this.token = token;
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        var url = URI.create("http://127.0.0.1:" + ConverterService.DEFAULT_PORT);
+        var tokenFile = ServiceHttpApi.DEFAULT_TOKEN_FILE;
+        var i = 0;
+        while (i + 1 < args.length && args[i].startsWith("--")) {
+            switch (args[i]) {
+                case "--url" -> url = URI.create(args[i + 1]);
+                case "--token-file" -> tokenFile = Path.of(args[i + 1]);
+                default -> usage();
+            }
+            i += 2;
+        }
+        if (i >= args.length) {
+            usage();
+        }
+        final ConverterCli cli;
+        try {
+            cli = new ConverterCli(url, ServiceHttpApi.readToken(tokenFile));
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Could not read the token of the converter service from " + tokenFile, e);
+        }
+        final var command = args[i];
+        final HttpResponse<String> response = switch (command) {
+            case "submit" -> {
+                if (args.length < i + 4) {
+                    usage();
+                }
+                var priority = 0;
+                var wait = false;
+                for (var option = i + 4; option < args.length; option++) {
+                    switch (args[option]) {
+                        case "--priority" -> priority = Integer.parseInt(args[++option]);
+                        case "--wait" -> wait = true;
+                        default -> usage();
+                    }
+                }
+                final var submitted = cli.submit(args[i + 1], Path.of(args[i + 2]), Path.of(args[i + 3]), priority);
+                yield wait && submitted.statusCode() == 202 ? cli.await(field(submitted.body(), "id")) : submitted;
+            }
+            case "status" -> cli.send(HttpRequest.newBuilder(cli.job(argument(args, i + 1))).GET());
+            case "cancel" -> cli.send(HttpRequest.newBuilder(cli.job(argument(args, i + 1))).DELETE());
+            case "list" -> cli.send(HttpRequest.newBuilder(cli.url.resolve("/jobs")).GET());
+            default -> {
+                usage();
+                yield null;
+            }
+        };
+        System.out.println(response.body());
+        final var failed = response.statusCode() >= 300 || "FAILED".equals(field(response.body(), "state")) || "CANCELLED".equals(field(response.body(), "state"));
+        System.exit(failed ? 1 : 0);
+    }
+
+    HttpResponse<String> submit(final String type, final Path input, final Path output, final int priority) throws InterruptedException {
+        final var writer = new StringWriter();
+        try (final var json = JSON.createGenerator(writer)) {
+            json.writeStartObject();
+            json.writeStringField("type", type);
+            // The service resolves relative paths against its own working directory
+            json.writeStringField("input", input.toAbsolutePath().toString());
+            json.writeStringField("output", output.toAbsolutePath().toString());
+            json.writeNumberField("priority", priority);
+            json.writeEndObject();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return send(HttpRequest.newBuilder(url.resolve("/jobs")).header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(writer.toString())));
+    }
+
+    /**
+     * Poll the status of a job until it has finished
+     *
+     * @return The last status response
+     */
+    HttpResponse<String> await(final String id) throws InterruptedException {
+        while (true) {
+            final var response = send(HttpRequest.newBuilder(job(id)).GET());
+            final var state = field(response.body(), "state");
+            if (response.statusCode() != 200 || state == null || ConversionJob.State.valueOf(state).done()) {
+                return response;
+            }
+            Thread.sleep(POLL_INTERVAL.toMillis());
+        }
+    }
+
+    private URI job(final String id) {
+        return url.resolve("/jobs/" + id);
+    }
+
+    private HttpResponse<String> send(final HttpRequest.Builder request) throws InterruptedException {
+        try {
+            return client.send(request.header("Authorization", "Bearer " + token).build(), HttpResponse.BodyHandlers.ofString());
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Could not connect to the converter service at " + url, e);
+        }
+    }
+
+    /**
+     * @return The value of a top level field of a JSON object, null if the field is missing or the body is not an object
+     */
+    static String field(final String body, final String name) {
+        try (final var parser = JSON.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var fieldName = parser.getCurrentName();
+                final var value = parser.nextToken();
+                if (value.isStructStart()) {
+                    parser.skipChildren();
+                } else if (fieldName.equals(name)) {
+                    return parser.getText();
+                }
+            }
+            return null;
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private static String argument(final String[] args, final int index) {
+        if (index >= args.length) {
+            usage();
+        }
+        return args[index];
+    }
+
+    private static void usage() {
+        System.err.println("""
+                Usage: ConverterCli [--url URL] [--token-file FILE] COMMAND
+                  submit TYPE INPUT OUTPUT [--priority N] [--wait]   queue a conversion, TYPE is sip-to-aip or aip-to-dip
+                  status ID                                          print the status of a job
+                  cancel ID                                          cancel a queued or running job
+                  list                                               print the status of all known jobs""");
+        System.exit(2);
+    }
+
+}
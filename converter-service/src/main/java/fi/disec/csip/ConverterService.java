@@ -0,0 +1,333 @@
+package fi.disec.csip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs conversions in a long-running JVM, so that the classes of commons-ip2 and JAXB are loaded, the schema files
+ * are copied out of the classpath and the code is compiled by the JIT once instead of for every package. Jobs wait
+ * in a bounded queue and are started by priority and then in the order they were submitted by a fixed number of
+ * workers. Queued jobs can be cancelled and running jobs are interrupted. Finished jobs are kept for their status
+ * until {@link #RETAINED_JOBS} newer jobs have finished.
+ */
+public final class ConverterService implements Closeable {
+    /**
+     * Converts a SIP into an AIP with {@link SIPToAIPConverter}
+     */
+    public static final String SIP_TO_AIP = "sip-to-aip";
+    /**
+     * Converts an AIP into a DIP with {@link AIPToDIPConverter}
+     */
+    public static final String AIP_TO_DIP = "aip-to-dip";
+    static final int RETAINED_JOBS = 1000;
+    static final int DEFAULT_PORT = 8425;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConverterService.class);
+
+    private final Map<String, Conversion> conversions;
+    private final int capacity;
+    private final PriorityBlockingQueue<ConversionJob> queue = new PriorityBlockingQueue<>(16, Comparator.comparingInt(ConversionJob::priority).reversed().thenComparingLong(ConversionJob::sequence));
+    private final Map<String, ConversionJob> jobs = new ConcurrentHashMap<>();
+    private final Deque<String> finished = new ArrayDeque<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * A service converting SIPs to AIPs and AIPs to DIPs with the default settings of the converters
+     *
+     * @param workers The number of jobs run at the same time
+     * @param capacity The maximum number of queued jobs, further jobs are rejected until jobs have been started
+     */
+    public ConverterService(final int workers, final int capacity) {
+        this(workers, capacity, defaultConversions());
+    }
+
+    /**
+     * @param workers The number of jobs run at the same time
+     * @param capacity The maximum number of queued jobs, further jobs are rejected until jobs have been started
+     * @param conversions The conversions jobs can be submitted for by their type, in the order they are warmed up
+     */
+    public ConverterService(final int workers, final int capacity, final Map<String, Conversion> conversions) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1 but was " + workers);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1 but was " + capacity);
+        }
+        this.conversions = Collections.unmodifiableMap(new LinkedHashMap<>(conversions));
+        this.capacity = capacity;
+        for (var i = 1; i <= workers; i++) {
+            final var worker = new Thread(this::work, "converter-service-" + i);
+            worker.start();
+            this.workers.add(worker);
+        }
+    }
+
+    /**
+     * @return {@link #SIP_TO_AIP} and {@link #AIP_TO_DIP} with the default settings of the converters
+     */
+    public static Map<String, Conversion> defaultConversions() {
+        final Map<String, Conversion> conversions = new LinkedHashMap<>();
+        conversions.put(SIP_TO_AIP, (input, output, listener) -> new SIPToAIPConverter(CompressionPolicy.DEFAULT, listener).convert(input, output).getId());
+        conversions.put(AIP_TO_DIP, (input, output, listener) -> new AIPToDIPConverter(CompressionPolicy.DEFAULT, listener).convert(input, output).getId());
+        return conversions;
+    }
+
+    /**
+     * Queue a conversion
+     *
+     * @param type The type of the conversion, e.g. {@link #SIP_TO_AIP}
+     * @param input The package to convert
+     * @param output The path to write the converted package to, it must not exist
+     * @param priority Jobs with a higher priority are started before queued jobs with a lower one
+     * @return The queued job
+     * @throws IllegalArgumentException If the type is unknown, the input does not exist or the output exists
+     * @throws RejectedExecutionException If the queue is full or the service is closed
+     */
+    public ConversionJob submit(final String type, final Path input, final Path output, final int priority) {
+        if (!conversions.containsKey(type)) {
+            throw new IllegalArgumentException("Unknown conversion " + type + ", expected one of " + conversions.keySet());
+        }
+        if (!Files.exists(input)) {
+            throw new IllegalArgumentException("Input " + input + " does not exist");
+        }
+        if (Files.exists(output, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IllegalArgumentException("Output " + output + " already exists");
+        }
+        final var job = new ConversionJob(UUID.randomUUID().toString(), type, input.toAbsolutePath(), output.toAbsolutePath(), priority, sequence.incrementAndGet());
+        synchronized (queue) {
+            if (closed) {
+                throw new RejectedExecutionException("The service is closed");
+            }
+            if (queue.size() >= capacity) {
+                throw new RejectedExecutionException("The queue is full with " + capacity + " jobs");
+            }
+            jobs.put(job.id(), job);
+            queue.add(job);
+        }
+        LOGGER.info("Queued {} job {} of {}", type, job.id(), input);
+        return job;
+    }
+
+    /**
+     * @return The job with the given id, null if there is none or it has been forgotten
+     */
+    public ConversionJob job(final String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return The known jobs in the order they were submitted
+     */
+    public List<ConversionJob> jobs() {
+        return jobs.values().stream().sorted(Comparator.comparingLong(ConversionJob::sequence)).toList();
+    }
+
+    /**
+     * @return The number of jobs waiting to be started
+     */
+    public int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Cancel a job, a queued job is removed from the queue and a running job is interrupted and its output deleted
+     *
+     * @return false if there is no such job or it has already finished
+     */
+    public boolean cancel(final String id) {
+        final var job = jobs.get(id);
+        if (job == null || !job.cancel()) {
+            return false;
+        }
+        if (queue.remove(job)) {
+            retire(job);
+        }
+        LOGGER.info("Cancelled job {}", id);
+        return true;
+    }
+
+    /**
+     * Convert a sample package with each conversion in turn, the output of one being the input of the next, so
+     * that classes are loaded and compiled before the first job arrives
+     *
+     * @param sample A SIP, e.g. a small package typical for the service
+     * @param rounds How many times the conversions are repeated
+     */
+    public void warmUp(final Path sample, final int rounds) {
+        final var start = System.nanoTime();
+        try {
+            final var folder = Files.createTempDirectory("converter-service-warmup");
+            try {
+                for (var round = 0; round < rounds; round++) {
+                    var input = sample;
+                    for (final var conversion : conversions.entrySet()) {
+                        final var output = folder.resolve(conversion.getKey() + "-" + round + ".zip");
+                        conversion.getValue().convert(input, output, ConversionListener.NONE);
+                        input = output;
+                    }
+                }
+            } finally {
+                Utils.deleteIfExists(folder);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOGGER.info("Warmed up with {} rounds in {} ms", rounds, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Stop accepting jobs, cancel the queued ones, interrupt the running ones and wait for the workers to stop
+     */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            closed = true;
+        }
+        jobs.values().forEach(job -> cancel(job.id()));
+        workers.forEach(Thread::interrupt);
+        for (final var worker : workers) {
+            try {
+                worker.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void work() {
+        while (!closed) {
+            final ConversionJob job;
+            try {
+                job = queue.take();
+            } catch (final InterruptedException e) {
+                continue;
+            }
+            if (job.start()) {
+                run(job);
+            }
+            // A cancellation that came after the conversion completed must not interrupt the next one
+            Thread.interrupted();
+            retire(job);
+        }
+    }
+
+    private void run(final ConversionJob job) {
+        final var start = System.nanoTime();
+        // The output is created before converting, so that only a file this job created is ever deleted
+        try {
+            Files.createFile(job.output());
+        } catch (final IOException e) {
+            job.failed(e instanceof FileAlreadyExistsException ? new IllegalStateException("Output " + job.output() + " already exists", e) : e);
+            LOGGER.warn("Job {} of {} failed", job.id(), job.input(), e);
+            return;
+        }
+        try {
+            final var packageId = conversions.get(job.type()).convert(job.input(), job.output(), job.listener());
+            job.succeeded(packageId);
+        } catch (final RuntimeException e) {
+            job.failed(e);
+            if (job.state() == ConversionJob.State.FAILED) {
+                LOGGER.warn("Job {} of {} failed", job.id(), job.input(), e);
+            }
+        }
+        if (job.state() == ConversionJob.State.CANCELLED) {
+            try {
+                Files.deleteIfExists(job.output());
+            } catch (final IOException e) {
+                LOGGER.warn("Could not delete the output of cancelled job {}", job.id(), e);
+            }
+        }
+        LOGGER.info("Job {} of {} {} in {} ms", job.id(), job.input(), job.state(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Forget the oldest finished jobs once more than {@link #RETAINED_JOBS} have finished
+     */
+    private void retire(final ConversionJob job) {
+        synchronized (finished) {
+            finished.addLast(job.id());
+            while (finished.size() > RETAINED_JOBS) {
+                jobs.remove(finished.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Run the service with an HTTP API on the loopback interface until the process is stopped. The options are
+     * {@code --port}, {@code --workers}, {@code --queue-capacity}, {@code --token-file}, {@code --warmup <SIP>},
+     * {@code --warmup-rounds} and {@code --exit-after-warmup}, which only warms up, e.g. to record a class data
+     * sharing archive.
+     */
+    public static void main(final String[] args) throws IOException {
+        var port = DEFAULT_PORT;
+        var tokenFile = ServiceHttpApi.DEFAULT_TOKEN_FILE;
+        var workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        var capacity = 100;
+        Path warmup = null;
+        var warmupRounds = 3;
+        var exitAfterWarmup = false;
+        for (var i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--queue-capacity" -> capacity = Integer.parseInt(args[++i]);
+                case "--token-file" -> tokenFile = Path.of(args[++i]);
+                case "--warmup" -> warmup = Path.of(args[++i]);
+                case "--warmup-rounds" -> warmupRounds = Integer.parseInt(args[++i]);
+                case "--exit-after-warmup" -> exitAfterWarmup = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        final var service = new ConverterService(workers, capacity);
+        if (warmup != null) {
+            service.warmUp(warmup, warmupRounds);
+        }
+        if (exitAfterWarmup) {
+            service.close();
+            return;
+        }
+        final var api = new ServiceHttpApi(service, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), ServiceHttpApi.token(tokenFile));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            api.close();
+            service.close();
+        }));
+        LOGGER.info("Converter service listening on {} with {} workers, the token is in {}", api.address(), workers, tokenFile);
+    }
+
+    /**
+     * Converts a package and writes the converted package to a file
+     */
+    @FunctionalInterface
+    public interface Conversion {
+        /**
+         * @return The id of the converted package
+         */
+        String convert(Path input, Path output, ConversionListener listener);
+    }
+
+}
@@ -0,0 +1,189 @@
+package fi.disec.csip;
+
+import org.roda_project.commons_ip.model.ParseException;
+import org.roda_project.commons_ip.utils.IPException;
+import org.roda_project.commons_ip2.model.AIP;
+import org.roda_project.commons_ip2.model.IPConstants;
+import org.roda_project.commons_ip2.model.IPFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static fi.disec.csip.Utils.extractedSize;
+import static fi.disec.csip.Utils.tee;
+
+/**
+ * Converts a SIP into an AIP and a DIP of that AIP at once, for packages that are disseminated right after they
+ * have been ingested. The SIP is read once: the zip of the AIP is written to the AIP output and, as it is written,
+ * into the submission of the DIP, so the AIP is neither extracted nor zipped again. The DIP shares the descriptive
+ * metadata and schemas built for the AIP, and its PREMIS file is the one generated into the AIP.
+ * <p>
+ * The submission of the DIP is the AIP zip with its root folder, where {@link AIPToDIPConverter} zips the extracted
+ * AIP without it.
+ */
+public class SIPToDIPConverter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SIPToDIPConverter.class);
+    private static final String CONVERTER = "sip-to-dip";
+    private static final String METS_FILENAME = "METS.xml";
+    private static final String CHECKSUM_ALGORITHM = "SHA-256";
+    private static final String PREMIS_PATH = IPConstants.METADATA + "/preservation/premis.xml";
+
+    private final SIPToAIPConverter sipToAip;
+    private final CompressionPolicy compressionPolicy;
+    private final ConversionListener listener;
+    private final ConverterConfig config;
+
+    public SIPToDIPConverter() {
+        this(CompressionPolicy.DEFAULT, ConversionListener.NONE, ConverterConfig.DEFAULT);
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the AIP and DIP zips are stored and which are deflated with which level
+     * @param listener Receives the metrics of each stage and the progress of conversions, the ZIP stage is reported
+     * with the statistics of the AIP zip. With validation enabled it receives the report of the AIP and then the
+     * one of the DIP.
+     * @param config Where the temp folders are created and how much space they may use
+     */
+    public SIPToDIPConverter(final CompressionPolicy compressionPolicy, final ConversionListener listener, final ConverterConfig config) {
+        this.sipToAip = new SIPToAIPConverter(compressionPolicy, listener, List.of(CHECKSUM_ALGORITHM), config);
+        this.compressionPolicy = compressionPolicy;
+        this.listener = listener;
+        this.config = config;
+    }
+
+    /**
+     * Convert a SIP into a zipped AIP and a zipped DIP and write them to disk
+     *
+     * @param sip Path to the zipped or extracted SIP
+     * @param aip Path to write the AIP zip file to
+     * @param dip Path to write the DIP zip file to
+     * @return The resulting AIP and DIP that have already been written to the given paths
+     */
+    public Result convert(final Path sip, final Path aip, final Path dip) {
+        try (final var aipOut = Files.newOutputStream(aip); final var dipOut = Files.newOutputStream(dip)) {
+            return convert(sip, aipOut, dipOut);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Convert a SIP into a zipped AIP and a zipped DIP and write them into two outputStreams
+     *
+     * @param sip Path to the zipped or extracted SIP
+     * @param aipOut The stream to write the AIP zip file to
+     * @param dipOut The stream to write the DIP zip file to
+     * @return The resulting AIP and DIP that have already been written to the outputStreams
+     */
+    public Result convert(final Path sip, final OutputStream aipOut, final OutputStream dipOut) {
+        ScratchSpace.Lease scratch = null;
+        try {
+            // The DIP only adds its metadata to the scratch space of the AIP
+            scratch = ScratchSpace.acquire(config, CONVERTER, extractedSize(sip));
+            final var tempFolder = scratch.folder();
+            final var recorder = new ConversionRecorder(CONVERTER, sip, tempFolder, listener);
+            final var built = sipToAip.build(sip, scratch, recorder);
+            final var aip = built.aip();
+            // The submission and the PREMIS file are placeholders while building, their content is written when zipping
+            final var dipTemp = Files.createTempDirectory(tempFolder, "dip-extracted");
+            final var placeholder = Files.createFile(tempFolder.resolve("dip-submission-placeholder"));
+            final var dip = AIPToDIPConverter.dip(aip.getDescriptiveMetadata(), aip.getPreservationMetadata(), aip.getSchemas(), new IPFile(placeholder, aip.getId() + ".zip"));
+            try {
+                dip.build(dipTemp);
+            } catch (final IPException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            scratch.checkQuota();
+            recorder.start();
+            final var aipValidator = config.validate() ? new PackageValidator("AIP") : null;
+            final var dipValidator = config.validate() ? new PackageValidator("DIP") : null;
+            final var aipStats = new AtomicReference<CompressionStats>();
+            final var dipStats = zipDip(dipTemp.resolve(dip.getId()), IPConstants.SUBMISSION + "/" + aip.getId() + ".zip", dipOut, dipValidator, (submissionOut, premisCopy) ->
+                    aipStats.set(sipToAip.write(built, tee(aipOut, submissionOut), aipValidator, premisCopy, recorder.progress(Stage.ZIP, built.size()))));
+            recorder.end(Stage.ZIP, aipStats.get());
+            LOGGER.info("Zipped AIP {}: {}", aip.getId(), aipStats.get());
+            LOGGER.info("Zipped DIP {}: {}", dip.getId(), dipStats);
+            if (aipValidator != null) {
+                recorder.validated(aipValidator.report(null));
+                recorder.validated(dipValidator.report(null));
+            }
+            recorder.completed(aip.getId());
+            return new Result(aip, dip);
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (final ParseException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (scratch != null) {
+                scratch.close();
+            }
+        }
+    }
+
+    /**
+     * Zip the built DIP. The AIP is written into the submission first, then the other files, then the PREMIS file
+     * of the AIP and last METS.xml with the package type DIP and the sizes and checksums of both.
+     *
+     * @param submission The package relative path of the submission
+     */
+    private CompressionStats zipDip(final Path dipRoot, final String submission, final OutputStream out, final PackageValidator validator, final AipWriter aipWriter) throws IOException {
+        final var prefix = dipRoot.getFileName() + "/";
+        final var submissionFixity = new FixityDigest(List.of(CHECKSUM_ALGORITHM));
+        final var premisFixity = new FixityDigest(List.of(CHECKSUM_ALGORITHM));
+        final var premis = new ByteArrayOutputStream();
+        final List<Path> files;
+        try (final var stream = Files.walk(dipRoot)) {
+            files = stream.filter(p -> !Files.isDirectory(p)).sorted().filter(p -> {
+                final var name = dipRoot.relativize(p).toString();
+                return !name.equals(submission) && !name.equals(METS_FILENAME) && !name.equals(PREMIS_PATH);
+            }).toList();
+        }
+        final var zs = new ParallelZipWriter(out, ParallelZipWriter.Options.DEFAULT.withPolicy(compressionPolicy).withContentStore(config.contentStore()).withValidator(validator));
+        try (zs) {
+            // The AIP zip is already compressed
+            zs.add(prefix + submission, CompressionPolicy.STORED, submissionOut -> aipWriter.write(submissionFixity.wrap(submissionOut), premis));
+            for (final var file : files) {
+                zs.add(prefix + dipRoot.relativize(file), file);
+            }
+            zs.add(prefix + PREMIS_PATH, premisOut -> premis.writeTo(premisFixity.wrap(premisOut)));
+            zs.add(prefix + METS_FILENAME, mets -> {
+                final var patcher = new MetsPatcher()
+                        .packageType("DIP")
+                        .file(submission, submissionFixity.size(), submissionFixity.checksums().get(CHECKSUM_ALGORITHM), CHECKSUM_ALGORITHM)
+                        .file(PREMIS_PATH, premisFixity.size(), premisFixity.checksums().get(CHECKSUM_ALGORITHM), CHECKSUM_ALGORITHM);
+                try (final var in = Files.newInputStream(dipRoot.resolve(METS_FILENAME))) {
+                    patcher.patch(in, mets);
+                }
+            });
+        }
+        return zs.stats();
+    }
+
+    /**
+     * Writes the AIP zip into the submission of the DIP
+     */
+    @FunctionalInterface
+    private interface AipWriter {
+        /**
+         * @param submissionOut The submission entry of the DIP, it must not be closed
+         * @param premisCopy Receives the PREMIS file generated into the AIP
+         */
+        void write(OutputStream submissionOut, OutputStream premisCopy) throws IOException;
+    }
+
+    /**
+     * @param aip The AIP that has been written to the AIP output
+     * @param dip The DIP that has been written to the DIP output
+     */
+    public record Result(AIP aip, AIP dip) {
+    }
+
+}
@@ -0,0 +1,280 @@
+package fi.disec.csip;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The HTTP API of a {@link ConverterService}. Requests and responses are JSON objects:
+ * <ul>
+ *     <li>{@code POST /jobs} with the type, input, output and optionally the priority of a job queues it,
+ *     429 if the queue is full</li>
+ *     <li>{@code GET /jobs} lists the known jobs</li>
+ *     <li>{@code GET /jobs/<id>} returns the status of a job</li>
+ *     <li>{@code DELETE /jobs/<id>} cancels a job, 409 if it has already finished</li>
+ *     <li>{@code GET /health} returns the number of queued and running jobs</li>
+ * </ul>
+ * The paths are those of the service's file system, so the API should only be reachable locally. Every request
+ * must carry the token of the installation as {@code Authorization: Bearer <token>}, which only the owner of the
+ * service can read from its token file, request bodies must be {@code application/json} and requests with an
+ * {@code Origin} header are rejected, so that a web page opened on the same machine can not submit or cancel jobs.
+ */
+final class ServiceHttpApi implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceHttpApi.class);
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String JOBS = "/jobs";
+    private static final String JSON_TYPE = "application/json";
+    private static final int TOKEN_BYTES = 32;
+    /**
+     * The token file of the user running the service
+     */
+    static final Path DEFAULT_TOKEN_FILE = Path.of(System.getProperty("user.home"), ".converter-service", "token");
+
+    private final ConverterService service;
+    private final HttpServer server;
+    private final byte[] authorization;
+
+    /**
+     * @param token The token requests are authorized with, see {@link #token(Path)}
+     */
+    ServiceHttpApi(final ConverterService service, final InetSocketAddress address, final String token) throws IOException {
+        this.service = service;
+        this.authorization = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        this.server = HttpServer.create(address, 0);
+        server.createContext(JOBS, exchange -> handle(exchange, this::handleJobs));
+        server.createContext("/health", exchange -> handle(exchange, this::handleHealth));
+        // Requests only touch the queue and the job status, the conversions run on the workers of the service
+        server.setExecutor(Executors.newFixedThreadPool(2, runnable -> {
+            final var thread = new Thread(runnable, "converter-service-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * @return The address the API listens on, with the actual port if port 0 was requested
+     */
+    InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    /**
+     * Read the token of the installation from a file only its owner can read, or create the file with a new random
+     * token if it does not exist. A new token is written to a temporary file that is then linked to the token file,
+     * so another process never sees the token file without its token and no token file is replaced.
+     *
+     * @throws IllegalStateException If others than the owner of the file can read or write it
+     */
+    static String token(final Path file) throws IOException {
+        if (Files.notExists(file)) {
+            final var bytes = new byte[TOKEN_BYTES];
+            new SecureRandom().nextBytes(bytes);
+            final var token = HexFormat.of().formatHex(bytes);
+            final var directory = Files.createDirectories(file.toAbsolutePath().getParent());
+            final var temp = file.getFileSystem().supportedFileAttributeViews().contains("posix")
+                    ? Files.createTempFile(directory, "token", ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                    : Files.createTempFile(directory, "token", ".tmp");
+            try {
+                Files.writeString(temp, token);
+                try {
+                    // Unlike an atomic move, which may replace the file, a link fails when another process was faster
+                    Files.createLink(file, temp);
+                } catch (final UnsupportedOperationException e) {
+                    Files.move(temp, file);
+                }
+                return token;
+            } catch (final FileAlreadyExistsException e) {
+                // Created by another process in the meantime
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return readToken(file);
+    }
+
+    /**
+     * Read the token of an installation, e.g. for a client of the API
+     *
+     * @throws IllegalStateException If others than the owner of the file can read or write it
+     */
+    static String readToken(final Path file) throws IOException {
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            final var permissions = Files.getPosixFilePermissions(file);
+            if (!Set.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE).containsAll(permissions)) {
+                throw new IllegalStateException("The token file " + file + " must only be readable by its owner but is " + PosixFilePermissions.toString(permissions));
+            }
+        }
+        final var token = Files.readString(file).strip();
+        if (token.isEmpty()) {
+            throw new IllegalStateException("The token file " + file + " is empty");
+        }
+        return token;
+    }
+
+    /**
+     * Reject requests from browsers, without the token and with a body of another type before handling them
+     */
+    private void handle(final HttpExchange exchange, final HttpHandler handler) throws IOException {
+        try (exchange) {
+            try {
+                final var headers = exchange.getRequestHeaders();
+                if (headers.containsKey("Origin")) {
+                    error(exchange, 403, "Requests from web pages are not accepted");
+                    return;
+                }
+                final var given = headers.getFirst("Authorization");
+                if (given == null || !MessageDigest.isEqual(authorization, given.getBytes(StandardCharsets.UTF_8))) {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                    error(exchange, 401, "A valid token is required");
+                    return;
+                }
+                final var contentType = headers.getFirst("Content-Type");
+                if (exchange.getRequestMethod().equals("POST") && (contentType == null || !contentType.split(";", 2)[0].strip().equalsIgnoreCase(JSON_TYPE))) {
+                    error(exchange, 415, "The request body must be " + JSON_TYPE);
+                    return;
+                }
+                handler.handle(exchange);
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Could not handle {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+                // The client gets an error instead of a dropped connection, unless the response has already started
+                if (exchange.getResponseCode() == -1) {
+                    error(exchange, 500, "The request could not be handled");
+                }
+            }
+        }
+    }
+
+    private void handleJobs(final HttpExchange exchange) throws IOException {
+        final var path = exchange.getRequestURI().getPath();
+        final var method = exchange.getRequestMethod();
+        if (path.equals(JOBS) || path.equals(JOBS + "/")) {
+            switch (method) {
+                case "POST" -> submit(exchange);
+                case "GET" -> respond(exchange, 200, "[" + String.join(",", service.jobs().stream().map(ConversionJob::toJson).toList()) + "]");
+                default -> error(exchange, 405, "Method " + method + " is not allowed");
+            }
+            return;
+        }
+        final var job = service.job(path.substring(JOBS.length() + 1));
+        if (job == null) {
+            error(exchange, 404, "No job " + path.substring(JOBS.length() + 1));
+            return;
+        }
+        switch (method) {
+            case "GET" -> respond(exchange, 200, job.toJson());
+            case "DELETE" -> {
+                if (service.cancel(job.id())) {
+                    respond(exchange, 200, job.toJson());
+                } else {
+                    error(exchange, 409, "Job " + job.id() + " has already finished");
+                }
+            }
+            default -> error(exchange, 405, "Method " + method + " is not allowed");
+        }
+    }
+
+    private void submit(final HttpExchange exchange) throws IOException {
+        final Map<String, String> fields;
+        try {
+            fields = readObject(exchange);
+        } catch (final JsonParseException e) {
+            error(exchange, 400, "Invalid JSON: " + e.getOriginalMessage());
+            return;
+        }
+        final var type = fields.get("type");
+        final var input = fields.get("input");
+        final var output = fields.get("output");
+        if (type == null || input == null || output == null) {
+            error(exchange, 400, "type, input and output are required");
+            return;
+        }
+        try {
+            final var priority = fields.containsKey("priority") ? Integer.parseInt(fields.get("priority")) : 0;
+            final var job = service.submit(type, Path.of(input), Path.of(output), priority);
+            exchange.getResponseHeaders().set("Location", JOBS + "/" + job.id());
+            respond(exchange, 202, job.toJson());
+        } catch (final RejectedExecutionException e) {
+            error(exchange, 429, e.getMessage());
+        } catch (final IllegalArgumentException e) {
+            error(exchange, 400, e.getMessage());
+        }
+    }
+
+    private void handleHealth(final HttpExchange exchange) throws IOException {
+        final var running = service.jobs().stream().filter(job -> job.state() == ConversionJob.State.RUNNING).count();
+        respond(exchange, 200, "{\"status\":\"UP\",\"queued\":" + service.queued() + ",\"running\":" + running + "}");
+    }
+
+    /**
+     * @return The scalar fields of the JSON object in the request body as strings
+     */
+    private static Map<String, String> readObject(final HttpExchange exchange) throws IOException {
+        final Map<String, String> fields = new HashMap<>();
+        try (final var parser = JSON.createParser(exchange.getRequestBody())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var name = parser.getCurrentName();
+                final var value = parser.nextToken();
+                if (value.isStructStart()) {
+                    parser.skipChildren();
+                } else if (value != JsonToken.VALUE_NULL) {
+                    fields.put(name, parser.getText());
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static void error(final HttpExchange exchange, final int status, final String message) throws IOException {
+        final var writer = new StringWriter();
+        try (final var json = JSON.createGenerator(writer)) {
+            json.writeStartObject();
+            json.writeStringField("error", message);
+            json.writeEndObject();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        respond(exchange, status, writer.toString());
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+}
@@ -0,0 +1,281 @@
+package fi.disec.csip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConverterServiceTest {
+
+    @Test
+    void testPriorityOrder() throws IOException, InterruptedException {
+        final var input = Files.createTempFile("input", ".zip");
+        final var outputs = Files.createTempDirectory("outputs");
+        final var started = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final List<String> converted = new CopyOnWriteArrayList<>();
+        final ConverterService.Conversion conversion = (in, out, listener) -> {
+            started.countDown();
+            await(release);
+            converted.add(out.getFileName().toString());
+            return out.getFileName().toString();
+        };
+        try (final var service = new ConverterService(1, 10, Map.of("copy", conversion))) {
+            final var first = service.submit("copy", input, outputs.resolve("first"), 0);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            service.submit("copy", input, outputs.resolve("low"), -1);
+            service.submit("copy", input, outputs.resolve("normal"), 0);
+            final var high = service.submit("copy", input, outputs.resolve("high"), 5);
+            assertEquals(3, service.queued());
+            release.countDown();
+            awaitDone(high);
+            awaitDone(service.jobs().get(service.jobs().size() - 1));
+            assertEquals(List.of("first", "high", "normal", "low"), converted);
+            assertEquals(ConversionJob.State.SUCCEEDED, first.state());
+            assertEquals("first", first.packageId());
+        } finally {
+            Files.delete(input);
+            Utils.deleteIfExists(outputs);
+        }
+    }
+
+    @Test
+    void testCancel() throws IOException, InterruptedException {
+        final var input = Files.createTempFile("input", ".zip");
+        final var output = input.resolveSibling(input.getFileName() + ".out");
+        final var started = new CountDownLatch(1);
+        final ConverterService.Conversion conversion = (in, out, listener) -> {
+            started.countDown();
+            listener.progress(in, Stage.ZIP, 1, 2);
+            // Blocks until the job is cancelled
+            await(new CountDownLatch(1));
+            return "never";
+        };
+        try (final var service = new ConverterService(1, 10, Map.of("block", conversion))) {
+            final var running = service.submit("block", input, output, 0);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            final var queued = service.submit("block", input, input.resolveSibling(input.getFileName() + ".queued"), 0);
+            assertTrue(service.cancel(queued.id()));
+            assertEquals(ConversionJob.State.CANCELLED, queued.state());
+            assertEquals(0, service.queued());
+            assertTrue(running.toJson().contains("\"stage\":\"ZIP\""));
+            assertTrue(service.cancel(running.id()));
+            assertEquals(ConversionJob.State.CANCELLED, running.state());
+            assertFalse(service.cancel(running.id()));
+            assertFalse(service.cancel("unknown"));
+            // The worker deletes the output once the interrupted conversion has stopped
+            for (var i = 0; i < 100 && Files.exists(output); i++) {
+                Thread.sleep(50);
+            }
+            assertFalse(Files.exists(output));
+            assertNull(running.packageId());
+        } finally {
+            Files.delete(input);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    @Test
+    void testQueueFull() throws IOException, InterruptedException {
+        final var input = Files.createTempFile("input", ".zip");
+        final var outputs = Files.createTempDirectory("outputs");
+        final var started = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final ConverterService.Conversion conversion = (in, out, listener) -> {
+            started.countDown();
+            await(release);
+            throw new IllegalStateException("Broken package");
+        };
+        try (final var service = new ConverterService(1, 2, Map.of("fail", conversion))) {
+            final var running = service.submit("fail", input, outputs.resolve("running"), 0);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            service.submit("fail", input, outputs.resolve("queued1"), 0);
+            service.submit("fail", input, outputs.resolve("queued2"), 0);
+            assertThrows(RejectedExecutionException.class, () -> service.submit("fail", input, outputs.resolve("rejected"), 0));
+            assertThrows(IllegalArgumentException.class, () -> service.submit("unknown", input, outputs.resolve("rejected"), 0));
+            assertThrows(IllegalArgumentException.class, () -> service.submit("fail", input.resolveSibling("missing"), outputs.resolve("rejected"), 0));
+            // An existing file is never overwritten
+            assertThrows(IllegalArgumentException.class, () -> service.submit("fail", input, input, 0));
+            release.countDown();
+            awaitDone(running);
+            assertEquals(ConversionJob.State.FAILED, running.state());
+            assertEquals("Broken package", running.error());
+        } finally {
+            Files.delete(input);
+            Utils.deleteIfExists(outputs);
+        }
+    }
+
+    @Test
+    void testHttpApi() throws IOException, InterruptedException {
+        final var input = Files.createTempFile("input", ".zip");
+        final ConverterService.Conversion conversion = (in, out, listener) -> {
+            try {
+                Files.copy(in, out, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return "copied";
+        };
+        final var output = input.resolveSibling(input.getFileName() + ".out");
+        final var tokenFolder = Files.createTempDirectory("converter-service");
+        try (final var service = new ConverterService(1, 10, Map.of("copy", conversion))) {
+            final var tokenFile = tokenFolder.resolve("token");
+            final var token = ServiceHttpApi.token(tokenFile);
+            assertEquals(token, ServiceHttpApi.token(tokenFile));
+            if (tokenFile.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)));
+            }
+            try (final var api = new ServiceHttpApi(service, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), token)) {
+                final var url = URI.create("http://127.0.0.1:" + api.address().getPort());
+                final var cli = new ConverterCli(url, ServiceHttpApi.readToken(tokenFile));
+                final var submitted = cli.submit("copy", input, output, 1);
+                assertEquals(202, submitted.statusCode());
+                final var id = ConverterCli.field(submitted.body(), "id");
+                final var status = cli.await(id);
+                assertEquals(200, status.statusCode());
+                assertEquals("SUCCEEDED", ConverterCli.field(status.body(), "state"));
+                assertEquals("copied", ConverterCli.field(status.body(), "packageId"));
+                assertTrue(Files.exists(output));
+                // The output of a finished job is not overwritten by another one
+                assertEquals(400, cli.submit("copy", input, output, 0).statusCode());
+
+                final var client = HttpClient.newHttpClient();
+                final var authorization = "Bearer " + token;
+                final var json = "{\"type\":\"copy\",\"input\":\"" + input + "\",\"output\":\"" + output + ".2\"}";
+                assertEquals(400, cli.submit("unknown", input, output, 0).statusCode());
+                assertEquals(400, client.send(HttpRequest.newBuilder(url.resolve("/jobs")).header("Authorization", authorization).header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"type\":")).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                assertEquals(404, client.send(HttpRequest.newBuilder(url.resolve("/jobs/unknown")).header("Authorization", authorization).GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                assertEquals(409, client.send(HttpRequest.newBuilder(url.resolve("/jobs/" + id)).header("Authorization", authorization).DELETE().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                final var list = client.send(HttpRequest.newBuilder(url.resolve("/jobs")).header("Authorization", authorization).GET().build(), HttpResponse.BodyHandlers.ofString());
+                assertTrue(list.body().startsWith("[{\"id\":\"" + id + "\""));
+                final var health = client.send(HttpRequest.newBuilder(url.resolve("/health")).header("Authorization", authorization).GET().build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals("UP", ConverterCli.field(health.body(), "status"));
+
+                // Requests without the token, from web pages and with other bodies are rejected before they are handled
+                assertEquals(401, client.send(HttpRequest.newBuilder(url.resolve("/jobs")).GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                assertEquals(401, client.send(HttpRequest.newBuilder(url.resolve("/jobs/" + id)).header("Authorization", "Bearer wrong").DELETE().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                assertEquals(401, new ConverterCli(url, "wrong").submit("copy", input, Path.of(output + ".2"), 0).statusCode());
+                assertEquals(403, client.send(HttpRequest.newBuilder(url.resolve("/jobs")).header("Authorization", authorization).header("Origin", "https://example.com")
+                        .header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(json)).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                assertEquals(415, client.send(HttpRequest.newBuilder(url.resolve("/jobs")).header("Authorization", authorization).header("Content-Type", "text/plain")
+                        .POST(HttpRequest.BodyPublishers.ofString(json)).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                assertEquals(1, service.jobs().size());
+            }
+            // A token file others can read is refused
+            if (tokenFile.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.setPosixFilePermissions(tokenFile, PosixFilePermissions.fromString("rw-r--r--"));
+                assertThrows(IllegalStateException.class, () -> ServiceHttpApi.readToken(tokenFile));
+            }
+        } finally {
+            Files.delete(input);
+            Files.deleteIfExists(output);
+            Utils.deleteIfExists(tokenFolder);
+        }
+    }
+
+    @Test
+    void testTokenCreatedConcurrently() throws IOException, InterruptedException, ExecutionException {
+        final var tokenFolder = Files.createTempDirectory("converter-service");
+        final var pool = Executors.newFixedThreadPool(8);
+        try {
+            final var tokenFile = tokenFolder.resolve("token");
+            // Services started at the same time all use the token that ends up in the file, none reads it before it is written
+            final List<Callable<String>> creates = Collections.nCopies(32, () -> ServiceHttpApi.token(tokenFile));
+            final Set<String> tokens = new HashSet<>();
+            for (final var future : pool.invokeAll(creates)) {
+                tokens.add(future.get());
+            }
+            assertEquals(Set.of(ServiceHttpApi.readToken(tokenFile)), tokens);
+            try (final var files = Files.list(tokenFolder)) {
+                assertEquals(List.of(tokenFile), files.toList());
+            }
+        } finally {
+            pool.shutdown();
+            Utils.deleteIfExists(tokenFolder);
+        }
+    }
+
+    @Test
+    void testSipToDip() throws URISyntaxException, IOException {
+        final var sampleSip = Path.of(Objects.requireNonNull(ConverterServiceTest.class.getClassLoader().getResource("uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip")).toURI());
+        final var aipFile = Files.createTempFile(UUID.randomUUID().toString(), "aip.zip");
+        final var dipFile = Files.createTempFile(UUID.randomUUID().toString(), "dip.zip");
+        try {
+            final var result = new SIPToDIPConverter().convert(sampleSip, aipFile, dipFile);
+            final var aipId = result.aip().getId();
+            final var dipId = result.dip().getId();
+            try (final var aipZip = new ZipFile(aipFile.toFile()); final var dipZip = new ZipFile(dipFile.toFile())) {
+                // The AIP zip is written as it is into the submission of the DIP
+                try (final var in = dipZip.getInputStream(dipZip.getEntry(dipId + "/submission/" + aipId + ".zip"))) {
+                    assertArrayEquals(Files.readAllBytes(aipFile), in.readAllBytes());
+                }
+                final var premis = "/metadata/preservation/premis.xml";
+                try (final var aipPremis = aipZip.getInputStream(aipZip.getEntry(aipId + premis));
+                     final var dipPremis = dipZip.getInputStream(dipZip.getEntry(dipId + premis))) {
+                    assertArrayEquals(aipPremis.readAllBytes(), dipPremis.readAllBytes());
+                }
+                try (final var in = dipZip.getInputStream(dipZip.getEntry(dipId + "/METS.xml"))) {
+                    final var mets = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    assertTrue(mets.contains("OAISPACKAGETYPE=\"DIP\""), mets);
+                }
+                assertTrue(dipZip.stream().anyMatch(entry -> entry.getName().startsWith(dipId + "/metadata/descriptive/")));
+                assertTrue(dipZip.stream().anyMatch(entry -> entry.getName().startsWith(dipId + "/schemas/")));
+            }
+        } finally {
+            Files.delete(aipFile);
+            Files.delete(dipFile);
+        }
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void awaitDone(final ConversionJob job) throws InterruptedException {
+        for (var i = 0; i < 200 && !job.state().done(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(job.state().done());
+    }
+
+}
@@ -0,0 +1,135 @@
+package fi.disec.csip;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.roda_project.commons_ip.model.ParseException;
+import org.roda_project.commons_ip2.model.AIP;
+import org.roda_project.commons_ip2.model.IPInterface;
+import org.roda_project.commons_ip2.model.impl.eark.EARKSIP;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks both converters and the zipping of packages on synthetic SIPs. Run with
+ * {@code java -jar converters-benchmarks/target/benchmarks.jar -prof gc -prof fi.disec.csip.DiskWriteProfiler}
+ * and override the package shape with e.g. {@code -p files=100000 -p fileSize=1024}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConverterBenchmark {
+
+    @Param({"10", "1000"})
+    public int files;
+
+    @Param({"1024", "1048576"})
+    public long fileSize;
+
+    @Param({"0.0", "0.5", "0.9"})
+    public double compressibility;
+
+    @Param({"1"})
+    public int representations;
+
+    private Path workDirectory;
+    private Path sip;
+    private Path sipFolder;
+    private Path aip;
+    private IPInterface parsedSip;
+    private long inputSize;
+    private final SIPToAIPConverter sipToAIPConverter = new SIPToAIPConverter();
+    private final AIPToDIPConverter aipToDIPConverter = new AIPToDIPConverter();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ParseException {
+        workDirectory = Files.createTempDirectory("converters-benchmark");
+        final var generator = new SipGenerator(representations, files, fileSize, compressibility, 42);
+        sip = generator.generateZip(workDirectory);
+        sipFolder = generator.generate(Files.createDirectory(workDirectory.resolve("sip")));
+        inputSize = Files.size(sip);
+        aip = workDirectory.resolve("aip.zip");
+        sipToAIPConverter.convert(sip, aip);
+        parsedSip = EARKSIP.parse(sip, Files.createDirectory(workDirectory.resolve("parsed")));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Utils.deleteIfExists(workDirectory);
+    }
+
+    @Benchmark
+    public AIP sipToAip(final Bytes bytes) {
+        bytes.add(inputSize);
+        return sipToAIPConverter.convert(sip, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public AIP sipToAipStreaming(final Bytes bytes) {
+        bytes.add(inputSize);
+        return sipToAIPConverter.convertStreaming(sip, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public AIP sipToAipWithoutWriting(final Bytes bytes) throws IOException {
+        bytes.add(inputSize);
+        final var tempFolder = Files.createTempDirectory(workDirectory, "temp");
+        try {
+            return sipToAIPConverter.convert(parsedSip, tempFolder);
+        } finally {
+            Utils.deleteIfExists(tempFolder);
+        }
+    }
+
+    @Benchmark
+    public AIP aipToDip(final Bytes bytes) throws IOException {
+        bytes.add(Files.size(aip));
+        return aipToDIPConverter.convert(aip, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public CompressionStats zip(final Bytes bytes) {
+        final var stats = Utils.zip(sipFolder, OutputStream.nullOutputStream(), ParallelZipWriter.Options.DEFAULT, Map.of());
+        bytes.add(stats.size());
+        return stats;
+    }
+
+    /**
+     * Counts the input bytes, JMH reports them in bytes per second next to the conversions per second. The counter
+     * is normalized like the primary score, so it is only a byte rate in throughput mode and not with {@code -bm avgt}.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+
+        void add(final long count) {
+            bytes += count;
+        }
+    }
+
+}
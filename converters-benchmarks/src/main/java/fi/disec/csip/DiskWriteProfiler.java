@@ -0,0 +1,72 @@
+package fi.disec.csip;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reports the bytes the benchmark process wrote per operation, as counted by Linux in /proc/self/io. The
+ * benchmarks write their output to a null stream, so this is the temporary disk usage of the conversions.
+ * Use with {@code -prof fi.disec.csip.DiskWriteProfiler}, reports nothing on other operating systems.
+ */
+public final class DiskWriteProfiler implements InternalProfiler {
+    private static final Path PROC_IO = Path.of("/proc/self/io");
+
+    private long[] before;
+
+    @Override
+    public String getDescription() {
+        return "Bytes written to files per operation, from /proc/self/io";
+    }
+
+    @Override
+    public void beforeIteration(final BenchmarkParams benchmarkParams, final IterationParams iterationParams) {
+        before = read();
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(final BenchmarkParams benchmarkParams, final IterationParams iterationParams, final IterationResult result) {
+        final var after = read();
+        final var operations = result.getMetadata().getMeasuredOps();
+        if (before == null || after == null || operations == 0) {
+            return List.of();
+        }
+        return List.of(
+                new ScalarResult("disk.wchar", (double) (after[0] - before[0]) / operations, "bytes/op", AggregationPolicy.AVG),
+                new ScalarResult("disk.write_bytes", (double) (after[1] - before[1]) / operations, "bytes/op", AggregationPolicy.AVG)
+        );
+    }
+
+    /**
+     * @return wchar, all bytes passed to write calls, and write_bytes, the bytes that reached the storage layer
+     */
+    private static long[] read() {
+        if (!Files.isReadable(PROC_IO)) {
+            return null;
+        }
+        try {
+            final var counters = new long[2];
+            for (final var line : Files.readAllLines(PROC_IO)) {
+                if (line.startsWith("wchar:")) {
+                    counters[0] = Long.parseLong(line.substring(6).trim());
+                } else if (line.startsWith("write_bytes:")) {
+                    counters[1] = Long.parseLong(line.substring(12).trim());
+                }
+            }
+            return counters;
+        } catch (final IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
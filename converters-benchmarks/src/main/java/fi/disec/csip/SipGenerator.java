@@ -0,0 +1,335 @@
+package fi.disec.csip;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates synthetic E-ARK SIPs with a given number of representations and data files of a given size and
+ * compressibility. The same parameters and seed always produce the same files: the identifiers are drawn from
+ * the seed, and the creation dates in the METS files and the modification times of the files are fixed, so the
+ * generated zip is the same too.
+ */
+public final class SipGenerator {
+    private static final String METS_NS = "http://www.loc.gov/METS/";
+    private static final String CSIP_NS = "https://DILCIS.eu/XML/METS/CSIPExtensionMETS";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final String PROFILE = "https://earkcsip.dilcis.eu/profile/E-ARK-CSIP.xml";
+    private static final int BLOCK_SIZE = 4096;
+    private static final int FILES_PER_FOLDER = 1000;
+    private static final OffsetDateTime CREATED_TIME = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final String CREATED = CREATED_TIME.toString();
+
+    private final int representations;
+    private final int files;
+    private final long fileSize;
+    private final double compressibility;
+    private final long seed;
+
+    /**
+     * @param representations The number of representations
+     * @param files The total number of data files, spread evenly over the representations
+     * @param fileSize The size of each data file in bytes
+     * @param compressibility The fraction of each data file that deflate can remove, from 0 for random data to 1 for zeros
+     * @param seed The seed of the random data
+     */
+    public SipGenerator(final int representations, final int files, final long fileSize, final double compressibility, final long seed) {
+        if (representations < 1 || files < representations) {
+            throw new IllegalArgumentException("Need at least one representation and one file per representation");
+        }
+        this.representations = representations;
+        this.files = files;
+        this.fileSize = fileSize;
+        this.compressibility = Math.max(0, Math.min(1, compressibility));
+        this.seed = seed;
+    }
+
+    /**
+     * Generate the SIP as a folder
+     *
+     * @param directory The directory to create the SIP folder in
+     * @return The SIP folder, named after the id of the SIP
+     */
+    public Path generate(final Path directory) {
+        final var id = "uuid-" + new UUID(seed, representations * 31L + files).toString().toUpperCase();
+        final var root = directory.resolve(id);
+        final var random = new Random(seed);
+        // The identifiers have their own sequence, so that they do not shift the data of the files
+        final var ids = new Random(~seed);
+        try {
+            final var dc = write(root.resolve("metadata/descriptive/DC.xml"), out -> out.write(dublinCore(id).getBytes(StandardCharsets.UTF_8)));
+            final List<FileInfo> representationMets = new ArrayList<>();
+            for (var r = 1; r <= representations; r++) {
+                final var name = "rep" + r;
+                final var count = files / representations + (r <= files % representations ? 1 : 0);
+                final List<FileInfo> data = new ArrayList<>(count);
+                for (var f = 0; f < count; f++) {
+                    final var href = String.format("data/d%03d/f%06d.bin", f / FILES_PER_FOLDER, f);
+                    data.add(write(root.resolve("representations").resolve(name).resolve(href), out -> writeData(out, random)).withHref(href));
+                }
+                final var mets = write(root.resolve("representations").resolve(name).resolve("METS.xml"), out -> writeRepresentationMets(out, name, data, ids));
+                representationMets.add(mets.withHref("representations/" + name + "/METS.xml"));
+            }
+            write(root.resolve("METS.xml"), out -> writeRootMets(out, id, dc.withHref("metadata/descriptive/DC.xml"), representationMets, ids));
+            return root;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Generate the SIP as a zip file
+     *
+     * @param directory The directory to create the zip file in
+     * @return The zip file, named after the id of the SIP
+     */
+    public Path generateZip(final Path directory) {
+        try {
+            final var work = Files.createTempDirectory(directory, "sip-generator");
+            try {
+                final var root = generate(work);
+                final var zip = directory.resolve(root.getFileName() + ".zip");
+                try (final var out = Files.newOutputStream(zip)) {
+                    Utils.zip(work, out, ParallelZipWriter.Options.DEFAULT, Map.of());
+                }
+                return zip;
+            } finally {
+                Utils.deleteIfExists(work);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeData(final OutputStream out, final Random random) throws IOException {
+        final var block = new byte[BLOCK_SIZE];
+        final var randomBytes = new byte[(int) Math.round(BLOCK_SIZE * (1 - compressibility))];
+        for (long written = 0; written < fileSize; written += BLOCK_SIZE) {
+            final var length = (int) Math.min(BLOCK_SIZE, fileSize - written);
+            // The random part of each block is followed by zeros
+            random.nextBytes(randomBytes);
+            System.arraycopy(randomBytes, 0, block, 0, Math.min(randomBytes.length, length));
+            out.write(block, 0, length);
+        }
+    }
+
+    private static void writeRepresentationMets(final OutputStream out, final String name, final List<FileInfo> data, final Random ids) throws XMLStreamException {
+        final var writer = startMets(out, name, "../../");
+        writer.writeEmptyElement("metsHdr");
+        writer.writeAttribute("CREATEDATE", CREATED);
+        writer.writeAttribute("RECORDSTATUS", "NEW");
+        writer.writeAttribute(CSIP_NS, "OAISPACKAGETYPE", "SIP");
+        writer.writeStartElement("fileSec");
+        writer.writeAttribute("ID", uuid(ids));
+        final var groupId = uuid(ids);
+        writer.writeStartElement("fileGrp");
+        writer.writeAttribute("ID", groupId);
+        writer.writeAttribute("USE", "Data");
+        for (final var file : data) {
+            writeFile(writer, file, "application/octet-stream", ids);
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeStartElement("structMap");
+        writer.writeAttribute("ID", uuid(ids));
+        writer.writeAttribute("TYPE", "PHYSICAL");
+        writer.writeAttribute("LABEL", "CSIP");
+        writer.writeStartElement("div");
+        writer.writeAttribute("ID", uuid(ids));
+        writer.writeAttribute("TYPE", "ORIGINAL");
+        writer.writeAttribute("LABEL", name);
+        writer.writeStartElement("div");
+        writer.writeAttribute("ID", uuid(ids));
+        writer.writeAttribute("LABEL", "Data");
+        writer.writeEmptyElement("fptr");
+        writer.writeAttribute("FILEID", groupId);
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+        endMets(writer);
+    }
+
+    private static void writeRootMets(final OutputStream out, final String id, final FileInfo dc, final List<FileInfo> representations, final Random ids) throws XMLStreamException {
+        final var writer = startMets(out, id, "");
+        writer.writeStartElement("metsHdr");
+        writer.writeAttribute("CREATEDATE", CREATED);
+        writer.writeAttribute("RECORDSTATUS", "NEW");
+        writer.writeAttribute(CSIP_NS, "OAISPACKAGETYPE", "SIP");
+        writer.writeStartElement("agent");
+        writer.writeAttribute("ROLE", "CREATOR");
+        writer.writeAttribute("TYPE", "OTHER");
+        writer.writeAttribute("OTHERTYPE", "SOFTWARE");
+        writer.writeStartElement("name");
+        writer.writeCharacters(SipGenerator.class.getSimpleName());
+        writer.writeEndElement();
+        writer.writeStartElement("note");
+        writer.writeAttribute(CSIP_NS, "NOTETYPE", "SOFTWARE VERSION");
+        writer.writeCharacters("1.0.0");
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+        final var dmdId = uuid(ids);
+        writer.writeStartElement("dmdSec");
+        writer.writeAttribute("ID", dmdId);
+        writer.writeAttribute("CREATED", CREATED);
+        writer.writeAttribute("STATUS", "CURRENT");
+        writer.writeEmptyElement("mdRef");
+        writer.writeAttribute("ID", uuid(ids));
+        writer.writeAttribute("LOCTYPE", "URL");
+        writer.writeAttribute("MDTYPE", "DC");
+        writer.writeAttribute(XLINK_NS, "type", "simple");
+        writer.writeAttribute(XLINK_NS, "href", dc.href);
+        writer.writeAttribute("MIMETYPE", "application/xml");
+        writer.writeAttribute("SIZE", Long.toString(dc.size));
+        writer.writeAttribute("CREATED", CREATED);
+        writer.writeAttribute("CHECKSUM", dc.checksum);
+        writer.writeAttribute("CHECKSUMTYPE", "SHA-256");
+        writer.writeEndElement();
+        writer.writeStartElement("fileSec");
+        writer.writeAttribute("ID", uuid(ids));
+        final List<String> groupIds = new ArrayList<>();
+        for (final var mets : representations) {
+            final var groupId = uuid(ids);
+            groupIds.add(groupId);
+            writer.writeStartElement("fileGrp");
+            writer.writeAttribute("ID", groupId);
+            writer.writeAttribute("USE", "Representations/" + representationName(mets));
+            writeFile(writer, mets, "application/xml", ids);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeStartElement("structMap");
+        writer.writeAttribute("ID", uuid(ids));
+        writer.writeAttribute("TYPE", "PHYSICAL");
+        writer.writeAttribute("LABEL", "CSIP");
+        writer.writeStartElement("div");
+        writer.writeAttribute("ID", uuid(ids));
+        writer.writeAttribute("LABEL", id);
+        writer.writeEmptyElement("div");
+        writer.writeAttribute("ID", uuid(ids));
+        writer.writeAttribute("DMDID", dmdId);
+        writer.writeAttribute("LABEL", "Metadata");
+        for (var i = 0; i < representations.size(); i++) {
+            final var mets = representations.get(i);
+            writer.writeStartElement("div");
+            writer.writeAttribute("ID", uuid(ids));
+            writer.writeAttribute("LABEL", "Representations/" + representationName(mets));
+            writer.writeEmptyElement("mptr");
+            writer.writeAttribute(XLINK_NS, "type", "simple");
+            writer.writeAttribute(XLINK_NS, "href", mets.href);
+            writer.writeAttribute(XLINK_NS, "title", groupIds.get(i));
+            writer.writeAttribute("LOCTYPE", "URL");
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+        endMets(writer);
+    }
+
+    private static XMLStreamWriter startMets(final OutputStream out, final String objectId, final String schemaRoot) throws XMLStreamException {
+        final var writer = XMLOutputFactory.newFactory().createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+        writer.setDefaultNamespace(METS_NS);
+        writer.setPrefix("csip", CSIP_NS);
+        writer.setPrefix("xlink", XLINK_NS);
+        writer.setPrefix("xsi", XSI_NS);
+        writer.writeStartElement(METS_NS, "mets");
+        writer.writeDefaultNamespace(METS_NS);
+        writer.writeNamespace("csip", CSIP_NS);
+        writer.writeNamespace("xlink", XLINK_NS);
+        writer.writeNamespace("xsi", XSI_NS);
+        writer.writeAttribute("OBJID", objectId);
+        writer.writeAttribute("LABEL", "");
+        writer.writeAttribute("TYPE", "Mixed");
+        writer.writeAttribute(CSIP_NS, "CONTENTINFORMATIONTYPE", "MIXED");
+        writer.writeAttribute("PROFILE", PROFILE);
+        writer.writeAttribute(XSI_NS, "schemaLocation", METS_NS + " " + schemaRoot + "schemas/mets1_12.xsd " + XLINK_NS + " " + schemaRoot + "schemas/xlink.xsd");
+        return writer;
+    }
+
+    private static void endMets(final XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+    }
+
+    private static void writeFile(final XMLStreamWriter writer, final FileInfo file, final String mimeType, final Random ids) throws XMLStreamException {
+        writer.writeStartElement("file");
+        writer.writeAttribute("ID", "ID-" + uuid(ids).substring(5));
+        writer.writeAttribute("MIMETYPE", mimeType);
+        writer.writeAttribute("SIZE", Long.toString(file.size));
+        writer.writeAttribute("CREATED", CREATED);
+        writer.writeAttribute("CHECKSUM", file.checksum);
+        writer.writeAttribute("CHECKSUMTYPE", "SHA-256");
+        writer.writeEmptyElement("FLocat");
+        writer.writeAttribute(XLINK_NS, "type", "simple");
+        writer.writeAttribute(XLINK_NS, "href", file.href);
+        writer.writeAttribute("LOCTYPE", "URL");
+        writer.writeEndElement();
+    }
+
+    private static String representationName(final FileInfo mets) {
+        return mets.href.split("/")[1];
+    }
+
+    private static String dublinCore(final String id) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<simpledc xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n"
+                + "   <title>" + id + " DC Metadata</title>\n"
+                + "   <identifier>dc.xml</identifier>\n"
+                + "</simpledc>\n";
+    }
+
+    private static FileInfo write(final Path file, final Content content) throws IOException {
+        Files.createDirectories(file.getParent());
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (final var out = new DigestOutputStream(Files.newOutputStream(file), digest)) {
+            content.writeTo(out);
+        } catch (final XMLStreamException e) {
+            throw new IOException(e);
+        }
+        Files.setLastModifiedTime(file, FileTime.from(CREATED_TIME.toInstant()));
+        return new FileInfo(null, Files.size(file), HexFormat.of().withUpperCase().formatHex(digest.digest()));
+    }
+
+    private static String uuid(final Random ids) {
+        return "uuid-" + new UUID(ids.nextLong(), ids.nextLong()).toString().toUpperCase();
+    }
+
+    @FunctionalInterface
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException, XMLStreamException;
+    }
+
+    private record FileInfo(String href, long size, String checksum) {
+
+        FileInfo withHref(final String href) {
+            return new FileInfo(href, size, checksum);
+        }
+    }
+
+}
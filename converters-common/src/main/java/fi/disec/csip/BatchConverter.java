@@ -0,0 +1,198 @@
+package fi.disec.csip;
+
+import org.roda_project.commons_ip2.model.AIP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Converts many packages concurrently. New packages are only read from the input once a conversion slot and
+ * enough temporary disk space are free, and a failing package does not affect the others. Memory use is bounded
+ * by the parallelism, as each conversion only keeps a fixed number of compressed chunks in memory while zipping.
+ */
+public final class BatchConverter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchConverter.class);
+    private static final int MIB = 1 << 20;
+
+    private final PackageConverter converter;
+    private final int parallelism;
+    private final long tempSpaceLimit;
+    private final ToLongFunction<Path> tempSpaceEstimate;
+
+    /**
+     * @param converter Converts a single package, e.g. {@code new SIPToAIPConverter()::convert}
+     * @param parallelism The maximum number of packages converted at the same time
+     */
+    public BatchConverter(final PackageConverter converter, final int parallelism) {
+        this(converter, parallelism, Long.MAX_VALUE, BatchConverter::estimateTempSpace);
+    }
+
+    /**
+     * @param converter Converts a single package, e.g. {@code new SIPToAIPConverter()::convert}
+     * @param parallelism The maximum number of packages converted at the same time
+     * @param tempSpaceLimit The maximum number of bytes of temporary disk space used by the packages being converted,
+     * a package whose estimate alone exceeds the limit is converted when no other package is
+     * @param tempSpaceEstimate Estimates the temporary disk space needed to convert a package
+     * @see #estimateTempSpace(Path)
+     */
+    public BatchConverter(final PackageConverter converter, final int parallelism, final long tempSpaceLimit, final ToLongFunction<Path> tempSpaceEstimate) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+        }
+        if (tempSpaceLimit < 1) {
+            throw new IllegalArgumentException("tempSpaceLimit must be positive but was " + tempSpaceLimit);
+        }
+        this.converter = converter;
+        this.parallelism = parallelism;
+        this.tempSpaceLimit = tempSpaceLimit;
+        this.tempSpaceEstimate = tempSpaceEstimate;
+    }
+
+    /**
+     * Convert every zip file and folder in the directory in name order
+     *
+     * @param directory The directory containing the input packages
+     * @param sink Where the converted packages are written to
+     * @return The result of each package
+     */
+    public BatchReport convert(final Path directory, final OutputSink sink) throws InterruptedException {
+        final List<Path> inputs;
+        try (final var stream = Files.list(directory)) {
+            inputs = stream.filter(path -> Files.isDirectory(path) || path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".zip")).sorted().toList();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return convert(inputs.iterator(), sink);
+    }
+
+    /**
+     * Convert the input packages, the next package is only taken from the iterator once it can be started. An input
+     * whose output name, ignoring case, is already used by an earlier input fails without being converted, e.g. a
+     * zip file next to a folder with the same name, as both would be written to the same output.
+     *
+     * @param inputs The input packages
+     * @param sink Where the converted packages are written to
+     * @return The result of each package in the order of the iterator
+     */
+    public BatchReport convert(final Iterator<Path> inputs, final OutputSink sink) throws InterruptedException {
+        final var start = System.nanoTime();
+        final var maxPermits = toPermits(tempSpaceLimit);
+        final var slots = new Semaphore(parallelism);
+        final var tempSpace = new Semaphore(maxPermits);
+        final var threadCount = new AtomicInteger();
+        final var executor = Executors.newFixedThreadPool(parallelism, runnable -> new Thread(runnable, "batch-converter-" + threadCount.incrementAndGet()));
+        try {
+            final List<Future<BatchReport.Result>> futures = new ArrayList<>();
+            final Map<String, Path> outputs = new HashMap<>();
+            while (inputs.hasNext()) {
+                final var input = inputs.next();
+                final var other = outputs.putIfAbsent(name(input).toLowerCase(Locale.ROOT), input);
+                if (other != null) {
+                    final var e = new IllegalArgumentException(input + " has the same output name as " + other);
+                    LOGGER.warn("Could not convert {}", input, e);
+                    futures.add(CompletableFuture.completedFuture(new BatchReport.Result(input, null, Duration.ZERO, e)));
+                    continue;
+                }
+                final int permits;
+                try {
+                    permits = Math.min(toPermits(tempSpaceEstimate.applyAsLong(input)), maxPermits);
+                } catch (final RuntimeException e) {
+                    LOGGER.warn("Could not convert {}", input, e);
+                    futures.add(CompletableFuture.completedFuture(new BatchReport.Result(input, null, Duration.ZERO, e)));
+                    continue;
+                }
+                slots.acquire();
+                tempSpace.acquire(permits);
+                futures.add(executor.submit(() -> {
+                    try {
+                        return convertPackage(input, sink);
+                    } finally {
+                        tempSpace.release(permits);
+                        slots.release();
+                    }
+                }));
+            }
+            final List<BatchReport.Result> results = new ArrayList<>(futures.size());
+            for (final var future : futures) {
+                results.add(await(future));
+            }
+            final var report = new BatchReport(results, Duration.ofNanos(System.nanoTime() - start));
+            LOGGER.info("Batch conversion done: {}", report);
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private BatchReport.Result convertPackage(final Path input, final OutputSink sink) {
+        final var name = name(input);
+        final var start = System.nanoTime();
+        try {
+            final var aip = sink.write(name, out -> converter.convert(input, out));
+            return new BatchReport.Result(input, aip.getId(), Duration.ofNanos(System.nanoTime() - start), null);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Could not convert {}", input, e);
+            return new BatchReport.Result(input, null, Duration.ofNanos(System.nanoTime() - start), e);
+        }
+    }
+
+    private static BatchReport.Result await(final Future<BatchReport.Result> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            // Conversion failures are part of the result, only errors like running out of memory end up here
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static int toPermits(final long bytes) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / MIB + (bytes % MIB == 0 ? 0 : 1)));
+    }
+
+    /**
+     * @return The name of the output of an input package, its file name without a .zip extension
+     */
+    static String name(final Path input) {
+        final var name = input.getFileName().toString();
+        return name.toLowerCase(Locale.ROOT).endsWith(".zip") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * The default estimate of the temporary disk space needed to convert a package, twice its size as the input
+     * is extracted and then copied into the built package
+     */
+    public static long estimateTempSpace(final Path input) {
+        return 2 * Utils.size(input);
+    }
+
+    /**
+     * Converts a single package and writes it into the given stream
+     */
+    @FunctionalInterface
+    public interface PackageConverter {
+        AIP convert(Path input, OutputStream out);
+    }
+
+}
@@ -0,0 +1,53 @@
+package fi.disec.csip;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The outcome of a batch conversion
+ *
+ * @param results The result of each input package in the order the packages were read
+ * @param elapsed The wall clock time of the whole batch
+ */
+public record BatchReport(List<Result> results, Duration elapsed) {
+
+    public BatchReport {
+        results = List.copyOf(results);
+    }
+
+    /**
+     * @return The number of packages that were converted
+     */
+    public long succeeded() {
+        return results.stream().filter(Result::succeeded).count();
+    }
+
+    /**
+     * @return The packages whose conversion failed
+     */
+    public List<Result> failures() {
+        return results.stream().filter(result -> !result.succeeded()).toList();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d packages converted, %d failed in %d ms", succeeded(), results.size() - succeeded(), elapsed.toMillis());
+    }
+
+    /**
+     * The outcome of converting one package
+     *
+     * @param input The input package
+     * @param id The id of the created package, null if the conversion failed
+     * @param elapsed The time the conversion took, not including the time spent waiting for a free slot
+     * @param error Why the conversion failed, null if it succeeded
+     */
+    public record Result(Path input, String id, Duration elapsed, Exception error) {
+
+        public boolean succeeded() {
+            return error == null;
+        }
+    }
+
+}
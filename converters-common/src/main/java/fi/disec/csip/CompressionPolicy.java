@@ -0,0 +1,126 @@
+package fi.disec.csip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Decides per zip entry whether it is stored as is or deflated, and with which level. Deflating files that are
+ * already compressed, like images, videos or other zip files, costs a lot of CPU and gains close to nothing.
+ */
+@FunctionalInterface
+public interface CompressionPolicy {
+    /**
+     * Returned by {@link #level(String, Path)} for entries that are stored without compression
+     */
+    int STORED = Deflater.NO_COMPRESSION;
+
+    /**
+     * File extensions of formats that are already compressed
+     */
+    Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub",
+            "jpg", "jpeg", "jp2", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac",
+            "mp4", "m4v", "mov", "mkv", "webm", "avi", "wmv", "mpg", "mpeg",
+            "pdf"
+    );
+
+    /**
+     * Stores files with a {@link #COMPRESSED_EXTENSIONS compressed extension} and deflates the rest with the
+     * default level
+     */
+    CompressionPolicy DEFAULT = byExtension(Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * @param name The name of the entry in the zip
+     * @param file The file whose content is written to the entry
+     * @return {@link #STORED} to store the entry as is, otherwise the deflate level from 1 to 9 or
+     * {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    int level(String name, Path file) throws IOException;
+
+    /**
+     * Store an entry when this or the other policy stores it, otherwise use the level of this policy. The other
+     * policy is only asked for entries this policy would deflate, e.g.
+     * {@code byExtension(level).or(sampled(level, 0.05))} only samples files with an unknown extension.
+     */
+    default CompressionPolicy or(final CompressionPolicy other) {
+        return (name, file) -> {
+            final var level = level(name, file);
+            return level == STORED || other.level(name, file) == STORED ? STORED : level;
+        };
+    }
+
+    /**
+     * Deflate every entry with the given level, or store every entry when the level is {@link #STORED}
+     */
+    static CompressionPolicy deflate(final int level) {
+        return (name, file) -> level;
+    }
+
+    /**
+     * Store files with a {@link #COMPRESSED_EXTENSIONS compressed extension} and deflate the rest with the given level
+     */
+    static CompressionPolicy byExtension(final int level) {
+        return (name, file) -> {
+            final var dot = name.lastIndexOf('.');
+            return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT)) ? STORED : level;
+        };
+    }
+
+    /**
+     * Store files whose MIME type, as detected by {@link Files#probeContentType(Path)}, is a compressed image,
+     * audio, video or archive format and deflate the rest with the given level
+     */
+    static CompressionPolicy byMimeType(final int level) {
+        return (name, file) -> {
+            final var type = Files.probeContentType(file);
+            if (type == null) {
+                return level;
+            }
+            final var compressed = type.startsWith("video/")
+                    || type.startsWith("image/") && !type.equals("image/bmp") && !type.equals("image/tiff") && !type.startsWith("image/svg")
+                    || type.startsWith("audio/") && !type.contains("wav")
+                    || type.equals("application/pdf") || type.endsWith("zip") || type.endsWith("gzip") || type.contains("compressed");
+            return compressed ? STORED : level;
+        };
+    }
+
+    /**
+     * Deflate a sample from the start of the file with the fastest level and store the file when the sample shrinks
+     * by less than the given ratio, otherwise deflate the file with the given level
+     *
+     * @param minSaving The fraction of the sample that deflating has to save, e.g. 0.05 for 5 percent
+     */
+    static CompressionPolicy sampled(final int level, final double minSaving) {
+        return (name, file) -> {
+            final var sample = new byte[64 * 1024];
+            final int length;
+            try (final InputStream in = Files.newInputStream(file)) {
+                length = in.readNBytes(sample, 0, sample.length);
+            }
+            if (length < 1024) {
+                return level;
+            }
+            final var deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                deflater.setInput(sample, 0, length);
+                deflater.finish();
+                final var buffer = new byte[sample.length];
+                while (!deflater.finished()) {
+                    deflater.deflate(buffer);
+                }
+                return deflater.getBytesWritten() > length * (1 - minSaving) ? STORED : level;
+            } finally {
+                deflater.end();
+            }
+        };
+    }
+
+}
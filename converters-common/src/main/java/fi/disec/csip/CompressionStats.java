@@ -0,0 +1,37 @@
+package fi.disec.csip;
+
+import java.time.Duration;
+
+/**
+ * Statistics of writing one package into a zip file
+ *
+ * @param entries The number of entries in the zip
+ * @param storedEntries The number of entries stored without compression
+ * @param size The total uncompressed size of the entries in bytes
+ * @param compressedSize The total size of the entry data in the zip in bytes
+ * @param compressionTime The time spent compressing and checksumming entries, summed over all threads
+ * @param elapsedTime The wall clock time it took to write the zip
+ */
+public record CompressionStats(long entries, long storedEntries, long size, long compressedSize, Duration compressionTime, Duration elapsedTime) {
+
+    /**
+     * @return The number of bytes compression saved
+     */
+    public long bytesSaved() {
+        return size - compressedSize;
+    }
+
+    /**
+     * @return The compressed size relative to the uncompressed size, 1 if nothing was written
+     */
+    public double ratio() {
+        return size == 0 ? 1 : (double) compressedSize / size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries (%d stored), %d bytes compressed to %d bytes, saved %d bytes, compression took %d ms on %d ms wall clock",
+                entries, storedEntries, size, compressedSize, bytesSaved(), compressionTime.toMillis(), elapsedTime.toMillis());
+    }
+
+}
@@ -0,0 +1,274 @@
+package fi.disec.csip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.zip.ZipFile;
+
+/**
+ * A directory of files keyed by digests of their content, shared by conversions so that content already seen is
+ * not compressed again: the zipped submission of a DIP by the content of its AIP and large deflated zip entries
+ * by the content of their file. The least recently used files are deleted once the store exceeds its maximum size.
+ * Files are taken out of the store by linking them where the file system allows it, see {@link Staging}, so they
+ * must never be modified.
+ */
+public final class ContentStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentStore.class);
+    private static final String ATTRIBUTES = ".properties";
+    private static final String TEMP = ".tmp-";
+
+    private final Path root;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * Open a store, the files already in the directory are kept and ordered by their last use
+     *
+     * @param root The directory of the store, created if it does not exist
+     * @param maxBytes The maximum total size of the stored files
+     */
+    public ContentStore(final Path root, final long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive but was " + maxBytes);
+        }
+        this.root = root;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(root);
+            final List<Path> files = new ArrayList<>();
+            try (final DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+                for (final var path : stream) {
+                    final var name = path.getFileName().toString();
+                    if (name.startsWith(TEMP)) {
+                        // Left behind by a process that died while storing
+                        Files.deleteIfExists(path);
+                    } else if (!name.endsWith(ATTRIBUTES)) {
+                        files.add(path);
+                    }
+                }
+            }
+            files.sort(Comparator.comparing(ContentStore::lastModified));
+            for (final var file : files) {
+                final var fileSize = Files.size(file);
+                sizes.put(file.getFileName().toString(), fileSize);
+                size += fileSize;
+            }
+            evict();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The total size of the stored files
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Look up a file and mark it as used
+     *
+     * @return The stored file with its attributes, null if there is none for the key
+     */
+    synchronized Entry get(final String key) {
+        if (sizes.get(key) == null) {
+            return null;
+        }
+        final var file = root.resolve(key);
+        try {
+            final var attributes = new Properties();
+            try (final var in = Files.newBufferedReader(root.resolve(key + ATTRIBUTES))) {
+                attributes.load(in);
+            }
+            // The modification time orders the files by their last use when the store is opened again
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            final Map<String, String> values = new LinkedHashMap<>();
+            attributes.stringPropertyNames().forEach(name -> values.put(name, attributes.getProperty(name)));
+            return new Entry(file, values);
+        } catch (final IOException e) {
+            LOGGER.debug("Could not read stored file {}", key, e);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a copy of a file, replacing the file stored with the same key. A file larger than the store is not
+     * stored. Failing to store a file is logged and otherwise ignored, as the store is only a cache.
+     *
+     * @param file The file to store, it is linked into the store where possible and must not be modified afterwards
+     * @param attributes Small values describing the file, e.g. its checksum
+     */
+    void put(final String key, final Path file, final Map<String, String> attributes) {
+        final var temp = root.resolve(TEMP + UUID.randomUUID());
+        final var tempAttributes = root.resolve(TEMP + UUID.randomUUID() + ATTRIBUTES);
+        try {
+            final var fileSize = Files.size(file);
+            if (fileSize > maxBytes) {
+                return;
+            }
+            Staging.stage(file, temp);
+            final var properties = new Properties();
+            properties.putAll(attributes);
+            try (final var out = Files.newBufferedWriter(tempAttributes)) {
+                properties.store(out, null);
+            }
+            synchronized (this) {
+                remove(key);
+                // The attributes are moved first, a file without them is treated as missing
+                Files.move(tempAttributes, root.resolve(key + ATTRIBUTES), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(temp, root.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                sizes.put(key, fileSize);
+                size += fileSize;
+                evict();
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Could not store {} as {}", file, key, e);
+            try {
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(tempAttributes);
+            } catch (final IOException deleteException) {
+                e.addSuppressed(deleteException);
+            }
+        }
+    }
+
+    /**
+     * @return A new path in the store for writing a file that is then {@link #put(String, Path, Map) stored}
+     */
+    Path tempFile() {
+        return root.resolve(TEMP + UUID.randomUUID());
+    }
+
+    private void evict() throws IOException {
+        final var iterator = sizes.entrySet().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            final var eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            Files.deleteIfExists(root.resolve(eldest.getKey()));
+            Files.deleteIfExists(root.resolve(eldest.getKey() + ATTRIBUTES));
+            LOGGER.debug("Evicted {} bytes of {} from the content store", eldest.getValue(), eldest.getKey());
+        }
+    }
+
+    private void remove(final String key) {
+        final var removed = sizes.remove(key);
+        if (removed != null) {
+            size -= removed;
+        }
+        try {
+            // A file that is linked or open elsewhere stays readable there
+            Files.deleteIfExists(root.resolve(key));
+            Files.deleteIfExists(root.resolve(key + ATTRIBUTES));
+        } catch (final IOException e) {
+            LOGGER.debug("Could not delete stored file {}", key, e);
+        }
+    }
+
+    /**
+     * @return A key for the given parts, the hex SHA-256 of their string forms
+     */
+    static String key(final Object... parts) {
+        final var digest = sha256();
+        for (final var part : parts) {
+            digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * A key of the content of a package, computed without reading the package. For a zip file it is computed from
+     * the names, sizes and CRCs of the entries in its central directory, and for a folder as by
+     * {@link #contentKey(Path, List)} from all of its files.
+     */
+    static String contentKey(final Path pkg) {
+        try {
+            if (Files.isDirectory(pkg)) {
+                try (final var stream = Files.walk(pkg)) {
+                    return contentKey(pkg, stream.filter(Files::isRegularFile).toList());
+                }
+            }
+            final var digest = sha256();
+            try (final var zipFile = new ZipFile(pkg.toFile())) {
+                final var entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    final var entry = entries.nextElement();
+                    digest.update((entry.getName() + "\0" + entry.getSize() + "\0" + entry.getCrc() + "\0").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A key of some files of a folder from their relative names, sizes and modification times, so that the files
+     * are not read. A file that is changed in place keeping its size and modification time keeps its key.
+     *
+     * @param files Files in the folder, in any order
+     */
+    static String contentKey(final Path folder, final List<Path> files) {
+        final var digest = sha256();
+        try {
+            for (final var file : files.stream().sorted().toList()) {
+                final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                digest.update((folder.relativize(file) + "\0" + attributes.size() + "\0" + attributes.lastModifiedTime().toMillis() + "\0").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static FileTime lastModified(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A stored file, it may be deleted by the store at any time after it has been looked up, so it has to be
+     * opened or linked right away
+     */
+    record Entry(Path file, Map<String, String> attributes) {
+    }
+
+}
@@ -0,0 +1,97 @@
+package fi.disec.csip;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Receives the metrics and progress of conversions. A converter calls its listener on the converting thread, so
+ * a listener shared by concurrent conversions, e.g. in a {@link BatchConverter}, must be thread-safe. Exceptions
+ * thrown by a listener are logged and do not fail the conversion.
+ */
+public interface ConversionListener {
+    /**
+     * Ignores everything, the converters skip measuring the temp disk usage when this is their listener
+     */
+    ConversionListener NONE = new ConversionListener() {
+    };
+
+    /**
+     * Called when a stage of a conversion has completed
+     *
+     * @param input The input package of the conversion
+     */
+    default void stageCompleted(final Path input, final StageMetrics metrics) {
+    }
+
+    /**
+     * Called while a stage that zips a package writes its entries
+     *
+     * @param input The input package of the conversion
+     * @param bytesDone The number of uncompressed bytes zipped so far
+     * @param bytesTotal The estimated total number of uncompressed bytes, bytesDone may exceed it slightly as
+     * generated entries like the METS file have no size up front
+     */
+    default void progress(final Path input, final Stage stage, final long bytesDone, final long bytesTotal) {
+    }
+
+    /**
+     * Called when a conversion has completed successfully
+     */
+    default void completed(final ConversionMetrics metrics) {
+    }
+
+    /**
+     * Called when a package has been validated while it was written, before the conversion completes
+     *
+     * @param input The input package of the conversion
+     * @see ConverterConfig#validate()
+     */
+    default void validated(final Path input, final ValidationReport report) {
+    }
+
+    /**
+     * @return A listener that passes everything to this listener and then to the other listener
+     */
+    default ConversionListener and(final ConversionListener other) {
+        final var self = this;
+        return new ConversionListener() {
+            @Override
+            public void stageCompleted(final Path input, final StageMetrics metrics) {
+                self.stageCompleted(input, metrics);
+                other.stageCompleted(input, metrics);
+            }
+
+            @Override
+            public void progress(final Path input, final Stage stage, final long bytesDone, final long bytesTotal) {
+                self.progress(input, stage, bytesDone, bytesTotal);
+                other.progress(input, stage, bytesDone, bytesTotal);
+            }
+
+            @Override
+            public void completed(final ConversionMetrics metrics) {
+                self.completed(metrics);
+                other.completed(metrics);
+            }
+
+            @Override
+            public void validated(final Path input, final ValidationReport report) {
+                self.validated(input, report);
+                other.validated(input, report);
+            }
+        };
+    }
+
+    /**
+     * Pass a {@link ConversionMetrics#toJson() JSON summary} of each completed conversion to the sink, e.g. a
+     * logger or a writer of a JSON lines file
+     */
+    static ConversionListener jsonSummary(final Consumer<String> sink) {
+        return new ConversionListener() {
+            @Override
+            public void completed(final ConversionMetrics metrics) {
+                sink.accept(metrics.toJson());
+            }
+        };
+    }
+
+}
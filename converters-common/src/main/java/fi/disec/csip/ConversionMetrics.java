@@ -0,0 +1,69 @@
+package fi.disec.csip;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * What a whole conversion did, stage by stage
+ *
+ * @param converter The converter, e.g. sip-to-aip
+ * @param input The input package
+ * @param id The id of the created package
+ * @param stages The metrics of each stage that ran, in order
+ * @param peakTempDiskUsage The largest size of the temp folder of the conversion in bytes
+ * @param elapsed The wall clock time of the whole conversion
+ */
+public record ConversionMetrics(String converter, Path input, String id, List<StageMetrics> stages, long peakTempDiskUsage, Duration elapsed) {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public ConversionMetrics {
+        stages = List.copyOf(stages);
+    }
+
+    /**
+     * @return The metrics as a single line JSON object, durations are in seconds and sizes in bytes
+     */
+    public String toJson() {
+        final var writer = new StringWriter();
+        try (final var json = JSON.createGenerator(writer)) {
+            json.writeStartObject();
+            json.writeStringField("converter", converter);
+            json.writeStringField("input", String.valueOf(input));
+            json.writeStringField("id", id);
+            json.writeNumberField("elapsed", seconds(elapsed));
+            json.writeNumberField("peakTempDiskUsage", peakTempDiskUsage);
+            json.writeArrayFieldStart("stages");
+            for (final var stage : stages) {
+                json.writeStartObject();
+                json.writeStringField("stage", stage.stage().name());
+                json.writeNumberField("elapsed", seconds(stage.elapsed()));
+                json.writeNumberField("bytesRead", stage.bytesRead());
+                json.writeNumberField("bytesWritten", stage.bytesWritten());
+                json.writeNumberField("files", stage.files());
+                json.writeNumberField("tempDiskUsage", stage.tempDiskUsage());
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    private static double seconds(final Duration duration) {
+        return duration.toNanos() / 1e9;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s in %d ms, peak temp disk usage %d bytes, %s", converter, id, elapsed.toMillis(), peakTempDiskUsage, stages);
+    }
+
+}
@@ -0,0 +1,169 @@
+package fi.disec.csip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Measures the stages of one conversion and reports them to a {@link ConversionListener}. Nothing is measured
+ * when the listener is {@link ConversionListener#NONE}, so that conversions without a listener do not pay for
+ * walking the temp folder after each stage.
+ */
+final class ConversionRecorder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversionRecorder.class);
+
+    private final String converter;
+    private final Path input;
+    private final Path tempFolder;
+    private final ConversionListener listener;
+    private final boolean enabled;
+    private final List<StageMetrics> stages = new ArrayList<>();
+    private final long start = System.nanoTime();
+    private long stageStart = start;
+    private long peakTempDiskUsage;
+    private Usage tempUsage = new Usage(0, 0);
+
+    /**
+     * @param converter The name of the converter, e.g. sip-to-aip
+     * @param input The input package
+     * @param tempFolder The temp folder of the conversion whose size is measured after each stage
+     */
+    ConversionRecorder(final String converter, final Path input, final Path tempFolder, final ConversionListener listener) {
+        this.converter = converter;
+        this.input = input;
+        this.tempFolder = tempFolder;
+        this.listener = listener;
+        this.enabled = listener != ConversionListener.NONE;
+    }
+
+    /**
+     * Start timing the next stage
+     */
+    void start() {
+        stageStart = System.nanoTime();
+    }
+
+    /**
+     * Complete the stage started last
+     */
+    void end(final Stage stage, final long bytesRead, final long bytesWritten, final long files) {
+        final var elapsed = Duration.ofNanos(System.nanoTime() - stageStart);
+        if (!enabled) {
+            return;
+        }
+        tempUsage = usage(tempFolder);
+        peakTempDiskUsage = Math.max(peakTempDiskUsage, tempUsage.bytes());
+        final var metrics = new StageMetrics(stage, elapsed, bytesRead, bytesWritten, files, tempUsage.bytes());
+        stages.add(metrics);
+        LOGGER.debug("{} of {}: {}", stage, input, metrics);
+        try {
+            listener.stageCompleted(input, metrics);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Conversion listener failed", e);
+        }
+    }
+
+    /**
+     * Complete the stage started last, which wrote its output into the temp folder. The bytes and files written
+     * are the growth of the temp folder during the stage.
+     */
+    void end(final Stage stage, final long bytesRead) {
+        if (!enabled) {
+            end(stage, bytesRead, 0, 0);
+            return;
+        }
+        final var before = tempUsage;
+        final var after = usage(tempFolder);
+        end(stage, bytesRead, after.bytes() - before.bytes(), after.files() - before.files());
+    }
+
+    /**
+     * Complete the stage started last with the statistics of the zip it wrote
+     */
+    void end(final Stage stage, final CompressionStats stats) {
+        end(stage, stats.size(), stats.compressedSize(), stats.entries());
+    }
+
+    /**
+     * @param bytesTotal The estimated total number of bytes
+     * @return A callback taking the number of bytes done, null when there is no listener
+     */
+    LongConsumer progress(final Stage stage, final long bytesTotal) {
+        if (!enabled) {
+            return null;
+        }
+        return bytesDone -> {
+            try {
+                listener.progress(input, stage, bytesDone, bytesTotal);
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Conversion listener failed", e);
+            }
+        };
+    }
+
+    /**
+     * Report the validation of the written package, invalid packages are also logged
+     */
+    void validated(final ValidationReport report) {
+        if (!report.valid()) {
+            LOGGER.warn("The package converted from {} is not valid: {}", input, report);
+        }
+        try {
+            listener.validated(input, report);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Conversion listener failed", e);
+        }
+    }
+
+    /**
+     * Report the completed conversion
+     *
+     * @param id The id of the created package
+     */
+    void completed(final String id) {
+        if (!enabled) {
+            return;
+        }
+        final var metrics = new ConversionMetrics(converter, input, id, stages, peakTempDiskUsage, Duration.ofNanos(System.nanoTime() - start));
+        try {
+            listener.completed(metrics);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Conversion listener failed", e);
+        }
+    }
+
+    /**
+     * @return The total size and number of the files in a folder or of a single file, zero when there is no listener
+     */
+    Usage usage(final Path fileOrFolder) {
+        if (!enabled || !Files.exists(fileOrFolder)) {
+            return new Usage(0, 0);
+        }
+        try (final var stream = Files.walk(fileOrFolder)) {
+            final var usage = new long[2];
+            stream.filter(Files::isRegularFile).forEach(path -> {
+                try {
+                    usage[0] += Files.size(path);
+                    usage[1]++;
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return new Usage(usage[0], usage[1]);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    record Usage(long bytes, long files) {
+    }
+
+}
@@ -0,0 +1,77 @@
+package fi.disec.csip;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Where and how much temporary disk space a converter may use. Before a conversion starts its temp space is
+ * estimated from the size of the input and reserved on the scratch root with the most free space, so concurrent
+ * conversions are spread over the roots. A conversion for which no root has enough space waits for the admission
+ * timeout and then fails with an {@link InsufficientSpaceException} before doing any work.
+ *
+ * @param scratchRoots The directories the temp folders are created in, ideally on fast local volumes
+ * @param quota The maximum number of bytes of temp space one conversion may use
+ * @param reservedSpace The number of bytes kept free on each scratch root for everything else
+ * @param admissionTimeout How long a conversion waits for enough free space before it fails
+ * @param contentStore Keeps content that conversions would otherwise compress again, null to keep nothing
+ * @param validate Whether packages are validated while they are written, the report is passed to
+ * {@link ConversionListener#validated(Path, ValidationReport)}
+ * @param journalInterval The number of bytes a resumable conversion writes between journaling the entries of its
+ * zip file, a retry writes the entries after the last journaled one again
+ */
+public record ConverterConfig(List<Path> scratchRoots, long quota, long reservedSpace, Duration admissionTimeout, ContentStore contentStore, boolean validate,
+                              long journalInterval) {
+    /**
+     * Uses the default temp directory without limits and fails immediately when it is too full
+     */
+    public static final ConverterConfig DEFAULT = new ConverterConfig(List.of(Path.of(System.getProperty("java.io.tmpdir"))), Long.MAX_VALUE, 0, Duration.ZERO, null, false, ZipJournal.COMMIT_INTERVAL);
+
+    public ConverterConfig {
+        scratchRoots = List.copyOf(scratchRoots);
+        if (scratchRoots.isEmpty()) {
+            throw new IllegalArgumentException("At least one scratch root is needed");
+        }
+        if (quota < 1) {
+            throw new IllegalArgumentException("quota must be positive but was " + quota);
+        }
+        if (reservedSpace < 0) {
+            throw new IllegalArgumentException("reservedSpace must not be negative but was " + reservedSpace);
+        }
+        if (admissionTimeout.isNegative()) {
+            throw new IllegalArgumentException("admissionTimeout must not be negative but was " + admissionTimeout);
+        }
+        if (journalInterval < 0) {
+            throw new IllegalArgumentException("journalInterval must not be negative but was " + journalInterval);
+        }
+    }
+
+    public ConverterConfig withScratchRoots(final Path... scratchRoots) {
+        return new ConverterConfig(List.of(scratchRoots), quota, reservedSpace, admissionTimeout, contentStore, validate, journalInterval);
+    }
+
+    public ConverterConfig withQuota(final long quota) {
+        return new ConverterConfig(scratchRoots, quota, reservedSpace, admissionTimeout, contentStore, validate, journalInterval);
+    }
+
+    public ConverterConfig withReservedSpace(final long reservedSpace) {
+        return new ConverterConfig(scratchRoots, quota, reservedSpace, admissionTimeout, contentStore, validate, journalInterval);
+    }
+
+    public ConverterConfig withAdmissionTimeout(final Duration admissionTimeout) {
+        return new ConverterConfig(scratchRoots, quota, reservedSpace, admissionTimeout, contentStore, validate, journalInterval);
+    }
+
+    public ConverterConfig withContentStore(final ContentStore contentStore) {
+        return new ConverterConfig(scratchRoots, quota, reservedSpace, admissionTimeout, contentStore, validate, journalInterval);
+    }
+
+    public ConverterConfig withValidation(final boolean validate) {
+        return new ConverterConfig(scratchRoots, quota, reservedSpace, admissionTimeout, contentStore, validate, journalInterval);
+    }
+
+    public ConverterConfig withJournalInterval(final long journalInterval) {
+        return new ConverterConfig(scratchRoots, quota, reservedSpace, admissionTimeout, contentStore, validate, journalInterval);
+    }
+
+}
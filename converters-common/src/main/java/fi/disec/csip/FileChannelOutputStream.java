@@ -0,0 +1,111 @@
+package fi.disec.csip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a file through a direct buffer, so that the bytes are handed to the file channel without copying them
+ * into a temporary direct buffer on each write as a stream over a heap buffer does. Writes at least as large as
+ * the buffer bypass it. The file can be written under a temporary name and moved to its final name when the stream
+ * is closed, so the final name never holds a partial file.
+ */
+final class FileChannelOutputStream extends OutputStream {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path file;
+    private final Path target;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean closed;
+
+    /**
+     * Create or truncate the file
+     */
+    FileChannelOutputStream(final Path file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Create or truncate the file and move it atomically to the target when the stream is closed
+     *
+     * @param target The final name of the file, replaced if it exists, null to keep the file where it is
+     */
+    FileChannelOutputStream(final Path file, final Path target) throws IOException {
+        this.file = file;
+        this.target = target;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (len >= buffer.capacity()) {
+            drain();
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (len > buffer.remaining()) {
+            drain();
+        }
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (channel) {
+            drain();
+        }
+        if (target != null) {
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Close the stream without moving the file to its target and delete the file
+     */
+    void abandon() throws IOException {
+        try {
+            if (!closed) {
+                closed = true;
+                channel.close();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(final ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+}
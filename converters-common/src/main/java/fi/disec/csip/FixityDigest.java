@@ -0,0 +1,127 @@
+package fi.disec.csip;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes several checksums of the same bytes in one pass, so that a file is read once for all of its fixity
+ * values while it is copied or compressed. Not thread-safe, the bytes must be passed in order.
+ */
+final class FixityDigest {
+    private final List<String> algorithms;
+    private final List<MessageDigest> digests;
+    private long size;
+    private Map<String, String> checksums;
+
+    /**
+     * @param algorithms The names of the {@link MessageDigest} algorithms, e.g. SHA-256 and MD5
+     * @throws IllegalArgumentException If an algorithm is not available
+     */
+    FixityDigest(final Collection<String> algorithms) {
+        if (algorithms.isEmpty()) {
+            throw new IllegalArgumentException("At least one checksum algorithm is needed");
+        }
+        this.algorithms = List.copyOf(algorithms);
+        this.digests = new ArrayList<>(algorithms.size());
+        for (final var algorithm : this.algorithms) {
+            try {
+                digests.add(MessageDigest.getInstance(algorithm));
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unknown checksum algorithm " + algorithm, e);
+            }
+        }
+    }
+
+    void update(final byte[] bytes, final int offset, final int length) {
+        for (final var digest : digests) {
+            digest.update(bytes, offset, length);
+        }
+        size += length;
+    }
+
+    /**
+     * Update the checksums with the remaining bytes of the buffer without changing its position
+     */
+    void update(final ByteBuffer buffer) {
+        for (final var digest : digests) {
+            digest.update(buffer.duplicate());
+        }
+        size += buffer.remaining();
+    }
+
+    /**
+     * @return A stream that updates the checksums with everything written to out
+     */
+    OutputStream wrap(final OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                update(new byte[]{(byte) b}, 0, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                update(b, off, len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Complete this digest with the size and checksums computed earlier for the same bytes, e.g. by a previous
+     * attempt of a conversion that is being resumed
+     *
+     * @param checksums The checksums by algorithm, they must be those of this digest
+     */
+    void restore(final long size, final Map<String, String> checksums) {
+        if (!checksums.keySet().equals(Set.copyOf(algorithms))) {
+            throw new IllegalArgumentException("Expected checksums " + algorithms + " but got " + checksums.keySet());
+        }
+        this.size = size;
+        this.checksums = new LinkedHashMap<>();
+        for (final var algorithm : algorithms) {
+            this.checksums.put(algorithm, checksums.get(algorithm));
+        }
+    }
+
+    /**
+     * @return The names of the algorithms in the order of the checksums
+     */
+    List<String> algorithms() {
+        return algorithms;
+    }
+
+    /**
+     * @return The number of bytes digested
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return The checksums as upper case hex strings by algorithm, in the order the algorithms were given. No
+     * more bytes can be digested after this has been called.
+     */
+    Map<String, String> checksums() {
+        if (checksums == null) {
+            checksums = new LinkedHashMap<>();
+            for (var i = 0; i < algorithms.size(); i++) {
+                checksums.put(algorithms.get(i), HexFormat.of().withUpperCase().formatHex(digests.get(i).digest()));
+            }
+        }
+        return checksums;
+    }
+
+}
@@ -0,0 +1,15 @@
+package fi.disec.csip;
+
+/**
+ * Thrown when a conversion can't get or exceeds the temporary disk space it needs
+ *
+ * @see ConverterConfig
+ */
+public class InsufficientSpaceException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public InsufficientSpaceException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,58 @@
+package fi.disec.csip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the zipped packages in memory, e.g. for tests. A package is only kept once its stream has been closed.
+ */
+public final class MemoryOutputSink implements OutputSink {
+    private final Map<String, byte[]> packages = new ConcurrentHashMap<>();
+
+    @Override
+    public OutputStream open(final String name) {
+        return new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    packages.put(name, toByteArray());
+                }
+            }
+        };
+    }
+
+    @Override
+    public void discard(final String name) {
+        packages.remove(name);
+    }
+
+    /**
+     * Drop the package without closing its stream, so a package kept earlier with the same name is not replaced
+     */
+    @Override
+    public void abort(final String name, final OutputStream out) {
+    }
+
+    /**
+     * @return The zip file of the package, null if there is none
+     */
+    public byte[] get(final String name) {
+        return packages.get(name);
+    }
+
+    /**
+     * @return The names of the packages in name order
+     */
+    public Set<String> names() {
+        return new TreeSet<>(packages.keySet());
+    }
+
+}
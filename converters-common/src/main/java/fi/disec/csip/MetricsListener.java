@@ -0,0 +1,72 @@
+package fi.disec.csip;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Records completed conversions into a metrics library through two callbacks, shaped so that e.g. Micrometer
+ * can be plugged in without this library depending on it:
+ *
+ * <pre>{@code
+ * new MetricsListener("disec.conversion",
+ *         (name, duration, tags) -> Timer.builder(name).tags(tags).register(registry).record(duration),
+ *         (name, amount, tags) -> DistributionSummary.builder(name).tags(tags).register(registry).record(amount));
+ * }</pre>
+ *
+ * Each conversion records the timer {@code <prefix>} and the summary {@code <prefix>.temp.peak} tagged with the
+ * converter, and for each stage the timer {@code <prefix>.stage} and the summaries
+ * {@code <prefix>.stage.bytes.read}, {@code <prefix>.stage.bytes.written} and {@code <prefix>.stage.files}
+ * tagged with the converter and the stage.
+ */
+public final class MetricsListener implements ConversionListener {
+    private final String prefix;
+    private final Timer timer;
+    private final Summary summary;
+
+    /**
+     * @param prefix The prefix of the metric names
+     * @param timer Records durations
+     * @param summary Records amounts, like byte and file counts
+     */
+    public MetricsListener(final String prefix, final Timer timer, final Summary summary) {
+        this.prefix = prefix;
+        this.timer = timer;
+        this.summary = summary;
+    }
+
+    @Override
+    public void completed(final ConversionMetrics metrics) {
+        timer.record(prefix, metrics.elapsed(), "converter", metrics.converter());
+        summary.record(prefix + ".temp.peak", metrics.peakTempDiskUsage(), "converter", metrics.converter());
+        for (final var stage : metrics.stages()) {
+            final var tags = new String[]{"converter", metrics.converter(), "stage", stage.stage().name().toLowerCase(Locale.ROOT)};
+            timer.record(prefix + ".stage", stage.elapsed(), tags);
+            summary.record(prefix + ".stage.bytes.read", stage.bytesRead(), tags);
+            summary.record(prefix + ".stage.bytes.written", stage.bytesWritten(), tags);
+            summary.record(prefix + ".stage.files", stage.files(), tags);
+        }
+    }
+
+    /**
+     * Records a duration
+     */
+    @FunctionalInterface
+    public interface Timer {
+        /**
+         * @param tags Alternating tag keys and values
+         */
+        void record(String name, Duration duration, String... tags);
+    }
+
+    /**
+     * Records an amount
+     */
+    @FunctionalInterface
+    public interface Summary {
+        /**
+         * @param tags Alternating tag keys and values
+         */
+        void record(String name, double amount, String... tags);
+    }
+
+}
@@ -0,0 +1,344 @@
+package fi.disec.csip;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Rewrites selected attributes of a METS document in a single streaming pass, so that
+ * the document never has to be held in memory or written to disk twice.
+ */
+final class MetsPatcher {
+    static final String METS_NS = "http://www.loc.gov/METS/";
+    static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    static final String CSIP_NS = "https://DILCIS.eu/XML/METS/CSIPExtensionMETS";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newFactory();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final Map<String, Map<String, String>> files = new HashMap<>();
+    private final Map<String, String> header = new LinkedHashMap<>();
+    private final Map<String, List<String>> packages = new LinkedHashMap<>();
+
+    /**
+     * Replace the size and checksum of the file or metadata reference pointing to the given href
+     *
+     * @param href The package relative path of the file, e.g. submission/sip.zip
+     * @param size The actual size of the file in bytes
+     * @param checksum The checksum of the file as a hex string
+     * @param checksumType The METS CHECKSUMTYPE of the checksum, e.g. SHA-256
+     * @return this
+     */
+    MetsPatcher file(final String href, final long size, final String checksum, final String checksumType) {
+        final var attributes = new LinkedHashMap<String, String>();
+        attributes.put("SIZE", Long.toString(size));
+        attributes.put("CHECKSUM", checksum);
+        attributes.put("CHECKSUMTYPE", checksumType);
+        files.put(href, attributes);
+        return this;
+    }
+
+    /**
+     * Set the csip:OAISPACKAGETYPE of the metsHdr element
+     *
+     * @param packageType The package type, e.g. DIP
+     * @return this
+     */
+    MetsPatcher packageType(final String packageType) {
+        header.put(qualified(CSIP_NS, "OAISPACKAGETYPE"), packageType);
+        return this;
+    }
+
+    /**
+     * Add a structMap that points to the METS files of other packages, e.g. the parent or the children of a
+     * segmented AIP. The packages are expected next to this one, so each is referenced as ../id/METS.xml.
+     *
+     * @param label The LABEL of the structMap, e.g. Parent
+     * @param ids The OBJIDs of the packages
+     * @return this
+     */
+    MetsPatcher packages(final String label, final List<String> ids) {
+        packages.put(label, List.copyOf(ids));
+        return this;
+    }
+
+    /**
+     * Copy the METS document from in to out while applying the configured changes. Neither stream is closed.
+     */
+    void patch(final InputStream in, final OutputStream out) throws XMLStreamException {
+        final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        final XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        try {
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), reader.getVersion() == null ? "1.0" : reader.getVersion());
+            writer.writeCharacters("\n");
+            while (reader.hasNext()) {
+                final var event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT && isMets(reader, "file")) {
+                    writeFile(reader, writer);
+                } else if (event == XMLStreamConstants.START_ELEMENT && isMets(reader, "metsHdr")) {
+                    Tag.read(reader).write(writer, header);
+                } else if (event == XMLStreamConstants.START_ELEMENT && isMets(reader, "mdRef")) {
+                    final var tag = Tag.read(reader);
+                    tag.write(writer, files.get(href(tag)));
+                } else if (event == XMLStreamConstants.END_ELEMENT && isMets(reader, "mets")) {
+                    writePackages(writer);
+                    writer.writeEndElement();
+                } else {
+                    copy(event, reader, writer);
+                }
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the size and checksum of each file of a METS document, e.g. to keep them for files that are copied into
+     * a new version of the package as they are
+     *
+     * @return The fixity of the files by their decoded href, null values for a missing size or checksum
+     */
+    static Map<String, Fixity> files(final InputStream in) throws XMLStreamException {
+        final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            final Map<String, Fixity> files = new LinkedHashMap<>();
+            Fixity file = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if (isMets(reader, "file")) {
+                    final var size = reader.getAttributeValue(null, "SIZE");
+                    file = new Fixity(size == null ? null : Long.valueOf(size), reader.getAttributeValue(null, "CHECKSUM"), reader.getAttributeValue(null, "CHECKSUMTYPE"));
+                } else if (file != null && isMets(reader, "FLocat")) {
+                    final var href = reader.getAttributeValue(XLINK_NS, "href");
+                    if (href != null) {
+                        files.put(URLDecoder.decode(href.replace("+", "%2B"), StandardCharsets.UTF_8), file);
+                    }
+                    file = null;
+                }
+            }
+            return files;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A mets:file element carries its href in a nested FLocat element, so the element is
+     * buffered until its end before deciding whether its attributes need to be replaced.
+     */
+    private void writeFile(final XMLStreamReader reader, final XMLStreamWriter writer) throws XMLStreamException {
+        final var file = Tag.read(reader);
+        final List<Object> buffer = new ArrayList<>();
+        Map<String, String> replacements = null;
+        var depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            final var event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                final var tag = Tag.read(reader);
+                if (replacements == null && isMets(reader, "FLocat")) {
+                    replacements = files.get(href(tag));
+                }
+                buffer.add(tag);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                buffer.add(Boolean.FALSE);
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE || event == XMLStreamConstants.CDATA) {
+                buffer.add(reader.getText());
+            }
+        }
+        file.write(writer, replacements);
+        for (final var item : buffer) {
+            if (item instanceof Tag tag) {
+                tag.write(writer, null);
+            } else if (item instanceof String text) {
+                writer.writeCharacters(text);
+            } else {
+                writer.writeEndElement();
+            }
+        }
+    }
+
+    /**
+     * The structMaps are the last elements the METS schema allows besides structLink and behaviorSec, which
+     * commons-ip does not write
+     */
+    private void writePackages(final XMLStreamWriter writer) throws XMLStreamException {
+        for (final var structMap : packages.entrySet()) {
+            final var mets = prefix(writer, METS_NS, "mets");
+            writer.writeStartElement(mets, "structMap", METS_NS);
+            if (writer.getNamespaceContext().getPrefix(METS_NS) == null) {
+                writer.writeNamespace(mets, METS_NS);
+            }
+            writer.writeAttribute("ID", id());
+            writer.writeAttribute("TYPE", "logical");
+            writer.writeAttribute("LABEL", structMap.getKey());
+            writer.writeStartElement(mets, "div", METS_NS);
+            writer.writeAttribute("ID", id());
+            writer.writeAttribute("LABEL", structMap.getKey());
+            for (final var id : structMap.getValue()) {
+                writer.writeStartElement(mets, "div", METS_NS);
+                writer.writeAttribute("ID", id());
+                writer.writeAttribute("LABEL", id);
+                final var xlink = prefix(writer, XLINK_NS, "xlink");
+                writer.writeEmptyElement(mets, "mptr", METS_NS);
+                if (writer.getNamespaceContext().getPrefix(XLINK_NS) == null) {
+                    writer.writeNamespace(xlink, XLINK_NS);
+                }
+                writer.writeAttribute(xlink, XLINK_NS, "type", "simple");
+                writer.writeAttribute(xlink, XLINK_NS, "href", "../" + id + "/METS.xml");
+                writer.writeAttribute(xlink, XLINK_NS, "title", id);
+                writer.writeAttribute("LOCTYPE", "URL");
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+    }
+
+    private static String prefix(final XMLStreamWriter writer, final String namespace, final String fallback) {
+        final var prefix = writer.getNamespaceContext().getPrefix(namespace);
+        return prefix == null ? fallback : prefix;
+    }
+
+    private static String id() {
+        return "uuid-" + UUID.randomUUID().toString().toUpperCase(Locale.ROOT);
+    }
+
+    private String href(final Tag tag) {
+        final var value = tag.attribute(XLINK_NS, "href");
+        if (value == null || files.containsKey(value)) {
+            return value;
+        }
+        return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    static void copy(final int event, final XMLStreamReader reader, final XMLStreamWriter writer) throws XMLStreamException {
+        switch (event) {
+            case XMLStreamConstants.START_ELEMENT -> Tag.read(reader).write(writer, null);
+            case XMLStreamConstants.END_ELEMENT -> writer.writeEndElement();
+            case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE -> writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            case XMLStreamConstants.CDATA -> writer.writeCData(reader.getText());
+            case XMLStreamConstants.COMMENT -> writer.writeComment(reader.getText());
+            case XMLStreamConstants.PROCESSING_INSTRUCTION -> writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+            case XMLStreamConstants.END_DOCUMENT -> writer.writeEndDocument();
+            default -> {
+                // The XML declaration is written up front and DTDs are not supported in METS
+            }
+        }
+    }
+
+    private static boolean isMets(final XMLStreamReader reader, final String localName) {
+        return METS_NS.equals(reader.getNamespaceURI()) && localName.equals(reader.getLocalName());
+    }
+
+    /**
+     * @return The attribute name in Clark notation, which is how namespaced attributes are keyed in replacements
+     */
+    private static String qualified(final String namespace, final String localName) {
+        return "{" + namespace + "}" + localName;
+    }
+
+    /**
+     * commons-ip writes checksums in upper case, keep whatever case the original document used
+     */
+    private static String matchCase(final String original, final String replacement) {
+        return original.equals(original.toLowerCase()) && !original.equals(original.toUpperCase()) ? replacement.toLowerCase() : replacement.toUpperCase();
+    }
+
+    /**
+     * The size and checksum of a file as recorded in a METS document
+     */
+    record Fixity(Long size, String checksum, String checksumType) {
+    }
+
+    /**
+     * A start tag with its namespace declarations and attributes in document order
+     */
+    private record Tag(String prefix, String namespace, String localName, List<String[]> namespaces, List<String[]> attributes) {
+
+        static Tag read(final XMLStreamReader reader) {
+            final List<String[]> namespaces = new ArrayList<>(reader.getNamespaceCount());
+            for (var i = 0; i < reader.getNamespaceCount(); i++) {
+                namespaces.add(new String[]{reader.getNamespacePrefix(i), reader.getNamespaceURI(i)});
+            }
+            final List<String[]> attributes = new ArrayList<>(reader.getAttributeCount());
+            for (var i = 0; i < reader.getAttributeCount(); i++) {
+                attributes.add(new String[]{reader.getAttributePrefix(i), reader.getAttributeNamespace(i), reader.getAttributeLocalName(i), reader.getAttributeValue(i)});
+            }
+            return new Tag(reader.getPrefix(), reader.getNamespaceURI(), reader.getLocalName(), namespaces, attributes);
+        }
+
+        String attribute(final String namespace, final String localName) {
+            for (final var attribute : attributes) {
+                if (namespace.equals(attribute[1]) && localName.equals(attribute[2])) {
+                    return attribute[3];
+                }
+            }
+            return null;
+        }
+
+        void write(final XMLStreamWriter writer, final Map<String, String> replacements) throws XMLStreamException {
+            if (namespace == null || namespace.isEmpty()) {
+                writer.writeStartElement(localName);
+            } else {
+                writer.writeStartElement(prefix == null ? "" : prefix, localName, namespace);
+            }
+            for (final var ns : namespaces) {
+                if (ns[0] == null || ns[0].isEmpty()) {
+                    writer.writeDefaultNamespace(ns[1]);
+                } else {
+                    writer.writeNamespace(ns[0], ns[1]);
+                }
+            }
+            final var remaining = replacements == null ? Map.<String, String>of() : new LinkedHashMap<>(replacements);
+            for (final var attribute : attributes) {
+                if (attribute[1] == null || attribute[1].isEmpty()) {
+                    final var replacement = remaining.isEmpty() ? null : remaining.remove(attribute[2]);
+                    final var value = replacement == null ? attribute[3] : "CHECKSUM".equals(attribute[2]) ? matchCase(attribute[3], replacement) : replacement;
+                    writer.writeAttribute(attribute[2], value);
+                } else {
+                    final var replacement = remaining.isEmpty() ? null : remaining.remove(qualified(attribute[1], attribute[2]));
+                    writer.writeAttribute(attribute[0] == null ? "" : attribute[0], attribute[1], attribute[2], replacement == null ? attribute[3] : replacement);
+                }
+            }
+            for (final var attribute : remaining.entrySet()) {
+                final var name = attribute.getKey();
+                if (name.startsWith("{")) {
+                    final var namespace = name.substring(1, name.indexOf('}'));
+                    final var prefix = writer.getNamespaceContext().getPrefix(namespace);
+                    writer.writeAttribute(prefix == null ? "csip" : prefix, namespace, name.substring(name.indexOf('}') + 1), attribute.getValue());
+                    if (prefix == null) {
+                        writer.writeNamespace("csip", namespace);
+                    }
+                } else {
+                    writer.writeAttribute(name, attribute.getValue());
+                }
+            }
+        }
+    }
+
+}
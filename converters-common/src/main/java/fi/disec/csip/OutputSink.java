@@ -0,0 +1,146 @@
+package fi.disec.csip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Where zipped packages are written to, e.g. a directory, memory or an object store
+ *
+ * @see MemoryOutputSink
+ * @see S3OutputSink
+ */
+public interface OutputSink {
+
+    /**
+     * @param name The name of the input package without a .zip extension
+     * @return The stream the converted package is written to. The caller closes it to publish the package, or
+     * passes it to {@link #abort(String, OutputStream)} when writing the package fails.
+     */
+    OutputStream open(String name) throws IOException;
+
+    /**
+     * Called after the stream of a package has been closed when its conversion failed, so that partial output
+     * can be removed
+     */
+    default void discard(final String name) throws IOException {
+    }
+
+    /**
+     * Called instead of closing the stream of a package when writing the package failed. By default the stream
+     * is closed and the package discarded, sinks that would publish a package when its stream is closed override
+     * this so that a partial package is never published.
+     */
+    default void abort(final String name, final OutputStream out) throws IOException {
+        try {
+            out.close();
+        } finally {
+            discard(name);
+        }
+    }
+
+    /**
+     * Write a package with the given writer into the stream opened for it and close the stream. The stream is
+     * aborted instead when writing or closing it fails.
+     *
+     * @return The result of the writer
+     */
+    default <T> T write(final String name, final PackageWriter<T> writer) {
+        OutputStream out = null;
+        try {
+            out = open(name);
+            final var target = out;
+            // The writer can close its stream before failing, e.g. when a zip is abandoned, which must not publish it
+            final T result = writer.write(new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    target.write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    target.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    target.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    target.flush();
+                }
+            });
+            out.close();
+            return result;
+        } catch (final IOException | RuntimeException e) {
+            if (out != null) {
+                try {
+                    abort(name, out);
+                } catch (final IOException abortException) {
+                    e.addSuppressed(abortException);
+                }
+            }
+            if (e instanceof IOException io) {
+                throw new UncheckedIOException(io);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Write each package into a zip file named after the input package in the given directory, through a direct
+     * buffer into a file channel. The package is written to a .zip.part file that is moved to the .zip file once it
+     * is complete, so a failed package leaves a zip file of an earlier run as it is and a partial zip file is never
+     * seen under the final name.
+     */
+    static OutputSink directory(final Path directory) {
+        return new OutputSink() {
+            @Override
+            public OutputStream open(final String name) throws IOException {
+                Files.createDirectories(directory);
+                return new FileChannelOutputStream(part(name), directory.resolve(name + ".zip"));
+            }
+
+            @Override
+            public void discard(final String name) throws IOException {
+                Files.deleteIfExists(part(name));
+            }
+
+            /**
+             * Close the stream without moving the part file to the zip file and delete it
+             */
+            @Override
+            public void abort(final String name, final OutputStream out) throws IOException {
+                ((FileChannelOutputStream) out).abandon();
+            }
+
+            private Path part(final String name) {
+                return directory.resolve(name + ".zip.part");
+            }
+        };
+    }
+
+    /**
+     * Write each package into memory
+     */
+    static MemoryOutputSink memory() {
+        return new MemoryOutputSink();
+    }
+
+    /**
+     * Writes a package into the stream of a sink
+     */
+    @FunctionalInterface
+    interface PackageWriter<T> {
+        /**
+         * @param out The stream of the package, closing it only flushes it, the sink closes or aborts it once the
+         * writer has returned
+         */
+        T write(OutputStream out) throws IOException;
+    }
+
+}
@@ -0,0 +1,558 @@
+package fi.disec.csip;
+
+import org.roda_project.commons_ip2.model.IPConstants;
+import org.roda_project.commons_ip2.model.impl.eark.EARKSIP;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Validates a package while its zip file is written, so that it does not have to be read again afterwards. The
+ * zip writer passes every entry once it has been written, with the fixity computed by the same read of the file
+ * that compressed it. Each METS file is parsed and checked against the METS schema on a pool of worker threads
+ * while the following entries are compressed, and once all entries have been written the folder structure and
+ * the size, checksum and presence of every file that the METS files reference are checked. Only a subset of the
+ * CSIP requirements is checked, those about the structure of the package and the references of its METS files.
+ */
+final class PackageValidator {
+    static final String ALGORITHM = "SHA-256";
+    private static final String METS_FILENAME = "METS.xml";
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, new ThreadFactory());
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newFactory();
+    private static volatile Schema metsSchema;
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final String packageType;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final List<Future<Mets>> mets = new ArrayList<>();
+    private final List<Future<List<String>>> schemaIssues = new ArrayList<>();
+
+    /**
+     * @param packageType The expected OAIS package type of the package, e.g. AIP
+     */
+    PackageValidator(final String packageType) {
+        this.packageType = packageType;
+    }
+
+    /**
+     * @return A digest the writer computes the fixity of an entry with
+     */
+    FixityDigest digest() {
+        return new FixityDigest(List.of(ALGORITHM));
+    }
+
+    /**
+     * @return Whether the content of a generated entry has to be passed to {@link #content(String, byte[], FixityDigest)}
+     */
+    boolean captures(final String name) {
+        return isMets(name);
+    }
+
+    /**
+     * Record an entry written from a file, a METS file is read again from the file to be checked
+     *
+     * @param file The file, null for an entry copied from another zip file, which is then not read again
+     * @param digest The complete fixity of the entry, null if it is not known
+     */
+    void file(final String name, final Path file, final long size, final FixityDigest digest) {
+        written(name, size, digest, file == null ? null : () -> Files.newInputStream(file));
+    }
+
+    /**
+     * Record a generated entry
+     *
+     * @param content The content of the entry if it was {@link #captures(String) captured}, otherwise null
+     */
+    void content(final String name, final byte[] content, final FixityDigest digest) {
+        written(name, digest.size(), digest, content == null ? null : () -> new ByteArrayInputStream(content));
+    }
+
+    private void written(final String name, final long size, final FixityDigest digest, final Source source) {
+        final var entryName = name.replace('\\', '/');
+        entries.put(entryName, new Entry(size, digest == null ? Map.of() : digest.checksums()));
+        if (source != null && isMets(entryName)) {
+            // The structure and the schema conformance are independent, so they are checked at the same time
+            mets.add(POOL.submit(() -> {
+                try (final var in = source.open()) {
+                    return Mets.read(entryName, in);
+                }
+            }));
+            schemaIssues.add(POOL.submit(schemaCheck(entryName, source)));
+        }
+    }
+
+    /**
+     * Wait for the checks of the METS files and check the package as a whole, once all entries have been written
+     *
+     * @param path The zip file of the package, null if it was written to a stream
+     */
+    ValidationReport report(final Path path) {
+        final var results = new EnumMap<Check, Result>(Check.class);
+        for (final var check : Check.values()) {
+            results.put(check, new Result());
+        }
+        final List<Mets> documents = new ArrayList<>();
+        for (final var future : mets) {
+            try {
+                documents.add(await(future));
+            } catch (final ExecutionException e) {
+                results.get(Check.CSIP0).fail("Could not parse METS file: " + e.getCause().getMessage());
+            }
+        }
+        for (final var future : schemaIssues) {
+            try {
+                final var issues = await(future);
+                results.get(Check.CSIP0).checked();
+                issues.forEach(results.get(Check.CSIP0)::fail);
+            } catch (final ExecutionException e) {
+                results.get(Check.CSIP0).note("METS schema not checked: " + e.getCause().getMessage());
+            }
+        }
+        checkStructure(documents, results);
+        for (final var document : documents) {
+            checkMets(document, results);
+        }
+        final List<ValidationReport.Requirement> requirements = new ArrayList<>();
+        results.forEach((check, result) -> requirements.add(result.requirement(check)));
+        return new ValidationReport(path, OffsetDateTime.now(), requirements);
+    }
+
+    private void checkStructure(final List<Mets> documents, final Map<Check, Result> results) {
+        final Set<String> roots = new TreeSet<>();
+        entries.keySet().forEach(name -> roots.add(name.contains("/") ? name.substring(0, name.indexOf('/')) : ""));
+        results.get(Check.CSIPSTR1).checked();
+        if (roots.size() != 1 || roots.contains("")) {
+            results.get(Check.CSIPSTR1).fail("The package has " + roots.size() + " root folders instead of one: " + roots);
+            return;
+        }
+        final var root = roots.iterator().next() + "/";
+        final var rootMets = documents.stream().filter(document -> document.name().equals(root + METS_FILENAME)).findFirst();
+        results.get(Check.CSIPSTR4).checked();
+        if (!entries.containsKey(root + METS_FILENAME)) {
+            results.get(Check.CSIPSTR4).fail("The root folder has no " + METS_FILENAME);
+        }
+        if (rootMets.isPresent()) {
+            results.get(Check.CSIPSTR2).checked();
+            if (!root.equals(rootMets.get().objectId() + "/")) {
+                results.get(Check.CSIPSTR2).fail("The root folder " + root + " is not named with the OBJID " + rootMets.get().objectId());
+            }
+        }
+        checkFolder(results.get(Check.CSIPSTR5), root + IPConstants.METADATA + "/");
+        checkFolder(results.get(Check.CSIPSTR9), root + IPConstants.REPRESENTATIONS + "/");
+        checkFolder(results.get(Check.CSIPSTR15), root + IPConstants.SCHEMAS + "/");
+        final Set<String> representations = new TreeSet<>();
+        entries.keySet().stream()
+                .filter(name -> name.startsWith(root + IPConstants.REPRESENTATIONS + "/") && name.split("/").length > 3)
+                .forEach(name -> representations.add(name.split("/")[2]));
+        for (final var representation : representations) {
+            final var representationMets = root + IPConstants.REPRESENTATIONS + "/" + representation + "/" + METS_FILENAME;
+            results.get(Check.CSIPSTR12).checked();
+            if (!entries.containsKey(representationMets)) {
+                results.get(Check.CSIPSTR12).fail("The representation " + representation + " has no " + METS_FILENAME);
+            }
+            // Every representation METS is pointed to by the package METS
+            if (rootMets.isPresent() && entries.containsKey(representationMets)) {
+                results.get(Check.CSIP109).checked();
+                if (rootMets.get().references().stream().noneMatch(reference -> reference.kind() == Kind.MPTR && (root + reference.href()).equals(representationMets))) {
+                    results.get(Check.CSIP109).fail("No METS pointer to " + representationMets);
+                }
+            }
+        }
+    }
+
+    private void checkFolder(final Result result, final String folder) {
+        result.checked();
+        if (entries.keySet().stream().noneMatch(name -> name.startsWith(folder))) {
+            result.fail("The package has no folder " + folder);
+        }
+    }
+
+    private void checkMets(final Mets document, final Map<Check, Result> results) {
+        final var name = document.name();
+        final var folder = name.substring(0, name.length() - METS_FILENAME.length());
+        final var root = folder.indexOf('/') == folder.length() - 1;
+        results.get(Check.CSIP1).checked();
+        if (document.objectId() == null || document.objectId().isBlank()) {
+            results.get(Check.CSIP1).fail(name + " has no OBJID");
+        }
+        if (root) {
+            results.get(Check.CSIP117).checked();
+            if (!document.header()) {
+                results.get(Check.CSIP117).fail(name + " has no metsHdr");
+            }
+            results.get(Check.CSIP9).checked();
+            if (!packageType.equals(document.packageType())) {
+                results.get(Check.CSIP9).fail(name + " has the OAIS package type " + document.packageType() + " instead of " + packageType);
+            }
+        }
+        results.get(Check.CSIP58).checked();
+        if (document.fileSections() > 1) {
+            results.get(Check.CSIP58).fail(name + " has " + document.fileSections() + " file sections");
+        }
+        results.get(Check.CSIP80).checked();
+        if (document.csipStructMaps() != 1) {
+            results.get(Check.CSIP80).fail(name + " has " + document.csipStructMaps() + " structMaps with the LABEL CSIP instead of one");
+        }
+        for (final var reference : document.references()) {
+            final var checks = reference.kind().checks;
+            if (checks.length == 0) {
+                continue;
+            }
+            final var href = folder + reference.href();
+            final var entry = entries.get(href);
+            results.get(checks[0]).checked();
+            if (entry == null) {
+                results.get(checks[0]).fail(name + " references " + reference.href() + " which is not in the package");
+                continue;
+            }
+            if (checks.length > 1) {
+                checkFixity(name, reference, entry, results.get(checks[1]), results.get(checks[2]));
+            }
+        }
+    }
+
+    private static void checkFixity(final String name, final Reference reference, final Entry entry, final Result size, final Result checksum) {
+        size.checked();
+        if (reference.size() == null) {
+            size.fail(name + " has no SIZE for " + reference.href());
+        } else if (!reference.size().equals(Long.toString(entry.size()))) {
+            size.fail(name + " has the SIZE " + reference.size() + " for " + reference.href() + " which has " + entry.size() + " bytes");
+        }
+        checksum.checked();
+        if (reference.checksum() == null) {
+            checksum.fail(name + " has no CHECKSUM for " + reference.href());
+            return;
+        }
+        final var actual = entry.checksums().get(reference.checksumType());
+        if (actual == null) {
+            checksum.note("The " + reference.checksumType() + " checksum of " + reference.href() + " was not computed");
+        } else if (!actual.equalsIgnoreCase(reference.checksum())) {
+            checksum.fail(name + " has the " + reference.checksumType() + " checksum " + reference.checksum() + " for " + reference.href() + " which has " + actual);
+        }
+    }
+
+    private static Callable<List<String>> schemaCheck(final String name, final Source source) {
+        return () -> {
+            final var schema = metsSchema();
+            final List<String> issues = new ArrayList<>();
+            final var validator = schema.newValidator();
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+            validator.setErrorHandler(new ErrorHandler() {
+                @Override
+                public void warning(final SAXParseException exception) {
+                }
+
+                @Override
+                public void error(final SAXParseException exception) {
+                    issues.add(name + " line " + exception.getLineNumber() + ": " + exception.getMessage());
+                }
+
+                @Override
+                public void fatalError(final SAXParseException exception) throws SAXException {
+                    throw exception;
+                }
+            });
+            try (final var in = source.open()) {
+                validator.validate(new StreamSource(in));
+            } catch (final SAXParseException e) {
+                issues.add(name + " line " + e.getLineNumber() + ": " + e.getMessage());
+            }
+            return issues;
+        };
+    }
+
+    /**
+     * @return The METS schema of commons-ip, compiled once as a compiled schema can be shared by threads
+     */
+    private static Schema metsSchema() throws SAXException {
+        if (metsSchema == null) {
+            synchronized (PackageValidator.class) {
+                if (metsSchema == null) {
+                    final var resource = EARKSIP.class.getResource(IPConstants.SCHEMA_METS_RELATIVE_PATH_FROM_RESOURCES);
+                    if (resource == null) {
+                        throw new SAXException("Could not find the METS schema " + IPConstants.SCHEMA_METS_RELATIVE_PATH_FROM_RESOURCES);
+                    }
+                    final var factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                    // The imported schemas are next to the METS schema on the classpath, nothing is downloaded
+                    factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+                    factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "file,jar:file");
+                    metsSchema = factory.newSchema(resource);
+                }
+            }
+        }
+        return metsSchema;
+    }
+
+    private static <T> T await(final Future<T> future) throws ExecutionException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while validating"));
+        }
+    }
+
+    /**
+     * @return Whether the entry is the METS file of the package or of a representation
+     */
+    private static boolean isMets(final String name) {
+        final var segments = name.replace('\\', '/').split("/");
+        return segments[segments.length - 1].equals(METS_FILENAME)
+                && (segments.length == 2 || segments.length == 4 && segments[1].equals(IPConstants.REPRESENTATIONS));
+    }
+
+    /**
+     * The requirements that are checked, the texts are those of the CSIP specification
+     */
+    private enum Check {
+        CSIPSTR1("CSIP Information Package folder structure", "", "Any Information Package MUST be included within a single physical root folder (known as the \"Information Package root folder\"). For packages presented in an archive format, see CSIPSTR3, the archive MUST unpack to a single root folder.", "", ValidationReport.Level.MUST),
+        CSIPSTR2("CSIP Information Package folder structure", "", "The Information Package root folder SHOULD be named with the ID or name of the Information Package, that is the value of the package METS.xml's root <mets> element's @OBJID attribute.", "", ValidationReport.Level.SHOULD),
+        CSIPSTR4("CSIP Information Package folder structure", "", "The Information Package root folder MUST include a file named METS.xml. This file MUST contain metadata that identifies the package, provides a high-level package description, and describes its structure, including pointers to constituent representations.", "", ValidationReport.Level.MUST),
+        CSIPSTR5("CSIP Information Package folder structure", "", "The Information Package root folder SHOULD include a folder named metadata, which SHOULD include metadata relevant to the whole package.", "", ValidationReport.Level.SHOULD),
+        CSIPSTR9("CSIP Information Package folder structure", "", "The Information Package folder SHOULD include a folder named representations.", "", ValidationReport.Level.SHOULD),
+        CSIPSTR12("CSIP Information Package folder structure", "", "The representation folder SHOULD include a metadata file named METS.xml which includes information about the identity and structure of the representation and its components. The recommended best practice is to always have a METS.xml in the representation folder.", "", ValidationReport.Level.SHOULD),
+        CSIPSTR15("CSIP Information Package folder structure", "", "We recommend including all XML schema documents for any structured metadata within package. These schema documents SHOULD be placed in a sub-folder called schemas within the Information Package root folder and/or the representation folder.", "", ValidationReport.Level.SHOULD),
+        CSIP0("METS Schema", "", "Validation of METS Schema", "", ValidationReport.Level.MUST),
+        CSIP1("Package Identifier", "mets/@OBJID", "The mets/@OBJID attribute is mandatory, its value is a string identifier for the METS document.", "1..1", ValidationReport.Level.MUST),
+        CSIP9("OAIS Package type information", "mets/metsHdr/@csip:OAISPACKAGETYPE", "mets/metsHdr/@csip:OAISPACKAGETYPE is an additional CSIP attribute that declares the type of the IP.", "1..1", ValidationReport.Level.MUST),
+        CSIP24("Resource location", "mets/dmdSec/mdRef/@xlink:href", "The actual location of the resource. This specification recommends recording a URL type filepath in this attribute.", "1..1", ValidationReport.Level.MUST),
+        CSIP27("File size", "mets/dmdSec/mdRef/@SIZE", "Size of the referenced file in bytes.", "1..1", ValidationReport.Level.MUST),
+        CSIP29("File checksum", "mets/dmdSec/mdRef/@CHECKSUM", "The checksum of the referenced file.", "1..1", ValidationReport.Level.MUST),
+        CSIP38("Resource location", "mets/amdSec/digiprovMD/mdRef/@xlink:href", "The actual location of the resource. This specification recommends recording a URL type filepath within this attribute.", "1..1", ValidationReport.Level.MUST),
+        CSIP41("File size", "mets/amdSec/digiprovMD/mdRef/@SIZE", "Size of the referenced file in bytes.", "1..1", ValidationReport.Level.MUST),
+        CSIP43("File checksum", "mets/amdSec/digiprovMD/mdRef/@CHECKSUM", "The checksum of the referenced file.", "1..1", ValidationReport.Level.MUST),
+        CSIP51("Resource location", "mets/amdSec/rightsMD/mdRef/@xlink:href", "The actual location of the resource. This specification recommends recording a URL type filepath within this attribute.", "1..1", ValidationReport.Level.MUST),
+        CSIP54("File size", "mets/amdSec/rightsMD/mdRef/@SIZE", "Size of the referenced file in bytes.", "1..1", ValidationReport.Level.MUST),
+        CSIP56("File checksum", "mets/amdSec/rightsMD/mdRef/@CHECKSUM", "The checksum of the referenced file.", "1..1", ValidationReport.Level.MUST),
+        CSIP58("File section", "mets/fileSec", "Only a single file section ( <fileSec> ) element should be present.", "0..1", ValidationReport.Level.SHOULD),
+        CSIP69("File size", "mets/fileSec/fileGrp/file/@SIZE", "Size of the referenced file in bytes.", "1..1", ValidationReport.Level.MUST),
+        CSIP71("File checksum", "mets/fileSec/fileGrp/file/@CHECKSUM", "The checksum of the referenced file.", "1..1", ValidationReport.Level.MUST),
+        CSIP79("Resource location", "mets/fileSec/fileGrp/file/FLocat/@xlink:href", "The actual location of the resource. We recommend recording a URL type filepath within this attribute.", "1..1", ValidationReport.Level.MUST),
+        CSIP80("Structural description of the package", "mets/structMap", "Each METS file must include ONE structural map <structMap> element used exactly as described here.", "1..n", ValidationReport.Level.MUST),
+        CSIP109("Representation METS pointer", "mets/structMap[@LABEL='CSIP']/div/div/mptr", "The division <div> of the specific representation includes one occurrence of the METS pointer <mptr> element, pointing to the appropriate representation METS file.", "1..1", ValidationReport.Level.MUST),
+        CSIP110("Resource location", "mets/structMap/div/div/mptr/@xlink:href", "The actual location of the resource. We recommend recording a URL type filepath within this attribute.", "1..1", ValidationReport.Level.MUST),
+        CSIP117("Package header", "mets/metsHdr", "General element for describing the package.", "1..1", ValidationReport.Level.MUST);
+
+        private final String title;
+        private final String location;
+        private final String description;
+        private final String cardinality;
+        private final ValidationReport.Level level;
+
+        Check(final String title, final String location, final String description, final String cardinality, final ValidationReport.Level level) {
+            this.title = title;
+            this.location = location;
+            this.description = description;
+            this.cardinality = cardinality;
+            this.level = level;
+        }
+    }
+
+    /**
+     * What a METS reference points to, with the checks of its location, size and checksum
+     */
+    private enum Kind {
+        FILE(Check.CSIP79, Check.CSIP69, Check.CSIP71),
+        DESCRIPTIVE(Check.CSIP24, Check.CSIP27, Check.CSIP29),
+        PROVENANCE(Check.CSIP38, Check.CSIP41, Check.CSIP43),
+        RIGHTS(Check.CSIP51, Check.CSIP54, Check.CSIP56),
+        MPTR(Check.CSIP110),
+        OTHER;
+
+        private final Check[] checks;
+
+        Kind(final Check... checks) {
+            this.checks = checks;
+        }
+    }
+
+    /**
+     * The findings for one requirement, collected over all METS files
+     */
+    private static final class Result {
+        private final List<String> failures = new ArrayList<>();
+        private final List<String> notes = new ArrayList<>();
+        private boolean checked;
+
+        void checked() {
+            checked = true;
+        }
+
+        void fail(final String failure) {
+            checked = true;
+            failures.add(failure);
+        }
+
+        void note(final String note) {
+            notes.add(note);
+        }
+
+        ValidationReport.Requirement requirement(final Check check) {
+            final var must = check.level == ValidationReport.Level.MUST;
+            final ValidationReport.Outcome outcome;
+            final List<String> messages;
+            if (!checked) {
+                outcome = ValidationReport.Outcome.SKIPPED;
+                messages = List.of("SKIPPED because the package has nothing to check for " + check.location);
+            } else if (failures.isEmpty()) {
+                outcome = ValidationReport.Outcome.PASSED;
+                messages = List.of();
+            } else {
+                outcome = ValidationReport.Outcome.FAILED;
+                messages = failures;
+            }
+            return new ValidationReport.Requirement(check.name(), check.title, check.location, check.description, check.cardinality, check.level, outcome,
+                    must ? messages : List.of(), must ? List.of() : messages, notes);
+        }
+    }
+
+    /**
+     * The size and fixity of a written entry
+     */
+    private record Entry(long size, Map<String, String> checksums) {
+    }
+
+    /**
+     * A reference of a METS file to another file of the package
+     *
+     * @param href The path relative to the folder of the METS file
+     */
+    private record Reference(Kind kind, String href, String size, String checksum, String checksumType) {
+    }
+
+    /**
+     * The parts of a METS file that are checked
+     */
+    private record Mets(String name, String objectId, boolean header, String packageType, int fileSections, int csipStructMaps, Collection<Reference> references) {
+
+        static Mets read(final String name, final InputStream in) throws XMLStreamException {
+            final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                String objectId = null;
+                var header = false;
+                String packageType = null;
+                var fileSections = 0;
+                var csipStructMaps = 0;
+                final List<Reference> references = new ArrayList<>();
+                var section = Kind.OTHER;
+                Map<String, String> file = null;
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT || !MetsPatcher.METS_NS.equals(reader.getNamespaceURI())) {
+                        continue;
+                    }
+                    switch (reader.getLocalName()) {
+                        case "mets" -> objectId = reader.getAttributeValue(null, "OBJID");
+                        case "metsHdr" -> {
+                            header = true;
+                            packageType = reader.getAttributeValue(MetsPatcher.CSIP_NS, "OAISPACKAGETYPE");
+                        }
+                        case "fileSec" -> fileSections++;
+                        case "structMap" -> csipStructMaps += "CSIP".equals(reader.getAttributeValue(null, "LABEL")) ? 1 : 0;
+                        case "dmdSec" -> section = Kind.DESCRIPTIVE;
+                        case "digiprovMD" -> section = Kind.PROVENANCE;
+                        case "rightsMD" -> section = Kind.RIGHTS;
+                        case "techMD", "sourceMD" -> section = Kind.OTHER;
+                        case "mdRef" -> references.add(reference(reader, section, attributes(reader)));
+                        case "file" -> file = attributes(reader);
+                        case "FLocat" -> {
+                            if (file != null) {
+                                references.add(reference(reader, Kind.FILE, file));
+                                file = null;
+                            }
+                        }
+                        case "mptr" -> {
+                            final var reference = reference(reader, Kind.MPTR, Map.of());
+                            // A pointer to the METS file of another package, e.g. the parent of a child AIP
+                            if (!reference.href().startsWith("../")) {
+                                references.add(reference);
+                            }
+                        }
+                        default -> {
+                            // Not checked
+                        }
+                    }
+                }
+                return new Mets(name, objectId, header, packageType, fileSections, csipStructMaps, references);
+            } finally {
+                reader.close();
+            }
+        }
+
+        private static Map<String, String> attributes(final XMLStreamReader reader) {
+            final Map<String, String> attributes = new LinkedHashMap<>();
+            for (final var attribute : List.of("SIZE", "CHECKSUM", "CHECKSUMTYPE")) {
+                final var value = reader.getAttributeValue(null, attribute);
+                if (value != null) {
+                    attributes.put(attribute, value);
+                }
+            }
+            return attributes;
+        }
+
+        private static Reference reference(final XMLStreamReader reader, final Kind kind, final Map<String, String> attributes) {
+            final var href = reader.getAttributeValue(MetsPatcher.XLINK_NS, "href");
+            return new Reference(kind, href == null ? "" : URLDecoder.decode(href.replace("+", "%2B"), StandardCharsets.UTF_8),
+                    attributes.get("SIZE"), attributes.get("CHECKSUM"), attributes.get("CHECKSUMTYPE"));
+        }
+    }
+
+    /**
+     * Opens the content of an entry again
+     */
+    @FunctionalInterface
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private static final class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final var thread = new Thread(runnable, "package-validator-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
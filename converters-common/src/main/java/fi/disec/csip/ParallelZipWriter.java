@@ -0,0 +1,816 @@
+package fi.disec.csip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file while compressing its entries on a pool of worker threads. Large files are split into
+ * chunks that are deflated independently, using the end of the previous chunk as the dictionary, so a single
+ * big file is also compressed on all cores. The entries are written in the order they were added and the
+ * number of compressed chunks and of entries waiting to be written is bounded, so adding millions of small files
+ * does not keep them all in memory.
+ */
+final class ParallelZipWriter implements Closeable {
+    static final int CHUNK_SIZE = 1 << 20;
+    private static final int STORED_CHUNK_SIZE = 64 * CHUNK_SIZE;
+    private static final int DICTIONARY_SIZE = 1 << 15;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Stored and copied entries hold no compressed chunk, so they are only bounded by their number
+     */
+    private static final int MAX_QUEUED_ENTRIES = 1 << 12;
+    /**
+     * Smaller files are compressed faster than they are looked up in a {@link ContentStore}
+     */
+    static final long CACHED_ENTRY_SIZE = 16L << 20;
+    private static final String CACHE_ALGORITHM = "SHA-256";
+    private static final String CACHE_CRC = "crc";
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelZipWriter.class);
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, new ThreadFactory());
+
+    private final OutputStream target;
+    private final ZipWriter zip;
+    private final CompressionPolicy policy;
+    private final ExecutorService pool;
+    private final int window;
+    private final ZipJournal journal;
+    private final Deque<Job> jobs = new ArrayDeque<>();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private long entries;
+    private long storedEntries;
+    private long size;
+    private long compressedSize;
+    private int inFlight;
+    private boolean failed;
+    private final LongConsumer progress;
+    private final ContentStore contentStore;
+    private final PackageValidator validator;
+
+    ParallelZipWriter(final OutputStream out) {
+        this(out, Options.DEFAULT);
+    }
+
+    ParallelZipWriter(final OutputStream out, final Options options) {
+        this(out, options, POOL, 4 * THREADS);
+    }
+
+    /**
+     * @param out The stream to write the zip file to, it is closed when this writer is closed
+     * @param options How the entries are compressed and who is told about them
+     * @param pool The pool the entries are compressed on
+     * @param window The maximum number of compressed chunks kept in memory waiting to be written
+     */
+    ParallelZipWriter(final OutputStream out, final Options options, final ExecutorService pool, final int window) {
+        this.target = out;
+        this.zip = new ZipWriter(out);
+        this.policy = options.policy();
+        this.progress = options.progress();
+        this.contentStore = options.contentStore();
+        this.validator = options.validator();
+        this.pool = pool;
+        this.window = Math.max(1, window);
+        this.journal = null;
+    }
+
+    /**
+     * Continue the zip file of a resumed journal. Added files that the journal has kept are not written again,
+     * and the files written are recorded in the journal. Generated entries are always written.
+     *
+     * @param journal A journal that has been {@link ZipJournal#resume(List, List) resumed}, it is not closed by this writer
+     * @param options How the entries are compressed and who is told about them
+     */
+    ParallelZipWriter(final ZipJournal journal, final Options options) {
+        this.target = journal.output();
+        this.zip = new ZipWriter(target, journal.offset(), journal.entries());
+        this.policy = options.policy();
+        this.progress = options.progress();
+        this.contentStore = options.contentStore();
+        this.validator = options.validator();
+        this.pool = POOL;
+        this.window = 4 * THREADS;
+        this.journal = journal;
+    }
+
+    /**
+     * Add a file to the zip, the {@link CompressionPolicy} decides whether it is stored or deflated
+     */
+    void add(final String name, final Path file) throws IOException {
+        add(name, file, null);
+    }
+
+    /**
+     * Add a file to the zip and update the given digest with its content, using the same read of the file that
+     * computes its CRC and compresses it. A file that is stored is read twice, once for its CRC and digest and
+     * once to copy it, as the local header of a stored entry holds its CRC before its data: a data descriptor
+     * after the data is not readable by {@link java.util.zip.ZipInputStream} for stored entries. The digest is
+     * complete once the entry has been written, i.e. when the content of any later added
+     * {@link #add(String, Content) generated entry} is written.
+     */
+    void add(final String name, final Path file, final FixityDigest fixity) throws IOException {
+        // The fixity of every entry is computed when the package is validated
+        final var digest = fixity == null && validator != null ? validator.digest() : fixity;
+        if (journal != null) {
+            final var kept = journal.skip(name);
+            if (kept != null) {
+                final var restored = digest != null && (fixity != null || kept.checksums().keySet().equals(Set.copyOf(digest.algorithms())));
+                if (restored) {
+                    digest.restore(kept.digestSize(), kept.checksums());
+                }
+                count(kept.written().size(), kept.written().compressedSize(), kept.written().method() == ZipEntry.STORED);
+                if (validator != null) {
+                    validator.file(name, file, kept.written().size(), restored ? digest : null);
+                }
+                return;
+            }
+        }
+        try {
+            while (jobs.size() >= MAX_QUEUED_ENTRIES) {
+                writeNext();
+            }
+        } catch (final IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        final var job = new Job(name, file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        jobs.add(job);
+        job.digest = digest;
+        // A fixity asked for by the caller is journaled right away, the fixity of the validator with the next batch
+        job.commit = fixity != null;
+        try {
+            final var policyStart = System.nanoTime();
+            job.level = policy.level(name, file);
+            compressionNanos.addAndGet(System.nanoTime() - policyStart);
+            if (job.level != CompressionPolicy.STORED && contentStore != null && job.size >= CACHED_ENTRY_SIZE) {
+                job.cacheKey = ContentStore.key("deflated", job.level, job.size, sample(file, job.size));
+                if (addCached(job, digest)) {
+                    return;
+                }
+                job.cacheFile = contentStore.tempFile();
+                try {
+                    job.cacheOut = Files.newOutputStream(job.cacheFile);
+                    job.cacheDigest = new FixityDigest(List.of(CACHE_ALGORITHM));
+                } catch (final IOException e) {
+                    LOGGER.warn("Could not keep the deflated data of {} in the content store", name, e);
+                }
+            }
+            if (job.level == CompressionPolicy.STORED) {
+                if (digest != null) {
+                    job.chunks.add(pool.submit(timed(() -> checksum(file, 0, job.size, digest))));
+                } else {
+                    for (long offset = 0; offset == 0 || offset < job.size; offset += STORED_CHUNK_SIZE) {
+                        final var position = offset;
+                        job.chunks.add(pool.submit(timed(() -> checksum(file, position, Math.min(STORED_CHUNK_SIZE, job.size - position), null))));
+                    }
+                }
+                job.submitted = true;
+                return;
+            }
+            // The chunks keep their uncompressed bytes until they are written, the digest is updated in entry order
+            for (long offset = 0; offset == 0 || offset < job.size; offset += CHUNK_SIZE) {
+                while (inFlight >= window) {
+                    writeNext();
+                }
+                final var position = offset;
+                final var last = offset + CHUNK_SIZE >= job.size;
+                final var keepInput = digest != null || job.cacheDigest != null;
+                job.chunks.add(pool.submit(timed(() -> deflate(file, position, (int) Math.min(CHUNK_SIZE, job.size - position), last, job.level, keepInput))));
+                inFlight++;
+            }
+            job.submitted = true;
+        } catch (final IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Take the deflated data of a file from the content store when a file with the same content has been deflated
+     * with the same level before. The stored data is found by a sample of the file and only used when the checksum
+     * of the whole file matches, so a file that is found is read once but not compressed.
+     *
+     * @return Whether the stored data is used for the entry
+     */
+    private boolean addCached(final Job job, final FixityDigest digest) throws IOException {
+        final var cached = contentStore.get(job.cacheKey);
+        if (cached == null) {
+            return false;
+        }
+        // Opened right away so that the data stays readable when the store evicts it
+        final var channel = FileChannel.open(cached.file(), StandardOpenOption.READ);
+        try {
+            final var algorithms = new LinkedHashSet<>(List.of(CACHE_ALGORITHM));
+            if (digest != null) {
+                algorithms.addAll(digest.algorithms());
+            }
+            final var verify = new FixityDigest(algorithms);
+            final var checksumStart = System.nanoTime();
+            final var chunk = checksum(job.file, 0, job.size, verify);
+            compressionNanos.addAndGet(System.nanoTime() - checksumStart);
+            if (!verify.checksums().get(CACHE_ALGORITHM).equals(cached.attributes().get(CACHE_ALGORITHM))
+                    || !Long.toString(chunk.crc).equals(cached.attributes().get(CACHE_CRC))) {
+                channel.close();
+                return false;
+            }
+            if (digest != null) {
+                final Map<String, String> checksums = new LinkedHashMap<>();
+                digest.algorithms().forEach(algorithm -> checksums.put(algorithm, verify.checksums().get(algorithm)));
+                digest.restore(verify.size(), checksums);
+            }
+            job.cached = channel;
+            job.crc = chunk.crc;
+            job.submitted = true;
+            return true;
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return A checksum of the start and the end of a large file
+     */
+    private static String sample(final Path file, final long size) throws IOException {
+        final var digest = new FixityDigest(List.of(CACHE_ALGORITHM));
+        digest.update(read(file, 0, CHUNK_SIZE), 0, CHUNK_SIZE);
+        digest.update(read(file, size - CHUNK_SIZE, CHUNK_SIZE), 0, CHUNK_SIZE);
+        return digest.checksums().get(CACHE_ALGORITHM);
+    }
+
+    /**
+     * Add an entry whose content is generated by the given callback. The callback is called on the writing
+     * thread once all previously added entries have been written, and its output is deflated as it is written.
+     */
+    void add(final String name, final Content content) {
+        add(name, Deflater.DEFAULT_COMPRESSION, content);
+    }
+
+    /**
+     * Add an entry whose content is generated by the given callback and deflated with the given level. The entry is
+     * deflated even with {@link CompressionPolicy#STORED}, as a stored entry needs its CRC before its data, but
+     * then only split into uncompressed blocks, e.g. for content that is a zip file itself.
+     */
+    void add(final String name, final int level, final Content content) {
+        final var job = new Job(name, null, -1, System.currentTimeMillis());
+        job.level = level;
+        job.content = content;
+        job.submitted = true;
+        jobs.add(job);
+    }
+
+    /**
+     * Add an entry of another zip file, its compressed data is copied as it is without inflating and deflating it
+     * again. The entry keeps its compression method, CRC and modification time.
+     */
+    void add(final String name, final ZipIndex source, final ZipIndex.Entry entry) {
+        final var job = new Job(name, null, entry.size(), entry.lastModified());
+        job.source = source;
+        job.entry = entry;
+        job.submitted = true;
+        jobs.add(job);
+    }
+
+    private void writeNext() throws IOException {
+        final var job = jobs.getFirst();
+        if (job.content != null) {
+            writeContent(job);
+        } else if (job.source != null) {
+            writeRaw(job);
+        } else if (job.cached != null) {
+            writeCached(job);
+        } else if (job.level == CompressionPolicy.STORED) {
+            writeStored(job);
+        } else if (job.submitted && job.chunks.size() == 1) {
+            writeSingle(job);
+        } else {
+            // Entries split into several chunks are written one chunk at a time
+            writeChunk(job);
+            return;
+        }
+        jobs.removeFirst();
+    }
+
+    private void writeSingle(final Job job) throws IOException {
+        final var chunk = await(job.chunks.get(0));
+        digest(job, chunk);
+        inFlight--;
+        final var out = zip.putEntry(job.name, ZipEntry.DEFLATED, job.lastModified, chunk.crc, chunk.size, chunk.data.length);
+        out.write(chunk.data);
+        zip.closeEntry();
+        written(job);
+        count(chunk.size, chunk.data.length, false);
+    }
+
+    private void writeCached(final Job job) throws IOException {
+        try (final var in = Channels.newInputStream(job.cached)) {
+            final var compressed = job.cached.size();
+            final var out = zip.putEntry(job.name, ZipEntry.DEFLATED, job.lastModified, job.crc, job.size, compressed);
+            in.transferTo(out);
+            zip.closeEntry();
+            written(job);
+            count(job.size, compressed, false);
+        } finally {
+            job.cached = null;
+        }
+    }
+
+    private void writeRaw(final Job job) throws IOException {
+        final var entry = job.entry;
+        final var out = zip.putEntry(job.name, entry.method(), job.lastModified, entry.crc(), entry.size(), entry.compressedSize());
+        job.source.copy(entry, out);
+        zip.closeEntry();
+        written(job);
+        count(entry.size(), entry.compressedSize(), entry.method() == ZipEntry.STORED);
+    }
+
+    private void writeStored(final Job job) throws IOException {
+        var crc = 0L;
+        for (final var future : job.chunks) {
+            final var chunk = await(future);
+            crc = Crc32.combine(crc, chunk.crc, chunk.size);
+        }
+        final var out = zip.putEntry(job.name, ZipEntry.STORED, job.lastModified, crc, job.size, job.size);
+        // The second read of a stored file, its CRC had to be known before the local header
+        Files.copy(job.file, out);
+        zip.closeEntry();
+        written(job);
+        count(job.size, job.size, true);
+    }
+
+    private void writeChunk(final Job job) throws IOException {
+        if (job.written == 0) {
+            job.out = zip.putEntry(job.name, job.lastModified);
+            job.start = zip.written();
+        }
+        final var chunk = await(job.chunks.get(job.written));
+        job.chunks.set(job.written, null);
+        job.written++;
+        inFlight--;
+        digest(job, chunk);
+        job.out.write(chunk.data);
+        cache(job, chunk.data);
+        job.crc = Crc32.combine(job.crc, chunk.crc, chunk.size);
+        if (job.submitted && job.written == job.chunks.size()) {
+            zip.closeEntry(job.crc, job.size, zip.written() - job.start);
+            store(job);
+            written(job);
+            count(job.size, zip.written() - job.start, false);
+            jobs.removeFirst();
+        } else if (progress != null) {
+            progress.accept(size + Math.min(job.size, (long) job.written * CHUNK_SIZE));
+        }
+    }
+
+    private void writeContent(final Job job) throws IOException {
+        final var contentStart = System.nanoTime();
+        final var digest = validator == null ? null : validator.digest();
+        final var captured = validator != null && validator.captures(job.name) ? new ByteArrayOutputStream() : null;
+        final var out = zip.putEntry(job.name, job.lastModified);
+        final var start = zip.written();
+        final var crc = new CRC32();
+        final var deflater = new Deflater(job.level, true);
+        final long size;
+        try {
+            final var deflated = new CheckedOutputStream(new DeflaterOutputStream(new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    out.write(b, off, len);
+                }
+            }, deflater, BUFFER_SIZE), crc);
+            try {
+                job.content.writeTo(digest == null ? deflated : digest.wrap(captured == null ? deflated : Utils.tee(deflated, captured)));
+            } catch (final IOException | RuntimeException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new IOException("Could not write " + job.name, e);
+            }
+            deflated.close();
+            size = deflater.getBytesRead();
+        } finally {
+            deflater.end();
+        }
+        zip.closeEntry(crc.getValue(), size, zip.written() - start);
+        count(size, zip.written() - start, false);
+        compressionNanos.addAndGet(System.nanoTime() - contentStart);
+        if (validator != null) {
+            validator.content(job.name, captured == null ? null : captured.toByteArray(), digest);
+        }
+    }
+
+    private void written(final Job job) throws IOException {
+        if (validator != null) {
+            validator.file(job.name, job.file, job.size, job.digest);
+        }
+        if (journal != null) {
+            journal.written(zip.lastEntry(), zip.written(), job.digest, job.commit);
+        }
+    }
+
+    private static void digest(final Job job, final Chunk chunk) {
+        if (job.digest != null) {
+            job.digest.update(chunk.input, chunk.inputOffset, (int) chunk.size);
+        }
+        if (job.cacheDigest != null) {
+            job.cacheDigest.update(chunk.input, chunk.inputOffset, (int) chunk.size);
+        }
+    }
+
+    /**
+     * Copy deflated data of an entry for the content store, the entry is still written when this fails
+     */
+    private static void cache(final Job job, final byte[] data) {
+        if (job.cacheOut == null) {
+            return;
+        }
+        try {
+            job.cacheOut.write(data);
+        } catch (final IOException e) {
+            LOGGER.warn("Could not keep the deflated data of {} in the content store", job.name, e);
+            discardCache(job);
+        }
+    }
+
+    /**
+     * Put the deflated data of a completely written entry into the content store
+     */
+    private void store(final Job job) {
+        if (job.cacheOut == null) {
+            return;
+        }
+        try {
+            job.cacheOut.close();
+            job.cacheOut = null;
+            contentStore.put(job.cacheKey, job.cacheFile, Map.of(CACHE_ALGORITHM, job.cacheDigest.checksums().get(CACHE_ALGORITHM), CACHE_CRC, Long.toString(job.crc)));
+        } catch (final IOException e) {
+            LOGGER.warn("Could not keep the deflated data of {} in the content store", job.name, e);
+        } finally {
+            discardCache(job);
+        }
+    }
+
+    private static void discardCache(final Job job) {
+        try {
+            if (job.cacheOut != null) {
+                job.cacheOut.close();
+            }
+            Files.deleteIfExists(job.cacheFile);
+        } catch (final IOException e) {
+            LOGGER.debug("Could not delete {}", job.cacheFile, e);
+        }
+        job.cacheOut = null;
+    }
+
+    private void count(final long entrySize, final long entryCompressedSize, final boolean stored) {
+        entries++;
+        storedEntries += stored ? 1 : 0;
+        size += entrySize;
+        compressedSize += entryCompressedSize;
+        if (progress != null) {
+            progress.accept(size);
+        }
+    }
+
+    private <T> Callable<T> timed(final Callable<T> task) {
+        return () -> {
+            final var taskStart = System.nanoTime();
+            try {
+                return task.call();
+            } finally {
+                compressionNanos.addAndGet(System.nanoTime() - taskStart);
+            }
+        };
+    }
+
+    /**
+     * @return The statistics of the entries written so far, complete once this writer has been closed
+     */
+    CompressionStats stats() {
+        return new CompressionStats(entries, storedEntries, size, compressedSize,
+                Duration.ofNanos(compressionNanos.get()), Duration.ofNanos((endNanos == 0 ? System.nanoTime() : endNanos) - startNanos));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (failed) {
+            abort();
+            return;
+        }
+        try {
+            while (!jobs.isEmpty()) {
+                writeNext();
+            }
+        } catch (final IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        zip.close();
+        endNanos = System.nanoTime();
+    }
+
+    private void abort() throws IOException {
+        failed = true;
+        for (final var job : jobs) {
+            job.chunks.stream().filter(Objects::nonNull).forEach(future -> future.cancel(true));
+            if (job.cached != null) {
+                job.cached.close();
+            }
+            if (job.cacheFile != null) {
+                discardCache(job);
+            }
+        }
+        jobs.clear();
+        // The central directory of an incomplete zip is never written
+        target.close();
+    }
+
+    private <T> T await(final Future<T> future) throws IOException {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+            throw new InterruptedIOException("Interrupted while writing zip file");
+        } catch (final ExecutionException e) {
+            failed = true;
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        } catch (final CancellationException e) {
+            failed = true;
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Deflate a chunk of a file into a raw deflate stream that can be concatenated with the deflated chunks
+     * before and after it. All but the last chunk end with a sync flush so that they end on a byte boundary.
+     *
+     * @param keepInput Whether the chunk keeps its uncompressed bytes, so that they can be digested without
+     * reading the file again
+     */
+    private static Chunk deflate(final Path file, final long offset, final int length, final boolean last, final int level, final boolean keepInput) throws IOException {
+        final var dictionaryLength = (int) Math.min(DICTIONARY_SIZE, offset);
+        final var bytes = read(file, offset - dictionaryLength, dictionaryLength + length);
+        final var crc = new CRC32();
+        crc.update(bytes, dictionaryLength, length);
+        final var deflater = new Deflater(level, true);
+        try {
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(bytes, 0, dictionaryLength);
+            }
+            deflater.setInput(bytes, dictionaryLength, length);
+            final var out = new ByteArrayOutputStream(Math.max(64, length / 2));
+            final var buffer = new byte[BUFFER_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return new Chunk(out.toByteArray(), crc.getValue(), length, keepInput ? bytes : null, dictionaryLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static Chunk checksum(final Path file, final long offset, final long length, final FixityDigest digest) throws IOException {
+        final var crc = new CRC32();
+        final var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var position = offset;
+            while (position < offset + length) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, offset + length - position));
+                final var read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException(file + " changed while it was being zipped");
+                }
+                position += read;
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer);
+                }
+                crc.update(buffer);
+            }
+        }
+        return new Chunk(null, crc.getValue(), length, null, 0);
+    }
+
+    private static byte[] read(final Path file, final long offset, final int length) throws IOException {
+        final var buffer = ByteBuffer.allocate(length);
+        try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException(file + " changed while it was being zipped");
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Generates the content of an entry
+     */
+    @FunctionalInterface
+    interface Content {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /**
+     * How a {@link ParallelZipWriter} compresses its entries and who is told about them
+     *
+     * @param policy Decides which entries are stored and which are deflated with which level
+     * @param progress Called on the writing thread with the number of uncompressed bytes written so far, after
+     * each entry and each chunk of a large entry, may be null
+     * @param contentStore Keeps the deflated data of large files, so that files with the same content are not
+     * compressed again, may be null
+     * @param validator Validates the package as its entries are written, the fixity of every added file is then
+     * computed while it is compressed, may be null
+     */
+    record Options(CompressionPolicy policy, LongConsumer progress, ContentStore contentStore, PackageValidator validator) {
+        /**
+         * Compresses with the default policy and tells nobody
+         */
+        static final Options DEFAULT = new Options(CompressionPolicy.DEFAULT, null, null, null);
+
+        Options {
+            Objects.requireNonNull(policy, "policy");
+        }
+
+        Options withPolicy(final CompressionPolicy policy) {
+            return new Options(policy, progress, contentStore, validator);
+        }
+
+        Options withProgress(final LongConsumer progress) {
+            return new Options(policy, progress, contentStore, validator);
+        }
+
+        Options withContentStore(final ContentStore contentStore) {
+            return new Options(policy, progress, contentStore, validator);
+        }
+
+        Options withValidator(final PackageValidator validator) {
+            return new Options(policy, progress, contentStore, validator);
+        }
+    }
+
+    private record Chunk(byte[] data, long crc, long size, byte[] input, int inputOffset) {
+    }
+
+    private static final class Job {
+        private final String name;
+        private final Path file;
+        private final long size;
+        private final long lastModified;
+        private final List<Future<Chunk>> chunks = new ArrayList<>();
+        private FixityDigest digest;
+        private boolean commit;
+        private String cacheKey;
+        private FixityDigest cacheDigest;
+        private Path cacheFile;
+        private OutputStream cacheOut;
+        private FileChannel cached;
+        private int level;
+        private Content content;
+        private boolean submitted;
+        private int written;
+        private long crc;
+        private long start;
+        private OutputStream out;
+        private ZipIndex source;
+        private ZipIndex.Entry entry;
+
+        private Job(final String name, final Path file, final long size, final long lastModified) {
+            this.name = name;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final var thread = new Thread(runnable, "zip-writer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * CRC-32 combination as in zlib's crc32_combine, so that chunks can be checksummed independently
+     */
+    static final class Crc32 {
+        private static final int GF2_DIM = 32;
+
+        private Crc32() {
+        }
+
+        static long combine(final long crc1, final long crc2, final long length2) {
+            if (length2 <= 0) {
+                return crc1;
+            }
+            final var even = new long[GF2_DIM];
+            final var odd = new long[GF2_DIM];
+            odd[0] = 0xEDB88320L;
+            var row = 1L;
+            for (var n = 1; n < GF2_DIM; n++) {
+                odd[n] = row;
+                row <<= 1;
+            }
+            square(even, odd);
+            square(odd, even);
+            var crc = crc1;
+            var length = length2;
+            do {
+                square(even, odd);
+                if ((length & 1) != 0) {
+                    crc = times(even, crc);
+                }
+                length >>= 1;
+                if (length == 0) {
+                    break;
+                }
+                square(odd, even);
+                if ((length & 1) != 0) {
+                    crc = times(odd, crc);
+                }
+                length >>= 1;
+            } while (length != 0);
+            return crc ^ crc2;
+        }
+
+        private static long times(final long[] matrix, final long vector) {
+            var sum = 0L;
+            var vec = vector;
+            for (var i = 0; vec != 0; i++, vec >>>= 1) {
+                if ((vec & 1) != 0) {
+                    sum ^= matrix[i];
+                }
+            }
+            return sum;
+        }
+
+        private static void square(final long[] square, final long[] matrix) {
+            for (var n = 0; n < GF2_DIM; n++) {
+                square[n] = times(matrix, matrix[n]);
+            }
+        }
+    }
+
+}
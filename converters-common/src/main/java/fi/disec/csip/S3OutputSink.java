@@ -0,0 +1,486 @@
+package fi.disec.csip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads the zipped packages into a bucket of an S3 compatible object store while they are written. A package
+ * is cut into parts of a fixed size that are uploaded concurrently with a multipart upload, so the upload overlaps
+ * the packaging and no byte is written to local disk. A package smaller than one part is uploaded with a single
+ * request once it is complete.
+ * <p>
+ * The parts are kept in a bounded pool of buffers shared by all packages written to the sink, which bounds the
+ * memory used to the number of buffers times the part size. Writing a package waits while all buffers are being
+ * filled or uploaded. Requests are signed with AWS Signature Version 4 and objects are addressed path-style, e.g.
+ * {@code http://localhost:9000/bucket/aips/id.zip}, which S3 and the common S3 compatible stores support. A
+ * failed part is retried and a failed upload is aborted.
+ * <p>
+ * An object is only created or replaced when the stream of its package is closed. When writing a package fails,
+ * {@link #abort(String, OutputStream)} aborts its multipart upload instead of completing it, so neither a partial
+ * object is published nor an existing object with the same key replaced.
+ */
+public final class S3OutputSink implements OutputSink, Closeable {
+    /**
+     * S3 rejects smaller parts other than the last one
+     */
+    public static final int MIN_PART_SIZE = 5 << 20;
+    private static final int DEFAULT_PART_SIZE = 8 << 20;
+    private static final int DEFAULT_BUFFERS = 4;
+    private static final int ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 200;
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+    private static final String HMAC = "HmacSHA256";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3OutputSink.class);
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newFactory();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final URI endpoint;
+    private final String region;
+    private final String bucket;
+    private final String prefix;
+    private final String accessKey;
+    private final String secretKey;
+    private final int partSize;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final ExecutorService uploads;
+    private final Semaphore buffers;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Upload parts of 8 MiB with at most 4 part buffers
+     *
+     * @see #S3OutputSink(URI, String, String, String, String, String, int, int)
+     */
+    public S3OutputSink(final URI endpoint, final String region, final String bucket, final String accessKey, final String secretKey) {
+        this(endpoint, region, bucket, "", accessKey, secretKey, DEFAULT_PART_SIZE, DEFAULT_BUFFERS);
+    }
+
+    /**
+     * @param endpoint The endpoint of the store, e.g. https://s3.eu-north-1.amazonaws.com or http://localhost:9000
+     * @param region The region the requests are signed for, e.g. eu-north-1, us-east-1 for most S3 compatible stores
+     * @param bucket The bucket the packages are uploaded into
+     * @param prefix Put before the name of each package in its key, e.g. aips/
+     * @param partSize The size of the parts in bytes, at least {@link #MIN_PART_SIZE}
+     * @param buffers The maximum number of parts in memory over all packages, each being filled or uploaded
+     */
+    public S3OutputSink(final URI endpoint, final String region, final String bucket, final String prefix, final String accessKey, final String secretKey,
+                        final int partSize, final int buffers) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("partSize must be at least " + MIN_PART_SIZE + " but was " + partSize);
+        }
+        if (buffers < 1) {
+            throw new IllegalArgumentException("buffers must be at least 1 but was " + buffers);
+        }
+        final var base = endpoint.toString();
+        this.endpoint = URI.create(base.endsWith("/") ? base.substring(0, base.length() - 1) : base);
+        this.region = region;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.partSize = partSize;
+        this.buffers = new Semaphore(buffers, true);
+        // A buffer that is being uploaded holds a thread, one that is being filled does not
+        this.uploads = Executors.newFixedThreadPool(buffers, new ThreadFactory());
+    }
+
+    @Override
+    public OutputStream open(final String name) {
+        return new MultipartUpload(key(name));
+    }
+
+    /**
+     * Abort the multipart upload of the package, or drop its only part when the upload has not been started
+     */
+    @Override
+    public void abort(final String name, final OutputStream out) throws IOException {
+        ((MultipartUpload) out).abort();
+    }
+
+    /**
+     * Stop the upload threads, the streams of all packages must have been closed
+     */
+    @Override
+    public void close() {
+        uploads.shutdown();
+    }
+
+    private String key(final String name) {
+        return prefix + name + ".zip";
+    }
+
+    private byte[] acquire() throws InterruptedIOException {
+        try {
+            buffers.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part buffer");
+        }
+        final var buffer = free.poll();
+        return buffer == null ? new byte[partSize] : buffer;
+    }
+
+    private void release(final byte[] buffer) {
+        free.offer(buffer);
+        buffers.release();
+    }
+
+    /**
+     * Send a signed request, retrying it when the store fails or is not reachable
+     *
+     * @param query The canonical query string, with its parameters encoded and sorted by name
+     * @param body The body of the request, null for none
+     * @return The successful response
+     */
+    private HttpResponse<String> send(final String method, final String key, final String query, final byte[] body, final int length) throws IOException {
+        final var uri = URI.create(endpoint + "/" + encode(bucket, true) + "/" + encode(key, true) + (query.isEmpty() ? "" : "?" + query));
+        final var payloadHash = HexFormat.of().formatHex(sha256(body == null ? new byte[0] : body, body == null ? 0 : length));
+        for (var attempt = 1; ; attempt++) {
+            final var amzDate = AMZ_DATE.format(Instant.now());
+            final var request = HttpRequest.newBuilder(uri)
+                    .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body, 0, length))
+                    .header("x-amz-date", amzDate)
+                    .header("x-amz-content-sha256", payloadHash)
+                    .header("Authorization", authorization(method, uri, query, payloadHash, amzDate))
+                    .build();
+            final HttpResponse<String> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (final IOException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                LOGGER.warn("Retrying {} {}", method, uri, e);
+                pause(attempt);
+                continue;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending " + method + " " + uri);
+            }
+            if (response.statusCode() < 300) {
+                return response;
+            }
+            final var message = method + " " + uri + " failed with " + response.statusCode() + ": " + response.body();
+            if (response.statusCode() < 500 && response.statusCode() != 429 || attempt == ATTEMPTS) {
+                throw new IOException(message);
+            }
+            LOGGER.warn("Retrying {}", message);
+            pause(attempt);
+        }
+    }
+
+    private static void pause(final int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a request");
+        }
+    }
+
+    /**
+     * @return The Authorization header of AWS Signature Version 4 for a request that signs the host, the payload
+     * hash and the date
+     */
+    String authorization(final String method, final URI uri, final String query, final String payloadHash, final String amzDate) {
+        final var date = amzDate.substring(0, 8);
+        final var host = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+        final var canonicalRequest = method + "\n"
+                + uri.getRawPath() + "\n"
+                + query + "\n"
+                + "host:" + host + "\n"
+                + "x-amz-content-sha256:" + payloadHash + "\n"
+                + "x-amz-date:" + amzDate + "\n"
+                + "\n"
+                + SIGNED_HEADERS + "\n"
+                + payloadHash;
+        final var scope = date + "/" + region + "/s3/aws4_request";
+        final var bytes = canonicalRequest.getBytes(StandardCharsets.UTF_8);
+        final var stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + HexFormat.of().formatHex(sha256(bytes, bytes.length));
+        var key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        final var signature = HexFormat.of().formatHex(hmac(key, stringToSign));
+        return ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature;
+    }
+
+    private static byte[] hmac(final byte[] key, final String data) {
+        try {
+            final var mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(final byte[] data, final int length) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param path Whether slashes are kept, as in the path but not in the query of a request
+     * @return The value URI encoded as S3 expects it, every byte but the unreserved characters encoded
+     */
+    static String encode(final String value, final boolean path) {
+        final var encoded = new StringBuilder();
+        for (final var b : value.getBytes(StandardCharsets.UTF_8)) {
+            final var c = (char) (b & 0xFF);
+            if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '.' || c == '_' || c == '~' || path && c == '/') {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HexFormat.of().withUpperCase().toHexDigits((byte) c));
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @return The text of the first element with the given name in an XML response, null if there is none
+     */
+    private static String element(final String xml, final String localName) throws IOException {
+        if (xml.isBlank()) {
+            return null;
+        }
+        try {
+            final var reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(xml));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && localName.equals(reader.getLocalName())) {
+                        return reader.getElementText();
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new IOException("Could not read the response " + xml, e);
+        }
+    }
+
+    private static String escape(final String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * The stream of one package, the multipart upload is only started once the first part is full
+     */
+    private final class MultipartUpload extends OutputStream {
+        private final String key;
+        private final List<Future<String>> parts = new ArrayList<>();
+        private String uploadId;
+        private byte[] buffer;
+        private int length;
+        private boolean closed;
+
+        private MultipartUpload(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) {
+                throw new IOException("The upload of " + key + " has been closed");
+            }
+            var offset = off;
+            var remaining = len;
+            while (remaining > 0) {
+                if (buffer == null) {
+                    buffer = acquire();
+                }
+                final var n = Math.min(remaining, partSize - length);
+                System.arraycopy(b, offset, buffer, length, n);
+                length += n;
+                offset += n;
+                remaining -= n;
+                if (length == partSize) {
+                    uploadPart();
+                }
+            }
+        }
+
+        private void uploadPart() throws IOException {
+            for (final var part : parts) {
+                if (part.isDone()) {
+                    // Fails fast when an earlier part could not be uploaded
+                    await(part);
+                }
+            }
+            if (uploadId == null) {
+                uploadId = element(send("POST", key, "uploads=", null, 0).body(), "UploadId");
+                if (uploadId == null) {
+                    throw new IOException("No upload id was returned for " + key);
+                }
+            }
+            final var query = "partNumber=" + (parts.size() + 1) + "&uploadId=" + encode(uploadId, false);
+            final var data = buffer;
+            final var size = length;
+            buffer = null;
+            length = 0;
+            parts.add(uploads.submit(() -> {
+                try {
+                    return send("PUT", key, query, data, size).headers().firstValue("ETag")
+                            .orElseThrow(() -> new IOException("No ETag was returned for a part of " + key));
+                } finally {
+                    release(data);
+                }
+            }));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (uploadId == null) {
+                    send("PUT", key, "", buffer == null ? new byte[0] : buffer, length);
+                    return;
+                }
+                if (length > 0) {
+                    uploadPart();
+                }
+                final var body = new StringBuilder("<CompleteMultipartUpload xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+                for (var i = 0; i < parts.size(); i++) {
+                    body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(escape(await(parts.get(i)))).append("</ETag></Part>");
+                }
+                body.append("</CompleteMultipartUpload>");
+                final var bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                // The store can report a failure of the completion in the body of a successful response
+                final var response = send("POST", key, "uploadId=" + encode(uploadId, false), bytes, bytes.length).body();
+                if (element(response, "Code") != null) {
+                    throw new IOException("Could not complete the upload of " + key + ": " + response);
+                }
+            } catch (final IOException | RuntimeException e) {
+                try {
+                    cancel();
+                } catch (final IOException abortException) {
+                    e.addSuppressed(abortException);
+                }
+                throw e;
+            } finally {
+                releaseBuffer();
+            }
+        }
+
+        /**
+         * Stop the upload without creating the object, nothing happens when it has been closed
+         */
+        private void abort() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                cancel();
+            } finally {
+                releaseBuffer();
+            }
+        }
+
+        private void cancel() throws IOException {
+            if (uploadId == null) {
+                return;
+            }
+            // A part still being uploaded could be stored after the abort, and a cancelled one would never release its buffer
+            for (final var part : parts) {
+                try {
+                    await(part);
+                } catch (final InterruptedIOException e) {
+                    throw e;
+                } catch (final IOException e) {
+                    LOGGER.debug("A part of the aborted upload of {} failed", key, e);
+                }
+            }
+            send("DELETE", key, "uploadId=" + encode(uploadId, false), null, 0);
+        }
+
+        private void releaseBuffer() {
+            if (buffer != null) {
+                release(buffer);
+                buffer = null;
+            }
+        }
+
+        private String await(final Future<String> part) throws IOException {
+            try {
+                return part.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + key);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw new IOException("Could not upload a part of " + key, io);
+                }
+                throw new IOException("Could not upload a part of " + key, e.getCause());
+            } catch (final CancellationException e) {
+                throw new IOException("The upload of " + key + " was cancelled", e);
+            }
+        }
+    }
+
+    private static final class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final var thread = new Thread(runnable, "s3-upload-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package fi.disec.csip;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copies schema files out of the classpath once per process, so that packages can reference the same file
+ * instead of every conversion writing its own copy to its temp folder.
+ */
+final class SchemaCache {
+    private static final Map<String, Path> FILES = new ConcurrentHashMap<>();
+    private static volatile Path directory;
+
+    private SchemaCache() {
+    }
+
+    /**
+     * @param owner The class whose {@link Class#getResourceAsStream(String)} is used to find the resource
+     * @param resource The path of the resource on the classpath
+     * @param filename The name of the schema file
+     * @return A file with the content of the resource, it must not be modified or deleted
+     */
+    static Path get(final Class<?> owner, final String resource, final String filename) {
+        final var key = owner.getName() + ":" + resource;
+        final var cached = FILES.get(key);
+        if (cached != null && Files.isRegularFile(cached)) {
+            return cached;
+        }
+        // A cached file can have been removed by a cleaner of the temp directory, in that case it is written again
+        return FILES.compute(key, (k, existing) -> existing != null && Files.isRegularFile(existing) ? existing : copy(owner, resource, filename));
+    }
+
+    private static Path copy(final Class<?> owner, final String resource, final String filename) {
+        try (final var in = Objects.requireNonNull(owner.getResourceAsStream(resource), "Could not find resource " + resource)) {
+            final var file = Files.createTempFile(directory(), "", "-" + filename);
+            file.toFile().deleteOnExit();
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            return file;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static synchronized Path directory() throws IOException {
+        if (directory == null || !Files.isDirectory(directory)) {
+            directory = Files.createTempDirectory("csip-schemas");
+            // Registered before the files so that it is deleted after them
+            directory.toFile().deleteOnExit();
+        }
+        return directory;
+    }
+
+}
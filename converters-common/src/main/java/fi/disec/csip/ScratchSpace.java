@@ -0,0 +1,148 @@
+package fi.disec.csip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Admits conversions to the scratch roots of a {@link ConverterConfig}. The estimated space of every running
+ * conversion of the process stays reserved until it completes, as the free space reported by the file system
+ * does not yet include what running conversions are still going to write.
+ */
+final class ScratchSpace {
+    private static final long RECHECK_MILLIS = 1000;
+    private static final Map<Path, Long> RESERVED = new HashMap<>();
+    private static int next;
+
+    private ScratchSpace() {
+    }
+
+    /**
+     * Reserve the estimated space on the scratch root with the most free space and create a temp folder in it
+     *
+     * @param prefix The prefix of the name of the temp folder
+     * @param estimate The estimated number of bytes the conversion writes into its temp folder
+     * @throws InsufficientSpaceException If the estimate exceeds the quota or no root has enough free space
+     * within the admission timeout
+     */
+    static Lease acquire(final ConverterConfig config, final String prefix, final long estimate) {
+        if (estimate > config.quota()) {
+            throw new InsufficientSpaceException("Estimated temp space of " + estimate + " bytes exceeds the quota of " + config.quota() + " bytes");
+        }
+        final var deadline = System.nanoTime() + config.admissionTimeout().toNanos();
+        final Path root;
+        synchronized (ScratchSpace.class) {
+            try {
+                var selected = select(config, estimate);
+                while (selected == null) {
+                    final var remaining = (deadline - System.nanoTime()) / 1_000_000;
+                    if (remaining <= 0) {
+                        throw new InsufficientSpaceException("No scratch root of " + config.scratchRoots() + " has " + estimate + " bytes of free space");
+                    }
+                    // Space is released by conversions of this process, which notify, and by everything else
+                    ScratchSpace.class.wait(Math.min(remaining, RECHECK_MILLIS));
+                    selected = select(config, estimate);
+                }
+                root = selected;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for temp space"));
+            }
+            RESERVED.merge(root, estimate, Long::sum);
+        }
+        try {
+            return new Lease(config, root, estimate, TempReclaimer.create(root, prefix));
+        } catch (final RuntimeException e) {
+            release(root, estimate);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The root with the most unreserved free space if it fits the estimate, the roots are taken in turns
+     * when they have the same free space
+     */
+    private static Path select(final ConverterConfig config, final long estimate) {
+        final var roots = config.scratchRoots();
+        Path best = null;
+        var bestFree = Long.MIN_VALUE;
+        for (var i = 0; i < roots.size(); i++) {
+            final var root = roots.get((next + i) % roots.size());
+            final var free = free(root) - config.reservedSpace() - RESERVED.getOrDefault(root, 0L);
+            if (free > bestFree) {
+                best = root;
+                bestFree = free;
+            }
+        }
+        next++;
+        return bestFree >= estimate ? best : null;
+    }
+
+    private static long free(final Path root) {
+        try {
+            Files.createDirectories(root);
+            return Files.getFileStore(root).getUsableSpace();
+        } catch (final IOException e) {
+            // An unavailable root is never selected
+            return Long.MIN_VALUE / 2;
+        }
+    }
+
+    private static void release(final Path root, final long estimate) {
+        synchronized (ScratchSpace.class) {
+            RESERVED.merge(root, -estimate, Long::sum);
+            ScratchSpace.class.notifyAll();
+        }
+    }
+
+    /**
+     * The temp folder of one conversion, closing it releases the reservation and deletes the folder in the background
+     */
+    static final class Lease implements Closeable {
+        private final ConverterConfig config;
+        private final Path root;
+        private final long estimate;
+        private final Path folder;
+        private boolean closed;
+
+        private Lease(final ConverterConfig config, final Path root, final long estimate, final Path folder) {
+            this.config = config;
+            this.root = root;
+            this.estimate = estimate;
+            this.folder = folder;
+        }
+
+        Path folder() {
+            return folder;
+        }
+
+        /**
+         * @throws InsufficientSpaceException If the temp folder has outgrown the quota
+         */
+        void checkQuota() {
+            if (config.quota() == Long.MAX_VALUE) {
+                return;
+            }
+            final var used = Utils.size(folder);
+            if (used > config.quota()) {
+                throw new InsufficientSpaceException("Temp space of " + used + " bytes exceeds the quota of " + config.quota() + " bytes");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            TempReclaimer.reclaim(folder);
+            release(root, estimate);
+        }
+    }
+
+}
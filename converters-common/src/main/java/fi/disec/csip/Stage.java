@@ -0,0 +1,27 @@
+package fi.disec.csip;
+
+/**
+ * The stages of converting a package, in the order they run
+ */
+public enum Stage {
+    /**
+     * Extracting and parsing the input package, for streaming conversions only its metadata
+     */
+    PARSE,
+    /**
+     * Zipping an extracted input package so that it can be added as the submission
+     */
+    ZIP_SUBMISSION,
+    /**
+     * Collecting the descriptive metadata and schemas of the input and writing the preservation metadata
+     */
+    METADATA,
+    /**
+     * Building the package on disk, which copies the metadata and submission and writes the METS files
+     */
+    BUILD,
+    /**
+     * Zipping the built package into the output
+     */
+    ZIP
+}
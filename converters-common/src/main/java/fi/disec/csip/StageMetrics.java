@@ -0,0 +1,23 @@
+package fi.disec.csip;
+
+import java.time.Duration;
+
+/**
+ * What one stage of a conversion did
+ *
+ * @param stage The stage
+ * @param elapsed The wall clock time of the stage
+ * @param bytesRead The number of bytes the stage read from its input
+ * @param bytesWritten The number of bytes the stage wrote, to the temp folder or for {@link Stage#ZIP} to the output
+ * @param files The number of files the stage wrote
+ * @param tempDiskUsage The size of the temp folder of the conversion after the stage in bytes
+ */
+public record StageMetrics(Stage stage, Duration elapsed, long bytesRead, long bytesWritten, long files, long tempDiskUsage) {
+
+    @Override
+    public String toString() {
+        return String.format("%s took %d ms, read %d bytes, wrote %d bytes in %d files, %d bytes of temp disk in use",
+                stage, elapsed.toMillis(), bytesRead, bytesWritten, files, tempDiskUsage);
+    }
+
+}
@@ -0,0 +1,108 @@
+package fi.disec.csip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Puts a file at a new path without copying its bytes where the file system allows it. A hard link is tried first,
+ * then a copy-on-write clone (a reflink, e.g. on btrfs or XFS) and only then a byte copy. Staged files share their
+ * content with the source, so neither may be modified afterwards, only deleted. A file of an input package is
+ * staged with {@link #stageInput(Path, Path)}, which only links it when it is read-only, so that the staged file
+ * is never a writable alias of the input.
+ */
+final class Staging {
+    /**
+     * Cloning starts a cp process, which only pays off for large files
+     */
+    static final long REFLINK_MIN_SIZE = 16L << 20;
+    private static final Logger LOGGER = LoggerFactory.getLogger(Staging.class);
+    private static final boolean LINUX = System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux");
+    /**
+     * The file stores a clone has failed on
+     */
+    static final Set<FileStore> NO_REFLINK = ConcurrentHashMap.newKeySet();
+
+    private Staging() {
+    }
+
+    /**
+     * How a file was staged
+     */
+    enum Method {
+        LINK, REFLINK, COPY
+    }
+
+    /**
+     * Stage the source file at the target path, which must not exist
+     *
+     * @return How the file was staged
+     */
+    static Method stage(final Path source, final Path target) throws IOException {
+        return stage(source, target, true);
+    }
+
+    /**
+     * Stage a file of an input package at the target path, which must not exist. The file is only linked when it
+     * is read-only, otherwise it is cloned or copied, so writing the staged file never changes the input.
+     *
+     * @return How the file was staged
+     */
+    static Method stageInput(final Path source, final Path target) throws IOException {
+        return stage(source, target, !Files.isWritable(source));
+    }
+
+    private static Method stage(final Path source, final Path target, final boolean link) throws IOException {
+        if (link) {
+            try {
+                Files.createLink(target, source);
+                return Method.LINK;
+            } catch (final IOException | UnsupportedOperationException e) {
+                // Different file systems, or hard links to files owned by others are not allowed
+                LOGGER.trace("Could not link {} to {}", target, source, e);
+            }
+        }
+        if (reflink(source, target)) {
+            return Method.REFLINK;
+        }
+        Files.copy(source, target);
+        return Method.COPY;
+    }
+
+    private static boolean reflink(final Path source, final Path target) throws IOException {
+        if (!LINUX || Files.size(source) < REFLINK_MIN_SIZE) {
+            return false;
+        }
+        final var store = Files.getFileStore(target.getParent());
+        if (NO_REFLINK.contains(store)) {
+            return false;
+        }
+        try {
+            final var process = new ProcessBuilder("cp", "--reflink=always", "--", source.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (process.waitFor() == 0) {
+                return true;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while cloning " + source);
+        } catch (final IOException e) {
+            LOGGER.trace("Could not clone {} to {}", source, target, e);
+        }
+        // A file system that can't clone one file can't clone any
+        NO_REFLINK.add(store);
+        Files.deleteIfExists(target);
+        return false;
+    }
+
+}
@@ -0,0 +1,152 @@
+package fi.disec.csip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the temp folders of conversions and deletes them on a background thread, so that a conversion does not
+ * wait for its temp files to be deleted. Each folder holds a lease file that is locked while the folder is in use.
+ * The operating system releases the lock when the process dies, so folders left behind by a crashed process are
+ * recognised by their unlocked lease and reclaimed the first time a folder is created in the same root. A lease is
+ * created under another name and renamed once it is locked, so a folder is never seen with an unlocked lease while
+ * it is being created.
+ */
+final class TempReclaimer {
+    static final String LEASE = ".csip-lease";
+    private static final String PENDING_LEASE = LEASE + ".pending";
+    private static final Logger LOGGER = LoggerFactory.getLogger(TempReclaimer.class);
+    private static final ExecutorService RECLAIMER = Executors.newSingleThreadExecutor(runnable -> {
+        final var thread = new Thread(runnable, "temp-reclaimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<Path, FileChannel> LEASES = new ConcurrentHashMap<>();
+    private static final Set<Path> SCANNED_ROOTS = ConcurrentHashMap.newKeySet();
+
+    private TempReclaimer() {
+    }
+
+    /**
+     * Create a leased temp folder in the default temp directory
+     *
+     * @see #create(Path, String)
+     */
+    static Path create(final String prefix) {
+        return create(Path.of(System.getProperty("java.io.tmpdir")), prefix);
+    }
+
+    /**
+     * Create a leased temp folder, it must be passed to {@link #reclaim(Path)} once it is no longer needed
+     *
+     * @param root The directory the folder is created in
+     * @param prefix The prefix of the name of the folder
+     */
+    static Path create(final Path root, final String prefix) {
+        try {
+            final var folder = Files.createTempDirectory(root, prefix);
+            // The lease only gets its name once it is locked, a folder without one is never reclaimed
+            final var pending = folder.resolve(PENDING_LEASE);
+            final var lease = FileChannel.open(pending, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                lease.lock();
+                Files.move(pending, folder.resolve(LEASE), StandardCopyOption.ATOMIC_MOVE);
+            } catch (final IOException | RuntimeException e) {
+                lease.close();
+                throw e;
+            }
+            LEASES.put(folder, lease);
+            if (SCANNED_ROOTS.add(root.toAbsolutePath().normalize())) {
+                RECLAIMER.execute(() -> reclaimOrphans(root));
+            }
+            return folder;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Delete a folder created by {@link #create(Path, String)} in the background. Does nothing for null.
+     */
+    static void reclaim(final Path folder) {
+        if (folder == null) {
+            return;
+        }
+        RECLAIMER.execute(() -> delete(folder, LEASES.remove(folder)));
+    }
+
+    /**
+     * Delete the folders in root whose lease is not held by any process
+     */
+    private static void reclaimOrphans(final Path root) {
+        try (final DirectoryStream<Path> folders = Files.newDirectoryStream(root, path -> Files.isRegularFile(path.resolve(LEASE)))) {
+            for (final var folder : folders) {
+                if (LEASES.containsKey(folder)) {
+                    continue;
+                }
+                final FileChannel lease;
+                try {
+                    lease = FileChannel.open(folder.resolve(LEASE), StandardOpenOption.WRITE);
+                } catch (final IOException e) {
+                    // Deleted by its owner in the meantime
+                    continue;
+                }
+                try {
+                    if (lease.tryLock() == null) {
+                        lease.close();
+                        continue;
+                    }
+                } catch (final IOException | OverlappingFileLockException e) {
+                    lease.close();
+                    continue;
+                }
+                LOGGER.info("Reclaiming temp folder {} left behind by a previous process", folder);
+                delete(folder, lease);
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Could not reclaim temp folders in {}", root, e);
+        }
+    }
+
+    /**
+     * Delete the folder depth first without listing it up front, the lease is deleted last
+     */
+    private static void delete(final Path folder, final FileChannel lease) {
+        try {
+            try (final DirectoryStream<Path> children = Files.newDirectoryStream(folder, path -> !path.getFileName().toString().equals(LEASE))) {
+                for (final var child : children) {
+                    Utils.deleteIfExists(child);
+                }
+            }
+            if (lease != null) {
+                lease.close();
+            }
+            Files.deleteIfExists(folder.resolve(LEASE));
+            Files.deleteIfExists(folder);
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Could not delete temp folder {}, it is reclaimed by the next process", folder, e);
+            try {
+                if (lease != null) {
+                    lease.close();
+                }
+            } catch (final IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+        }
+    }
+
+}
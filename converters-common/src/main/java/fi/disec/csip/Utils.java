@@ -0,0 +1,238 @@
+package fi.disec.csip;
+
+import org.roda_project.commons_ip2.model.IPConstants;
+import org.roda_project.commons_ip2.model.IPFile;
+import org.roda_project.commons_ip2.model.IPFileInterface;
+import org.roda_project.commons_ip2.model.impl.eark.EARKSIP;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.zip.ZipFile;
+
+final class Utils {
+
+    private Utils() {
+    }
+
+    /**
+     * Zip the files of the folder in path order, compressing them on all cores. The entries with a name in generated
+     * are written last with the generated content instead of the content of the file with the same name.
+     *
+     * @param options How the entries are compressed and who is told about them
+     * @param generated The content of entries by their name relative to the folder
+     * @return The statistics of the written zip
+     */
+    static CompressionStats zip(final Path sourceDirPath, final OutputStream out, final ParallelZipWriter.Options options, final Map<String, ParallelZipWriter.Content> generated) {
+        final var zs = new ParallelZipWriter(out, options);
+        try (zs) {
+            for (final var path : sortedFiles(sourceDirPath)) {
+                final var name = sourceDirPath.relativize(path).toString();
+                if (!generated.containsKey(name)) {
+                    zs.add(name, path);
+                }
+            }
+            for (final var entry : new TreeMap<>(generated).entrySet()) {
+                zs.add(entry.getKey(), entry.getValue());
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return zs.stats();
+    }
+
+    /**
+     * The files below a folder in the order of their paths, the same order as sorting the files of
+     * {@link Files#walk(Path, FileVisitOption...)}, but only the listings of the folders on the path of the current
+     * file are held in memory instead of all paths. Links to folders are skipped like walking does.
+     */
+    static Iterable<Path> sortedFiles(final Path folder) {
+        return () -> new Iterator<>() {
+            private final Deque<Iterator<Path>> folders = new ArrayDeque<>(List.of(list(folder)));
+            private Path next = advance();
+
+            private Path advance() {
+                while (!folders.isEmpty()) {
+                    final var listing = folders.peek();
+                    if (!listing.hasNext()) {
+                        folders.pop();
+                        continue;
+                    }
+                    final var path = listing.next();
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        folders.push(list(path));
+                    } else if (!Files.isDirectory(path)) {
+                        return path;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Path next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final var path = next;
+                next = advance();
+                return path;
+            }
+        };
+    }
+
+    /**
+     * @return The children of a folder sorted so that a folder is at the position of the paths below it, i.e. by
+     * name with a trailing slash for folders
+     */
+    private static Iterator<Path> list(final Path folder) {
+        try (final var stream = Files.list(folder)) {
+            return stream.map(path -> new AbstractMap.SimpleImmutableEntry<>(path.getFileName() + (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) ? "/" : ""), path))
+                    .sorted(Map.Entry.comparingByKey())
+                    .map(Map.Entry::getValue)
+                    .toList()
+                    .iterator();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return A stream writing to both streams, closing it only closes the first one
+     */
+    static OutputStream tee(final OutputStream out, final OutputStream copy) {
+        return new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                copy.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+                copy.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    /**
+     * Delete a file or a folder with its content depth first, without listing the whole folder up front
+     *
+     * @return Whether everything was deleted
+     */
+    static boolean deleteIfExists(final Path fileOrFolder) {
+        if (fileOrFolder == null || !Files.exists(fileOrFolder, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        final var deleted = new boolean[]{true};
+        try {
+            Files.walkFileTree(fileOrFolder, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    deleted[0] &= file.toFile().delete();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    deleted[0] &= file.toFile().delete();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) {
+                    deleted[0] &= dir.toFile().delete();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return deleted[0];
+    }
+
+    /**
+     * @return The total size of a file or of the files in a folder in bytes
+     */
+    static long size(final Path fileOrFolder) {
+        try {
+            if (!Files.isDirectory(fileOrFolder)) {
+                return Files.size(fileOrFolder);
+            }
+            final var size = new long[1];
+            Files.walkFileTree(fileOrFolder, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    // Deleted while walking
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return size[0];
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The size of a package once extracted, the sum of the entry sizes for a zip file, read from its central
+     * directory, and the total size of the files for a folder
+     */
+    static long extractedSize(final Path pkg) {
+        if (Files.isDirectory(pkg)) {
+            return size(pkg);
+        }
+        try (final var zipFile = new ZipFile(pkg.toFile())) {
+            return zipFile.stream().mapToLong(entry -> entry.getSize() < 0 ? entry.getCompressedSize() : entry.getSize()).sum();
+        } catch (final IOException e) {
+            // Not a zip file, the conversion fails with a better error than an estimate can give
+            return size(pkg);
+        }
+    }
+
+    /**
+     * Add the CSIP, SIP, METS and xlink schemas, the files are shared by all packages and are not copied per package
+     */
+    static void addDefaultSchemas(final Collection<IPFileInterface> schemas) {
+        addSchema(schemas, IPConstants.SCHEMA_EARK_CSIP_RELATIVE_PATH_FROM_RESOURCES, IPConstants.SCHEMA_EARK_CSIP_FILENAME);
+        addSchema(schemas, IPConstants.SCHEMA_EARK_SIP_RELATIVE_PATH_FROM_RESOURCES, IPConstants.SCHEMA_EARK_SIP_FILENAME);
+        addSchema(schemas, IPConstants.SCHEMA_METS_RELATIVE_PATH_FROM_RESOURCES, IPConstants.SCHEMA_METS_FILENAME_WITH_VERSION);
+        addSchema(schemas, IPConstants.SCHEMA_XLINK_RELATIVE_PATH_FROM_RESOURCES, IPConstants.SCHEMA_XLINK_FILENAME);
+    }
+
+    private static void addSchema(final Collection<IPFileInterface> schemas, final String resource, final String filename) {
+        schemas.add(new IPFile(SchemaCache.get(EARKSIP.class, resource, filename), filename));
+    }
+
+}
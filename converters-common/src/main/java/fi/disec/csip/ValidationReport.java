@@ -0,0 +1,149 @@
+package fi.disec.csip;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/**
+ * The result of validating a package while it was written, in the format of the JSON reports of the commons-ip
+ * validator. A package is valid when no MUST requirement has failed.
+ *
+ * @param path The package that was validated, null when it was written to a stream
+ * @param date When the validation completed
+ * @param requirements The checked requirements in the order of the specification
+ */
+public record ValidationReport(Path path, OffsetDateTime date, List<Requirement> requirements) {
+    static final String SPECIFICATION = "CSIP-2.0.4";
+    private static final String SPECIFICATION_URL = "https://github.com/DILCISBoard/E-ARK-CSIP/releases/tag/v2.0.4";
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public ValidationReport {
+        requirements = List.copyOf(requirements);
+    }
+
+    /**
+     * @return Whether no MUST requirement has failed
+     */
+    public boolean valid() {
+        return errors() == 0;
+    }
+
+    /**
+     * @return The number of failed MUST requirements
+     */
+    public long errors() {
+        return requirements.stream().filter(requirement -> requirement.outcome() == Outcome.FAILED && requirement.level() == Level.MUST).count();
+    }
+
+    /**
+     * @return The number of failed SHOULD and MAY requirements
+     */
+    public long warnings() {
+        return requirements.stream().filter(requirement -> requirement.outcome() == Outcome.FAILED && requirement.level() != Level.MUST).count();
+    }
+
+    /**
+     * @return The requirement with the given id, null if it was not checked
+     */
+    public Requirement requirement(final String id) {
+        return requirements.stream().filter(requirement -> requirement.id().equals(id)).findFirst().orElse(null);
+    }
+
+    /**
+     * @return The report as a JSON document with a header, the validation of each requirement and a summary
+     */
+    public String toJson() {
+        final var writer = new StringWriter();
+        try (final var json = JSON.createGenerator(writer)) {
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+            json.writeObjectFieldStart("header");
+            json.writeStringField("title", "Validation Report");
+            json.writeArrayFieldStart("specifications");
+            json.writeStartObject();
+            json.writeStringField("id", SPECIFICATION);
+            json.writeStringField("url", SPECIFICATION_URL);
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeNullField("version_commons_ip");
+            json.writeStringField("date", date.toString());
+            json.writeStringField("path", path == null ? null : path.toString());
+            json.writeEndObject();
+            json.writeArrayFieldStart("validation");
+            for (final var requirement : requirements) {
+                json.writeStartObject();
+                json.writeStringField("specification", SPECIFICATION);
+                json.writeStringField("id", requirement.id());
+                json.writeStringField("name", requirement.name());
+                json.writeStringField("location", requirement.location());
+                json.writeStringField("description", requirement.description());
+                json.writeStringField("cardinality", requirement.cardinality());
+                json.writeStringField("level", requirement.level().name());
+                json.writeObjectFieldStart("testing");
+                json.writeStringField("outcome", requirement.outcome().name());
+                writeArray(json, "issues", requirement.issues());
+                writeArray(json, "warnings", requirement.warnings());
+                writeArray(json, "notes", requirement.notes());
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeObjectFieldStart("summary");
+            json.writeNumberField("success", requirements.stream().filter(requirement -> requirement.outcome() == Outcome.PASSED).count());
+            json.writeNumberField("warnings", warnings());
+            json.writeNumberField("errors", errors());
+            json.writeNumberField("skipped", requirements.stream().filter(requirement -> requirement.outcome() == Outcome.SKIPPED).count());
+            json.writeNumberField("notes", requirements.stream().mapToLong(requirement -> requirement.notes().size()).sum());
+            json.writeStringField("result", valid() ? "VALID" : "INVALID");
+            json.writeEndObject();
+            json.writeEndObject();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    private static void writeArray(final JsonGenerator json, final String name, final List<String> values) throws IOException {
+        json.writeArrayFieldStart(name);
+        for (final var value : values) {
+            json.writeString(value);
+        }
+        json.writeEndArray();
+    }
+
+    @Override
+    public String toString() {
+        return "ValidationReport[" + (valid() ? "VALID" : "INVALID") + ", errors=" + errors() + ", warnings=" + warnings() + "]";
+    }
+
+    /**
+     * The validation of a single requirement of the specification
+     *
+     * @param issues Why a MUST requirement failed or could not be checked
+     * @param warnings Why a SHOULD or MAY requirement failed or could not be checked
+     * @param notes Information that does not affect the outcome
+     */
+    public record Requirement(String id, String name, String location, String description, String cardinality, Level level, Outcome outcome,
+                              List<String> issues, List<String> warnings, List<String> notes) {
+        public Requirement {
+            issues = List.copyOf(issues);
+            warnings = List.copyOf(warnings);
+            notes = List.copyOf(notes);
+        }
+    }
+
+    public enum Level {
+        MUST, SHOULD, MAY
+    }
+
+    public enum Outcome {
+        PASSED, FAILED, SKIPPED
+    }
+
+}
@@ -0,0 +1,217 @@
+package fi.disec.csip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The entries of an existing zip file as listed by its central directory, with where their data starts, so that
+ * the compressed data of an entry can be copied into another zip file without inflating and deflating it again.
+ * Reads ZIP64 sizes and offsets.
+ */
+final class ZipIndex {
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+
+    private ZipIndex(final Path file, final Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Read the central directory of a zip file
+     */
+    static ZipIndex read(final Path file) throws IOException {
+        try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final var size = channel.size();
+            final var tailLength = (int) Math.min(size, END_SIZE + MAX_COMMENT + ZIP64_LOCATOR_SIZE);
+            final var tail = read(channel, size - tailLength, tailLength);
+            var end = -1;
+            for (var i = tailLength - END_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                throw new IOException(file + " is not a zip file");
+            }
+            long count = tail.getShort(end + 10) & 0xFFFF;
+            long directorySize = tail.getInt(end + 12) & ZIP64_LIMIT;
+            long directoryOffset = tail.getInt(end + 16) & ZIP64_LIMIT;
+            final var locator = end - ZIP64_LOCATOR_SIZE;
+            if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR) {
+                final var zip64End = read(channel, tail.getLong(locator + 8), 56);
+                if (zip64End.getInt(0) != ZIP64_END) {
+                    throw new IOException(file + " has a broken ZIP64 end of central directory");
+                }
+                count = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryOffset = zip64End.getLong(48);
+            } else if (count == ZIP64_ENTRIES_LIMIT || directorySize == ZIP64_LIMIT || directoryOffset == ZIP64_LIMIT) {
+                throw new IOException(file + " has no ZIP64 end of central directory");
+            }
+            if (directorySize > Integer.MAX_VALUE) {
+                throw new IOException("The central directory of " + file + " is too large");
+            }
+            final var directory = read(channel, directoryOffset, (int) directorySize);
+            final Map<String, Entry> entries = new LinkedHashMap<>();
+            for (var i = 0L; i < count; i++) {
+                final var entry = readEntry(directory, file);
+                entries.put(entry.name(), entry);
+            }
+            return new ZipIndex(file, entries);
+        }
+    }
+
+    private static Entry readEntry(final ByteBuffer directory, final Path file) throws IOException {
+        final var start = directory.position();
+        if (directory.getInt(start) != CENTRAL_HEADER) {
+            throw new IOException(file + " has a broken central directory at entry offset " + start);
+        }
+        final var flags = directory.getShort(start + 8) & 0xFFFF;
+        final var method = directory.getShort(start + 10) & 0xFFFF;
+        final var dosTime = directory.getInt(start + 12) & ZIP64_LIMIT;
+        final var crc = directory.getInt(start + 16) & ZIP64_LIMIT;
+        var compressedSize = directory.getInt(start + 20) & ZIP64_LIMIT;
+        var size = directory.getInt(start + 24) & ZIP64_LIMIT;
+        final var nameLength = directory.getShort(start + 28) & 0xFFFF;
+        final var extraLength = directory.getShort(start + 30) & 0xFFFF;
+        final var commentLength = directory.getShort(start + 32) & 0xFFFF;
+        var offset = directory.getInt(start + 42) & ZIP64_LIMIT;
+        final var nameBytes = new byte[nameLength];
+        directory.get(start + 46, nameBytes);
+        // The ZIP64 extra field only has the values that did not fit, in this order
+        var extra = start + 46 + nameLength;
+        final var extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            final var id = directory.getShort(extra) & 0xFFFF;
+            final var length = directory.getShort(extra + 2) & 0xFFFF;
+            if (id == ZIP64_EXTRA) {
+                var field = extra + 4;
+                if (size == ZIP64_LIMIT) {
+                    size = directory.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == ZIP64_LIMIT) {
+                    compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (offset == ZIP64_LIMIT) {
+                    offset = directory.getLong(field);
+                }
+            }
+            extra += 4 + length;
+        }
+        directory.position(extraEnd + commentLength);
+        return new Entry(new String(nameBytes, StandardCharsets.UTF_8), method, flags, lastModified(dosTime), crc, size, compressedSize, offset);
+    }
+
+    /**
+     * @return The zip file
+     */
+    Path file() {
+        return file;
+    }
+
+    /**
+     * @return The entries in the order of the central directory
+     */
+    Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * @return The entry with the given name, null if there is none
+     */
+    Entry entry(final String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Copy the compressed data of an entry as it is
+     */
+    void copy(final Entry entry, final OutputStream out) throws IOException {
+        if ((entry.flags() & FLAG_ENCRYPTED) != 0) {
+            throw new IOException("Can't copy the encrypted entry " + entry.name() + " of " + file);
+        }
+        try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final var header = read(channel, entry.offset(), 30);
+            if (header.getInt(0) != LOCAL_HEADER) {
+                throw new IOException(file + " has no local header for " + entry.name());
+            }
+            final var dataOffset = entry.offset() + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+            channel.position(dataOffset);
+            final var in = Channels.newInputStream(channel);
+            final var buffer = new byte[1 << 16];
+            var remaining = entry.compressedSize();
+            while (remaining > 0) {
+                final var read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException(file + " ends within the data of " + entry.name());
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length) throws IOException {
+        final var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of zip file at " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * @return The MS-DOS date and time as milliseconds in the default time zone, the start of 1980 if it is invalid
+     */
+    private static long lastModified(final long dosTime) {
+        try {
+            return LocalDateTime.of((int) (dosTime >> 25 & 0x7F) + 1980, (int) (dosTime >> 21 & 0x0F), (int) (dosTime >> 16 & 0x1F),
+                    (int) (dosTime >> 11 & 0x1F), (int) (dosTime >> 5 & 0x3F), (int) (dosTime << 1 & 0x3E)).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (final DateTimeException e) {
+            return LocalDateTime.of(1980, 1, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * An entry of the zip file
+     *
+     * @param lastModified The modification time in milliseconds, with the two second precision of the zip format
+     * @param offset The offset of the local header of the entry
+     */
+    record Entry(String name, int method, int flags, long lastModified, long crc, long size, long compressedSize, long offset) {
+    }
+
+}
@@ -0,0 +1,239 @@
+package fi.disec.csip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Records the entries of a zip file as they are written, so that writing the zip file can be resumed after the
+ * last entry that was durably written instead of starting over. The zip file is flushed to disk before its
+ * entries are recorded, so every recorded entry is complete in the file. A record that was cut short by a crash
+ * is ignored. Entries are recorded in batches of at least {@link #COMMIT_INTERVAL} bytes by default, or right away
+ * when the fixity of an entry is needed by a later entry, so that many small entries do not each cost a flush to
+ * disk.
+ */
+final class ZipJournal implements Closeable {
+    static final long COMMIT_INTERVAL = 64L << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+    private final Path zip;
+    private final long commitInterval;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Entry> pending = new ArrayList<>();
+    private int next;
+    private long committed;
+    private FileChannel zipChannel;
+    private OutputStream zipOut;
+    private FileChannel journalChannel;
+
+    private ZipJournal(final Path file, final Path zip, final long commitInterval) {
+        this.file = file;
+        this.zip = zip;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Read the entries recorded by previous attempts, nothing is written until {@link #resume(List, List)}
+     *
+     * @param file The journal file, it does not need to exist
+     * @param zip The zip file the journal belongs to
+     * @param commitInterval The minimum number of bytes written between recording entries
+     */
+    static ZipJournal open(final Path file, final Path zip, final long commitInterval) throws IOException {
+        final var journal = new ZipJournal(file, zip, commitInterval);
+        if (Files.exists(file)) {
+            try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                while (true) {
+                    journal.entries.add(read(in));
+                }
+            } catch (final EOFException e) {
+                // The end of the journal, possibly in the middle of a record that was not completely written
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Keep the recorded entries that are the first ones of the zip file being written now, still complete in the
+     * zip file and written from the same bytes as the files that are going to be added, and open the zip file for
+     * writing after them. The files of kept entries are read once to compare their CRC, as files that are built
+     * again for a retry, e.g. METS files with new identifiers, keep their names but not their content.
+     *
+     * @param names The names of the entries that are going to be added, in order
+     * @param files The files that are going to be added with those names
+     * @return This journal
+     */
+    ZipJournal resume(final List<String> names, final List<Path> files) throws IOException {
+        final var zipSize = Files.exists(zip) ? Files.size(zip) : 0;
+        var kept = 0;
+        while (kept < entries.size() && kept < names.size() && entries.get(kept).end() <= zipSize && sameEntry(entries.get(kept).written(), names.get(kept), files.get(kept))) {
+            kept++;
+        }
+        entries.subList(kept, entries.size()).clear();
+        committed = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).end();
+        // The journal is rewritten so that new records are not appended to a partial one
+        final var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (final var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel, entries);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalChannel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        zipChannel = FileChannel.open(zip, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        zipChannel.truncate(committed);
+        zipChannel.position(committed);
+        zipOut = new BufferedOutputStream(Channels.newOutputStream(zipChannel), BUFFER_SIZE);
+        return this;
+    }
+
+    /**
+     * @return The stream to write the rest of the zip file to, positioned after the kept entries
+     */
+    OutputStream output() {
+        return zipOut;
+    }
+
+    /**
+     * @return The number of bytes of the zip file kept
+     */
+    long offset() {
+        return committed;
+    }
+
+    /**
+     * @return The kept entries that have to be in the central directory of the zip file
+     */
+    List<ZipWriter.Written> entries() {
+        return entries.stream().map(Entry::written).toList();
+    }
+
+    /**
+     * @return The kept entry with the given name when it is the next one, null if the entry has to be written
+     */
+    Entry skip(final String name) {
+        if (next < entries.size() && entries.get(next).written().name().equals(name)) {
+            return entries.get(next++);
+        }
+        next = entries.size();
+        return null;
+    }
+
+    /**
+     * Record an entry that has been written
+     *
+     * @param end The offset in the zip file after the entry
+     * @param digest The complete fixity of the entry, null if none was computed
+     * @param commit Whether the entry is recorded right away instead of with the next batch
+     */
+    void written(final ZipWriter.Written written, final long end, final FixityDigest digest, final boolean commit) throws IOException {
+        pending.add(digest == null ? new Entry(written, end, -1, Map.of()) : new Entry(written, end, digest.size(), digest.checksums()));
+        if (commit || end - committed >= commitInterval) {
+            commit();
+        }
+    }
+
+    private void commit() throws IOException {
+        final var last = pending.get(pending.size() - 1);
+        zipOut.flush();
+        zipChannel.force(false);
+        write(journalChannel, pending);
+        journalChannel.force(false);
+        entries.addAll(pending);
+        pending.clear();
+        committed = last.end();
+    }
+
+    /**
+     * Close the journal file, the zip file is closed by its writer
+     */
+    @Override
+    public void close() throws IOException {
+        if (journalChannel != null) {
+            journalChannel.close();
+        }
+    }
+
+    private static boolean sameEntry(final ZipWriter.Written written, final String name, final Path file) throws IOException {
+        if (!written.name().equals(name) || Files.size(file) != written.size()) {
+            return false;
+        }
+        final var crc = new CRC32();
+        final var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) >= 0) {
+                crc.update(buffer.flip());
+            }
+        }
+        return crc.getValue() == written.crc();
+    }
+
+    private static void write(final FileChannel channel, final List<Entry> records) throws IOException {
+        final var bytes = new ByteArrayOutputStream();
+        final var out = new DataOutputStream(bytes);
+        for (final var entry : records) {
+            final var written = entry.written();
+            out.writeUTF(written.name());
+            out.writeInt(written.method());
+            out.writeInt(written.flags());
+            out.writeLong(written.dosTime());
+            out.writeLong(written.crc());
+            out.writeLong(written.size());
+            out.writeLong(written.compressedSize());
+            out.writeLong(written.offset());
+            out.writeLong(entry.end());
+            out.writeLong(entry.digestSize());
+            out.writeInt(entry.checksums().size());
+            for (final var checksum : entry.checksums().entrySet()) {
+                out.writeUTF(checksum.getKey());
+                out.writeUTF(checksum.getValue());
+            }
+        }
+        out.flush();
+        final var buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static Entry read(final DataInputStream in) throws IOException {
+        final var written = new ZipWriter.Written(in.readUTF(), in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        final var end = in.readLong();
+        final var digestSize = in.readLong();
+        final var count = in.readInt();
+        final Map<String, String> checksums = new LinkedHashMap<>();
+        for (var i = 0; i < count; i++) {
+            checksums.put(in.readUTF(), in.readUTF());
+        }
+        return new Entry(written, end, digestSize, checksums);
+    }
+
+    /**
+     * A recorded entry
+     *
+     * @param end The offset in the zip file after the entry
+     * @param digestSize The number of bytes digested for the fixity of the entry, -1 if none was computed
+     * @param checksums The fixity of the entry by algorithm, empty if none was computed
+     */
+    record Entry(ZipWriter.Written written, long end, long digestSize, Map<String, String> checksums) {
+    }
+
+}
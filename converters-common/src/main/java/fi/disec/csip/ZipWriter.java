@@ -0,0 +1,369 @@
+package fi.disec.csip;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the zip file format for entries whose data has already been compressed, which
+ * {@link java.util.zip.ZipOutputStream} does not allow. Uses ZIP64 extensions when sizes,
+ * offsets or the number of entries require it. The central directory headers are encoded as
+ * the entries are closed and kept outside of the heap, so a zip with millions of entries does
+ * not need more heap than one with a few.
+ */
+final class ZipWriter implements Closeable {
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES_LIMIT = 0xFFFF;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private final Counter out;
+    private final CentralDirectory directory = new CentralDirectory();
+    private Entry current;
+    private Entry last;
+
+    ZipWriter(final OutputStream out) {
+        this(out, 0, List.of());
+    }
+
+    /**
+     * Continue a zip file whose entries up to the given offset have already been written by another writer
+     *
+     * @param out The stream to write the rest of the zip file to, positioned at the offset
+     * @param offset The number of bytes of the zip file already written
+     * @param written The entries already written, in the order they were written
+     */
+    ZipWriter(final OutputStream out, final long offset, final List<Written> written) {
+        this.out = new Counter(out);
+        this.out.count = offset;
+        for (final var w : written) {
+            final var entry = new Entry();
+            entry.name = w.name();
+            entry.nameBytes = w.name().getBytes(StandardCharsets.UTF_8);
+            entry.method = w.method();
+            entry.flags = w.flags();
+            entry.dosTime = w.dosTime();
+            entry.crc = w.crc();
+            entry.size = w.size();
+            entry.compressedSize = w.compressedSize();
+            entry.offset = w.offset();
+            directory.add(centralHeader(entry));
+            last = entry;
+        }
+    }
+
+    /**
+     * Start an entry whose CRC and sizes are known before its data is written
+     *
+     * @return The stream to write the already compressed data of the entry to, must not be closed
+     */
+    OutputStream putEntry(final String name, final int method, final long lastModified, final long crc, final long size, final long compressedSize) throws IOException {
+        final var entry = startEntry(name, method, lastModified, 0);
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+        writeLocalHeader(entry);
+        return out;
+    }
+
+    /**
+     * Start a deflated entry whose CRC and compressed size are only known after its data has been written,
+     * they are written in a data descriptor by {@link #closeEntry(long, long, long)}
+     *
+     * @return The stream to write the deflated data of the entry to, must not be closed
+     */
+    OutputStream putEntry(final String name, final long lastModified) throws IOException {
+        final var entry = startEntry(name, ZipEntry.DEFLATED, lastModified, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(entry);
+        return out;
+    }
+
+    /**
+     * Close an entry started with known CRC and sizes
+     */
+    void closeEntry() throws IOException {
+        final var entry = current;
+        current = null;
+        if (out.count - entry.dataOffset != entry.compressedSize) {
+            throw new IOException("Expected " + entry.compressedSize + " bytes for " + entry.name + " but got " + (out.count - entry.dataOffset));
+        }
+        closed(entry);
+    }
+
+    /**
+     * Close an entry started without known CRC and sizes by writing its data descriptor
+     */
+    void closeEntry(final long crc, final long size, final long compressedSize) throws IOException {
+        final var entry = current;
+        current = null;
+        if (out.count - entry.dataOffset != compressedSize) {
+            throw new IOException("Expected " + compressedSize + " bytes for " + entry.name + " but got " + (out.count - entry.dataOffset));
+        }
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+        final var zip64 = size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT;
+        final var buffer = buffer(zip64 ? 24 : 16);
+        buffer.putInt(DATA_DESCRIPTOR).putInt((int) crc);
+        if (zip64) {
+            buffer.putLong(compressedSize).putLong(size);
+        } else {
+            buffer.putInt((int) compressedSize).putInt((int) size);
+        }
+        write(buffer);
+        closed(entry);
+    }
+
+    private void closed(final Entry entry) {
+        directory.add(centralHeader(entry));
+        last = entry;
+    }
+
+    /**
+     * @return The number of bytes written so far
+     */
+    long written() {
+        return out.count;
+    }
+
+    /**
+     * @return The entry closed last, null if no entry has been written
+     */
+    Written lastEntry() {
+        if (current != null) {
+            throw new IllegalStateException("Entry " + current.name + " has not been closed");
+        }
+        if (last == null) {
+            return null;
+        }
+        final var entry = last;
+        return new Written(entry.name, entry.method, entry.flags, entry.dosTime, entry.crc, entry.size, entry.compressedSize, entry.offset);
+    }
+
+    private Entry startEntry(final String name, final int method, final long lastModified, final int flags) {
+        if (current != null) {
+            throw new IllegalStateException("Entry " + current.name + " has not been closed");
+        }
+        final var entry = new Entry();
+        entry.name = name;
+        entry.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        entry.method = method;
+        entry.dosTime = dosTime(lastModified);
+        entry.flags = FLAG_UTF8 | flags;
+        entry.offset = out.count;
+        current = entry;
+        return entry;
+    }
+
+    private void writeLocalHeader(final Entry entry) throws IOException {
+        final var zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+        final var buffer = buffer(30 + entry.nameBytes.length + (zip64 ? 20 : 0));
+        buffer.putInt(LOCAL_HEADER)
+                .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+                .putShort((short) entry.flags)
+                .putShort((short) entry.method)
+                .putInt((int) entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) (zip64 ? ZIP64_LIMIT : entry.compressedSize))
+                .putInt((int) (zip64 ? ZIP64_LIMIT : entry.size))
+                .putShort((short) entry.nameBytes.length)
+                .putShort((short) (zip64 ? 20 : 0))
+                .put(entry.nameBytes);
+        if (zip64) {
+            buffer.putShort((short) ZIP64_EXTRA).putShort((short) 16).putLong(entry.size).putLong(entry.compressedSize);
+        }
+        write(buffer);
+        entry.dataOffset = out.count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (out) {
+            if (current != null) {
+                throw new IllegalStateException("Entry " + current.name + " has not been closed");
+            }
+            final var centralOffset = out.count;
+            directory.writeTo(out);
+            final var count = directory.count;
+            final var centralSize = out.count - centralOffset;
+            final var zip64 = count >= ZIP64_ENTRIES_LIMIT || centralOffset >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT;
+            if (zip64) {
+                final var zip64End = out.count;
+                write(buffer(56 + 20)
+                        .putInt(ZIP64_END).putLong(44).putShort((short) VERSION_ZIP64).putShort((short) VERSION_ZIP64)
+                        .putInt(0).putInt(0).putLong(count).putLong(count).putLong(centralSize).putLong(centralOffset)
+                        .putInt(ZIP64_LOCATOR).putInt(0).putLong(zip64End).putInt(1));
+            }
+            write(buffer(22)
+                    .putInt(END).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) Math.min(count, ZIP64_ENTRIES_LIMIT))
+                    .putShort((short) Math.min(count, ZIP64_ENTRIES_LIMIT))
+                    .putInt((int) Math.min(centralSize, ZIP64_LIMIT))
+                    .putInt((int) Math.min(centralOffset, ZIP64_LIMIT))
+                    .putShort((short) 0));
+            out.flush();
+        } finally {
+            directory.clear();
+        }
+    }
+
+    private static ByteBuffer centralHeader(final Entry entry) {
+        final var zip64Size = entry.size >= ZIP64_LIMIT;
+        final var zip64CompressedSize = entry.compressedSize >= ZIP64_LIMIT;
+        final var zip64Offset = entry.offset >= ZIP64_LIMIT;
+        final var extraSize = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+        final var extraLength = extraSize == 0 ? 0 : 4 + extraSize;
+        final var buffer = buffer(46 + entry.nameBytes.length + extraLength);
+        buffer.putInt(CENTRAL_HEADER)
+                .putShort((short) VERSION_ZIP64)
+                .putShort((short) (extraSize == 0 ? VERSION : VERSION_ZIP64))
+                .putShort((short) entry.flags)
+                .putShort((short) entry.method)
+                .putInt((int) entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) Math.min(entry.compressedSize, ZIP64_LIMIT))
+                .putInt((int) Math.min(entry.size, ZIP64_LIMIT))
+                .putShort((short) entry.nameBytes.length)
+                .putShort((short) extraLength)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putInt(0)
+                .putInt((int) Math.min(entry.offset, ZIP64_LIMIT))
+                .put(entry.nameBytes);
+        if (extraSize > 0) {
+            buffer.putShort((short) ZIP64_EXTRA).putShort((short) extraSize);
+            if (zip64Size) {
+                buffer.putLong(entry.size);
+            }
+            if (zip64CompressedSize) {
+                buffer.putLong(entry.compressedSize);
+            }
+            if (zip64Offset) {
+                buffer.putLong(entry.offset);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static ByteBuffer buffer(final int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return The MS-DOS date in the upper and time in the lower 16 bits
+     */
+    private static long dosTime(final long millis) {
+        final var time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980L) << 25 | (long) time.getMonthValue() << 21 | (long) time.getDayOfMonth() << 16
+                | (long) time.getHour() << 11 | (long) time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * The fields of a written entry that are needed to write its central directory header
+     *
+     * @param offset The offset of the local header of the entry
+     */
+    record Written(String name, int method, int flags, long dosTime, long crc, long size, long compressedSize, long offset) {
+    }
+
+    private static final class Entry {
+        private String name;
+        private byte[] nameBytes;
+        private int method;
+        private int flags;
+        private long dosTime;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+        private long dataOffset;
+    }
+
+    /**
+     * The encoded central directory headers of the closed entries, in direct buffers of a fixed size
+     */
+    private static final class CentralDirectory {
+        private static final int BLOCK_SIZE = 1 << 20;
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final List<ByteBuffer> blocks = new ArrayList<>();
+        private long count;
+
+        private void add(final ByteBuffer header) {
+            while (header.hasRemaining()) {
+                if (blocks.isEmpty() || !blocks.get(blocks.size() - 1).hasRemaining()) {
+                    blocks.add(ByteBuffer.allocateDirect(BLOCK_SIZE));
+                }
+                final var block = blocks.get(blocks.size() - 1);
+                final var length = Math.min(block.remaining(), header.remaining());
+                block.put(header.slice(header.position(), length));
+                header.position(header.position() + length);
+            }
+            count++;
+        }
+
+        private void writeTo(final OutputStream out) throws IOException {
+            final var buffer = new byte[BUFFER_SIZE];
+            for (final var block : blocks) {
+                final var data = block.duplicate().flip();
+                while (data.hasRemaining()) {
+                    final var length = Math.min(buffer.length, data.remaining());
+                    data.get(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                }
+            }
+        }
+
+        private void clear() {
+            blocks.clear();
+        }
+    }
+
+    private static final class Counter extends FilterOutputStream {
+        private long count;
+
+        private Counter(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
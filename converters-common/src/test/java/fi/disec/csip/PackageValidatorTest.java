@@ -0,0 +1,45 @@
+package fi.disec.csip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackageValidatorTest {
+
+    @Test
+    void testValidationOfWrongChecksum() throws IOException {
+        final var file = Files.createTempFile("data", ".txt");
+        try {
+            Files.writeString(file, "content");
+            final var validator = new PackageValidator("AIP");
+            final var mets = ("<mets xmlns=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns:csip=\"https://DILCIS.eu/XML/METS/CSIPExtensionMETS\" OBJID=\"package\">"
+                    + "<metsHdr csip:OAISPACKAGETYPE=\"AIP\"/><fileSec><fileGrp><file SIZE=\"7\" CHECKSUM=\"00\" CHECKSUMTYPE=\"SHA-256\">"
+                    + "<FLocat xlink:href=\"representations/rep1/data/data.txt\"/></file></fileGrp></fileSec><structMap LABEL=\"CSIP\"/></mets>").getBytes(StandardCharsets.UTF_8);
+            final var fileDigest = validator.digest();
+            try (final var out = fileDigest.wrap(OutputStream.nullOutputStream())) {
+                out.write(Files.readAllBytes(file));
+            }
+            validator.file("package/representations/rep1/data/data.txt", file, Files.size(file), fileDigest);
+            final var metsDigest = validator.digest();
+            metsDigest.update(mets, 0, mets.length);
+            validator.content("package/METS.xml", mets, metsDigest);
+            final var report = validator.report(null);
+            assertFalse(report.valid());
+            assertEquals(ValidationReport.Outcome.FAILED, report.requirement("CSIP71").outcome());
+            assertEquals(ValidationReport.Outcome.PASSED, report.requirement("CSIP69").outcome());
+            assertEquals(ValidationReport.Outcome.FAILED, report.requirement("CSIPSTR12").outcome());
+            assertEquals(ValidationReport.Outcome.PASSED, report.requirement("CSIPSTR1").outcome());
+            assertTrue(report.toJson().contains("\"result\" : \"INVALID\""));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+}
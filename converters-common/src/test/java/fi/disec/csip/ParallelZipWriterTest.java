@@ -0,0 +1,250 @@
+package fi.disec.csip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelZipWriterTest {
+
+    @Test
+    void testResumeWritesChangedFilesAgain() throws IOException {
+        final var folder = Files.createTempDirectory("journal");
+        try {
+            final var zip = folder.resolve("package.zip");
+            final var journal = folder.resolve("package.journal");
+            final var names = List.of("package/submission.zip", "package/METS.xml", "package/schemas/mets.xsd");
+            final List<Path> files = new ArrayList<>();
+            for (final var name : names) {
+                files.add(Files.writeString(folder.resolve(Path.of(name).getFileName()), "first " + name));
+            }
+            assertEquals(0, writeJournaled(journal, zip, names, files));
+            // Built again with the same size but other content, e.g. a METS file with new identifiers
+            Files.writeString(files.get(1), "other " + names.get(1));
+            assertEquals(1, writeJournaled(journal, zip, names, files));
+            try (final var zipFile = new ZipFile(zip.toFile())) {
+                assertEquals(names, zipFile.stream().map(ZipEntry::getName).toList());
+                for (var i = 0; i < names.size(); i++) {
+                    try (final var in = zipFile.getInputStream(zipFile.getEntry(names.get(i)))) {
+                        assertArrayEquals(Files.readAllBytes(files.get(i)), in.readAllBytes());
+                    }
+                }
+            }
+        } finally {
+            Utils.deleteIfExists(folder);
+        }
+    }
+
+    @Test
+    void testDeflateInChunks() throws IOException {
+        final var folder = Files.createTempDirectory("chunks");
+        try {
+            // Random and repetitive runs that do not line up with the chunks, so chunks mix both
+            final var random = new Random(1);
+            final var data = new byte[5 * ParallelZipWriter.CHUNK_SIZE + 12345];
+            final var text = "<premis:object>same text over and over</premis:object>\n".getBytes(StandardCharsets.UTF_8);
+            for (var offset = 0; offset < data.length; offset += 300_000) {
+                final var length = Math.min(300_000, data.length - offset);
+                if (offset / 300_000 % 2 == 0) {
+                    final var run = new byte[length];
+                    random.nextBytes(run);
+                    System.arraycopy(run, 0, data, offset, length);
+                } else {
+                    for (var i = 0; i < length; i++) {
+                        data[offset + i] = text[i % text.length];
+                    }
+                }
+            }
+            final var file = Files.write(folder.resolve("mixed.bin"), data);
+            final var small = Files.writeString(folder.resolve("small.txt"), "small");
+            final var zip = folder.resolve("package.zip");
+            try (final var writer = new ParallelZipWriter(Files.newOutputStream(zip), ParallelZipWriter.Options.DEFAULT.withPolicy(CompressionPolicy.deflate(Deflater.DEFAULT_COMPRESSION)))) {
+                writer.add("package/mixed.bin", file);
+                writer.add("package/small.txt", small);
+            }
+            final var crc = new CRC32();
+            crc.update(data);
+            try (final var zipFile = new ZipFile(zip.toFile())) {
+                final var entry = zipFile.getEntry("package/mixed.bin");
+                assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                assertEquals(data.length, entry.getSize());
+                assertTrue(entry.getCompressedSize() < entry.getSize());
+                assertEquals(crc.getValue(), entry.getCrc());
+                try (final var in = zipFile.getInputStream(entry)) {
+                    assertArrayEquals(data, in.readAllBytes());
+                }
+                try (final var in = zipFile.getInputStream(zipFile.getEntry("package/small.txt"))) {
+                    assertEquals("small", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        } finally {
+            Utils.deleteIfExists(folder);
+        }
+    }
+
+    @Test
+    void testCombineCrc32() {
+        final var random = new Random(2);
+        final var data = new byte[3 * ParallelZipWriter.CHUNK_SIZE];
+        random.nextBytes(data);
+        final var whole = new CRC32();
+        whole.update(data);
+        for (final var split : new int[]{0, 1, 17, ParallelZipWriter.CHUNK_SIZE, data.length - 1, data.length}) {
+            final var first = new CRC32();
+            first.update(data, 0, split);
+            final var second = new CRC32();
+            second.update(data, split, data.length - split);
+            assertEquals(whole.getValue(), ParallelZipWriter.Crc32.combine(first.getValue(), second.getValue(), data.length - split), "split at " + split);
+        }
+        // Combined chunk by chunk, as the chunks of an entry are
+        var combined = 0L;
+        for (var offset = 0; offset < data.length; offset += 100_000) {
+            final var chunk = new CRC32();
+            final var length = Math.min(100_000, data.length - offset);
+            chunk.update(data, offset, length);
+            combined = ParallelZipWriter.Crc32.combine(combined, chunk.getValue(), length);
+        }
+        assertEquals(whole.getValue(), combined);
+    }
+
+    @Test
+    void testZip64() throws IOException {
+        final var folder = Files.createTempDirectory("zip64");
+        try {
+            // A sparse file of zeros, stored so that the entry after it starts beyond 4 GiB
+            final var large = folder.resolve("large.mp4");
+            final var size = (4L << 30) + ParallelZipWriter.CHUNK_SIZE + 1;
+            try (final var file = new RandomAccessFile(large.toFile(), "rw")) {
+                file.setLength(size);
+            }
+            final var first = Files.writeString(folder.resolve("first.txt"), "first");
+            final var last = Files.writeString(folder.resolve("last.txt"), "last");
+            final var zip = folder.resolve("package.zip");
+            try (final var writer = new ParallelZipWriter(new SparseOutputStream(zip), ParallelZipWriter.Options.DEFAULT)) {
+                writer.add("package/first.txt", first);
+                writer.add("package/large.mp4", large);
+                writer.add("package/last.txt", last);
+            }
+            final var crc = new CRC32();
+            final var zeros = new byte[1 << 20];
+            for (var remaining = size; remaining > 0; remaining -= zeros.length) {
+                crc.update(zeros, 0, (int) Math.min(zeros.length, remaining));
+            }
+            try (final var zipFile = new ZipFile(zip.toFile())) {
+                final var entry = zipFile.getEntry("package/large.mp4");
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                assertEquals(size, entry.getSize());
+                assertEquals(size, entry.getCompressedSize());
+                assertEquals(crc.getValue(), entry.getCrc());
+                try (final var in = zipFile.getInputStream(zipFile.getEntry("package/last.txt"))) {
+                    assertEquals("last", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+            final var index = ZipIndex.read(zip);
+            assertEquals(size, index.entry("package/large.mp4").size());
+            assertTrue(index.entry("package/last.txt").offset() > 0xFFFFFFFFL);
+        } finally {
+            Utils.deleteIfExists(folder);
+        }
+    }
+
+    @Test
+    void testZipManyFiles() throws IOException {
+        final var folder = Files.createTempDirectory("many-files");
+        final var zip = Files.createTempFile("many-files", ".zip");
+        try {
+            // More entries than fit into the end of central directory without ZIP64
+            final List<String> names = new ArrayList<>();
+            for (var i = 0; i < 0x10100; i++) {
+                names.add(String.format("page-%03d/%05d.txt", i % 257, i));
+            }
+            for (final var name : names) {
+                Files.createDirectories(folder.resolve(name).getParent());
+                Files.writeString(folder.resolve(name), name);
+            }
+            try (final var out = Files.newOutputStream(zip)) {
+                Utils.zip(folder, out, ParallelZipWriter.Options.DEFAULT, Map.of());
+            }
+            try (final var zipFile = new ZipFile(zip.toFile())) {
+                assertEquals(names.stream().sorted().toList(), zipFile.stream().map(ZipEntry::getName).toList());
+                final var last = names.get(names.size() - 1);
+                try (final var in = zipFile.getInputStream(zipFile.getEntry(last))) {
+                    assertEquals(last, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        } finally {
+            Utils.deleteIfExists(folder);
+            Files.deleteIfExists(zip);
+        }
+    }
+
+    /**
+     * @return The number of entries kept from the previous attempt
+     */
+    private static int writeJournaled(final Path journalFile, final Path zip, final List<String> names, final List<Path> files) throws IOException {
+        try (final var journal = ZipJournal.open(journalFile, zip, 0)) {
+            journal.resume(names, files);
+            final var kept = journal.entries().size();
+            try (final var writer = new ParallelZipWriter(journal, ParallelZipWriter.Options.DEFAULT)) {
+                for (var i = 0; i < names.size(); i++) {
+                    writer.add(names.get(i), files.get(i));
+                }
+            }
+            return kept;
+        }
+    }
+
+    /**
+     * Writes a file that skips the runs of zeros, so that a zip of a sparse file is sparse too
+     */
+    private static final class SparseOutputStream extends OutputStream {
+        private final FileChannel channel;
+
+        private SparseOutputStream(final Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            var zeros = true;
+            for (var i = off; i < off + len && zeros; i++) {
+                zeros = b[i] == 0;
+            }
+            if (zeros) {
+                channel.position(channel.position() + len);
+            } else {
+                channel.write(ByteBuffer.wrap(b, off, len));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+}
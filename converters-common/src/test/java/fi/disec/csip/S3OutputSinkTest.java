@@ -0,0 +1,269 @@
+package fi.disec.csip;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3OutputSinkTest {
+
+    @Test
+    void testMemoryOutputSink() {
+        final var memory = OutputSink.memory();
+        memory.write("package", out -> {
+            out.write(1);
+            return null;
+        });
+        assertEquals(Set.of("package"), memory.names());
+        // A failed package leaves nothing behind and keeps the package written earlier, also when its stream was closed
+        assertThrows(IllegalStateException.class, () -> memory.write("package", out -> {
+            out.write(2);
+            out.close();
+            throw new IllegalStateException("The package could not be written");
+        }));
+        assertThrows(UncheckedIOException.class, () -> memory.write("failed", out -> {
+            out.write(3);
+            throw new IOException("The package could not be written");
+        }));
+        assertEquals(Set.of("package"), memory.names());
+        assertArrayEquals(new byte[]{1}, memory.get("package"));
+    }
+
+    @Test
+    void testDirectoryOutputSink() throws IOException {
+        final var directory = Files.createTempDirectory("sink");
+        try {
+            final var sink = OutputSink.directory(directory);
+            final var zip = directory.resolve("package.zip");
+            sink.write("package", out -> {
+                out.write(1);
+                // The package is only moved to its zip file once it is complete
+                assertFalse(Files.exists(zip));
+                return null;
+            });
+            assertArrayEquals(new byte[]{1}, Files.readAllBytes(zip));
+            // A failed package of a later run leaves the zip file of the earlier one as it is, also when its stream was closed
+            assertThrows(UncheckedIOException.class, () -> sink.write("package", out -> {
+                out.write(2);
+                throw new IOException("The package could not be written");
+            }));
+            assertThrows(IllegalStateException.class, () -> sink.write("package", out -> {
+                out.write(3);
+                out.close();
+                throw new IllegalStateException("The package could not be written");
+            }));
+            assertArrayEquals(new byte[]{1}, Files.readAllBytes(zip));
+            sink.write("package", out -> {
+                out.write(4);
+                return null;
+            });
+            assertArrayEquals(new byte[]{4}, Files.readAllBytes(zip));
+            try (final var files = Files.list(directory)) {
+                assertEquals(List.of(zip), files.toList());
+            }
+        } finally {
+            Utils.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    void testUpload() throws IOException {
+        final var server = new MockS3();
+        try (final var sink = new S3OutputSink(server.endpoint(), "us-east-1", "bucket", "aips/", "access", "secret", S3OutputSink.MIN_PART_SIZE, 2)) {
+            // Small packages are uploaded with a single request
+            final var small = "small".getBytes(StandardCharsets.UTF_8);
+            sink.write("small", out -> {
+                out.write(small);
+                return null;
+            });
+            assertArrayEquals(small, server.objects.get("/bucket/aips/small.zip"));
+            assertEquals(0, server.parts.get());
+            // Larger ones with a multipart upload, the last part being smaller
+            final var data = data();
+            try (final var out = sink.open("large package")) {
+                for (var offset = 0; offset < data.length; offset += 100_000) {
+                    out.write(data, offset, Math.min(100_000, data.length - offset));
+                }
+            }
+            assertArrayEquals(data, server.objects.get("/bucket/aips/large%20package.zip"));
+            assertEquals(3, server.parts.get());
+            assertEquals(1, server.completed.get());
+            assertTrue(server.authorizations.stream().allMatch(authorization -> authorization.startsWith("AWS4-HMAC-SHA256 Credential=access/") && authorization.contains("/us-east-1/s3/aws4_request")));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testFailedPackageIsAborted() throws IOException {
+        final var server = new MockS3();
+        try (final var sink = new S3OutputSink(server.endpoint(), "us-east-1", "bucket", "aips/", "access", "secret", S3OutputSink.MIN_PART_SIZE, 2)) {
+            // A failing package is aborted, neither publishing a partial object nor replacing an existing one
+            final var existing = "existing".getBytes(StandardCharsets.UTF_8);
+            server.objects.put("/bucket/aips/large%20package.zip", existing);
+            final var data = data();
+            assertThrows(UncheckedIOException.class, () -> sink.write("large package", out -> {
+                out.write(data);
+                throw new IOException("The package could not be written");
+            }));
+            assertArrayEquals(existing, server.objects.get("/bucket/aips/large%20package.zip"));
+            assertEquals(1, server.aborted.get());
+            assertEquals(0, server.completed.get());
+            assertTrue(server.uploadedParts.isEmpty());
+            // Also when the writer closes its stream before failing, or the package fits into a single part
+            assertThrows(IllegalStateException.class, () -> sink.write("large package", out -> {
+                out.write(data, 0, 1000);
+                out.close();
+                throw new IllegalStateException("The package could not be written");
+            }));
+            assertArrayEquals(existing, server.objects.get("/bucket/aips/large%20package.zip"));
+            assertThrows(UncheckedIOException.class, () -> sink.write("small", out -> {
+                out.write(data, 0, 1000);
+                throw new IOException("The package could not be written");
+            }));
+            assertFalse(server.objects.containsKey("/bucket/aips/small.zip"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testFailedPartIsAborted() throws IOException {
+        final var server = new MockS3();
+        server.failingPart = "2";
+        try (final var sink = new S3OutputSink(server.endpoint(), "us-east-1", "bucket", "aips/", "access", "secret", S3OutputSink.MIN_PART_SIZE, 2)) {
+            // The store keeps failing the second part, so the upload is aborted with a DELETE instead of being completed
+            final var data = data();
+            assertThrows(UncheckedIOException.class, () -> sink.write("large package", out -> {
+                for (var offset = 0; offset < data.length; offset += 100_000) {
+                    out.write(data, offset, Math.min(100_000, data.length - offset));
+                }
+                return null;
+            }));
+            assertNull(server.objects.get("/bucket/aips/large%20package.zip"));
+            assertEquals(1, server.aborted.get());
+            assertEquals(0, server.completed.get());
+            assertTrue(server.uploadedParts.isEmpty());
+            // The buffers of the failed upload were released, otherwise the next upload would wait forever
+            sink.write("large package", out -> {
+                out.write(data, 0, S3OutputSink.MIN_PART_SIZE);
+                return null;
+            });
+            assertEquals(S3OutputSink.MIN_PART_SIZE, server.objects.get("/bucket/aips/large%20package.zip").length);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return Random bytes for two full parts and a smaller last one
+     */
+    private static byte[] data() {
+        final var data = new byte[2 * S3OutputSink.MIN_PART_SIZE + 12345];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Just enough of the S3 API for {@link S3OutputSink}
+     */
+    private static final class MockS3 {
+        private final HttpServer server;
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> uploadedParts = new ConcurrentHashMap<>();
+        private final AtomicInteger parts = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger aborted = new AtomicInteger();
+        private final List<String> authorizations = new CopyOnWriteArrayList<>();
+        /**
+         * The number of the part whose upload fails with a server error, null to store all parts
+         */
+        private volatile String failingPart;
+
+        private MockS3() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/", exchange -> {
+                authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                final var path = exchange.getRequestURI().getRawPath();
+                final var query = exchange.getRequestURI().getRawQuery() == null ? "" : exchange.getRequestURI().getRawQuery();
+                final var body = exchange.getRequestBody().readAllBytes();
+                var response = "";
+                switch (exchange.getRequestMethod() + " " + query.replaceAll("=[^&]*", "")) {
+                    case "POST uploads" -> response = "<InitiateMultipartUploadResult><UploadId>upload/1</UploadId></InitiateMultipartUploadResult>";
+                    case "PUT partNumber&uploadId" -> {
+                        final var part = query.substring("partNumber=".length(), query.indexOf('&'));
+                        if (part.equals(failingPart)) {
+                            exchange.sendResponseHeaders(500, -1);
+                            exchange.close();
+                            return;
+                        }
+                        uploadedParts.put(path + "#" + part, body);
+                        parts.incrementAndGet();
+                        exchange.getResponseHeaders().add("ETag", "\"etag-" + part + "\"");
+                    }
+                    case "POST uploadId" -> {
+                        final var object = new ByteArrayOutputStream();
+                        final var matcher = Pattern.compile("<PartNumber>(\\d+)</PartNumber><ETag>\"etag-(\\d+)\"</ETag>").matcher(new String(body, StandardCharsets.UTF_8));
+                        while (matcher.find()) {
+                            object.write(uploadedParts.remove(path + "#" + matcher.group(1)));
+                        }
+                        objects.put(path, object.toByteArray());
+                        completed.incrementAndGet();
+                        response = "<CompleteMultipartUploadResult><Key>" + path + "</Key></CompleteMultipartUploadResult>";
+                    }
+                    case "PUT " -> objects.put(path, body);
+                    case "DELETE " -> objects.remove(path);
+                    case "DELETE uploadId" -> {
+                        uploadedParts.keySet().removeIf(part -> part.startsWith(path + "#"));
+                        aborted.incrementAndGet();
+                    }
+                    default -> {
+                        exchange.sendResponseHeaders(400, -1);
+                        exchange.close();
+                        return;
+                    }
+                }
+                final var bytes = response.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+                exchange.getResponseBody().write(bytes);
+                exchange.close();
+            });
+            server.start();
+        }
+
+        private URI endpoint() {
+            return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+        }
+
+        private void stop() {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+}
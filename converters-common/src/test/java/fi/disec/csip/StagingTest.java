@@ -0,0 +1,87 @@
+package fi.disec.csip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class StagingTest {
+    /**
+     * A memory file system on most Linux hosts, so another file store than the default temp directory
+     */
+    private static final Path OTHER_STORE = Path.of("/dev/shm");
+
+    @Test
+    void testStageOnSameFileStore() throws IOException {
+        final var folder = Files.createTempDirectory("staging");
+        try {
+            final var source = Files.writeString(folder.resolve("source.txt"), "content");
+            final var target = folder.resolve("target.txt");
+            assertEquals(Staging.Method.LINK, Staging.stage(source, target));
+            assertEquals("content", Files.readString(target));
+            assertTrue(Files.isSameFile(source, target));
+        } finally {
+            Utils.deleteIfExists(folder);
+        }
+    }
+
+    @Test
+    void testStageInputIsNoWritableAlias() throws IOException {
+        final var folder = Files.createTempDirectory("staging");
+        try {
+            // A writable input is cloned or copied, so writing the staged file leaves the input as it is
+            final var source = Files.writeString(folder.resolve("source.txt"), "content");
+            final var target = folder.resolve("target.txt");
+            assertNotEquals(Staging.Method.LINK, Staging.stageInput(source, target));
+            Files.writeString(target, "changed");
+            assertEquals("content", Files.readString(source));
+            // A read-only input can be linked, the link is read-only too
+            final var readOnly = Files.writeString(folder.resolve("read-only.txt"), "content");
+            assumeTrue(readOnly.toFile().setWritable(false) && !Files.isWritable(readOnly), "Files stay writable, e.g. for root");
+            final var linked = folder.resolve("linked.txt");
+            assertEquals(Staging.Method.LINK, Staging.stageInput(readOnly, linked));
+            assertFalse(Files.isWritable(linked));
+        } finally {
+            Utils.deleteIfExists(folder);
+        }
+    }
+
+    @Test
+    void testStageOnOtherFileStore() throws IOException {
+        assumeTrue(Files.isDirectory(OTHER_STORE) && Files.isWritable(OTHER_STORE));
+        final var folder = Files.createTempDirectory("staging");
+        final var other = Files.createTempDirectory(OTHER_STORE, "staging");
+        try {
+            final var store = Files.getFileStore(other);
+            assumeFalse(Files.getFileStore(folder).equals(store));
+            // The link fails across file stores, a small file is then copied without trying to clone it
+            final var small = Files.writeString(folder.resolve("small.txt"), "content");
+            assertEquals(Staging.Method.COPY, Staging.stage(small, other.resolve("small.txt")));
+            assertEquals("content", Files.readString(other.resolve("small.txt")));
+            // A large file is cloned where the file store supports it, otherwise the store is remembered
+            final var large = folder.resolve("large.bin");
+            try (final var file = new RandomAccessFile(large.toFile(), "rw")) {
+                file.setLength(Staging.REFLINK_MIN_SIZE);
+            }
+            final var method = Staging.stage(large, other.resolve("large.bin"));
+            assertEquals(Staging.REFLINK_MIN_SIZE, Files.size(other.resolve("large.bin")));
+            if (method == Staging.Method.COPY) {
+                assertTrue(Staging.NO_REFLINK.contains(store));
+                assertEquals(Staging.Method.COPY, Staging.stage(large, other.resolve("again.bin")));
+            }
+        } finally {
+            Utils.deleteIfExists(folder);
+            Utils.deleteIfExists(other);
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package fi.disec.csip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TempReclaimerTest {
+
+    @Test
+    void testCreateWhileRootIsScanned() throws Exception {
+        final var root = Files.createTempDirectory("reclaimer-root");
+        final var pool = Executors.newFixedThreadPool(8);
+        final var scanning = new AtomicBoolean(true);
+        try {
+            final List<Path> orphans = new ArrayList<>();
+            for (var i = 0; i < 200; i++) {
+                // A folder left behind by a crashed process, with the folders it extracted into, has a lease that no process holds
+                final var orphan = Files.createDirectories(root.resolve("orphan-" + i));
+                Files.writeString(Files.createDirectory(orphan.resolve("extracted")).resolve("file.txt"), "content");
+                Files.createFile(orphan.resolve(TempReclaimer.LEASE));
+                orphans.add(orphan);
+            }
+            // Scans the root the way the reclaimer of another process does, and records the leases it could lock
+            final Set<Path> unlocked = ConcurrentHashMap.newKeySet();
+            final var scanner = pool.submit(() -> {
+                while (scanning.get()) {
+                    try (final DirectoryStream<Path> folders = Files.newDirectoryStream(root, path -> path.getFileName().toString().startsWith("sip-to-aip"))) {
+                        for (final var folder : folders) {
+                            try (final var lease = FileChannel.open(folder.resolve(TempReclaimer.LEASE), StandardOpenOption.WRITE)) {
+                                if (lease.tryLock() != null) {
+                                    unlocked.add(folder);
+                                }
+                            } catch (final IOException | OverlappingFileLockException e) {
+                                // Locked by this process or not leased yet
+                            }
+                        }
+                    }
+                }
+                return null;
+            });
+            final List<Callable<Path>> creates = new ArrayList<>();
+            for (var i = 0; i < 400; i++) {
+                creates.add(() -> {
+                    final var folder = TempReclaimer.create(root, "sip-to-aip");
+                    Files.writeString(folder.resolve("file.txt"), "content");
+                    return folder;
+                });
+            }
+            final List<Path> folders = new ArrayList<>();
+            for (final Future<Path> future : pool.invokeAll(creates)) {
+                folders.add(future.get());
+            }
+            scanning.set(false);
+            scanner.get();
+            assertEquals(Set.of(), unlocked);
+            // The reclaimer runs its tasks in order, so its scan is done once a folder reclaimed after it is gone
+            final var last = TempReclaimer.create(root, "last");
+            TempReclaimer.reclaim(last);
+            for (var i = 0; i < 200 && Files.exists(last); i++) {
+                Thread.sleep(50);
+            }
+            assertFalse(Files.exists(last));
+            assertTrue(orphans.stream().noneMatch(Files::exists));
+            for (final var folder : folders) {
+                assertTrue(Files.isRegularFile(folder.resolve("file.txt")), folder::toString);
+                TempReclaimer.reclaim(folder);
+            }
+        } finally {
+            scanning.set(false);
+            pool.shutdown();
+            Utils.deleteIfExists(root);
+        }
+    }
+
+}
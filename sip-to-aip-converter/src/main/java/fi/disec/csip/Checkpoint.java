@@ -0,0 +1,163 @@
+package fi.disec.csip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The state of a resumable conversion kept in a job directory: which stages have completed and the values a
+ * retry needs from them. The state is replaced atomically after each stage and the directory is locked while a
+ * conversion uses it. The state belongs to one input, the directory is cleared when it is used for another
+ * input, for an input that has changed since or with other settings.
+ */
+final class Checkpoint implements Closeable {
+    private static final String STATE = "checkpoint.properties";
+    private static final String LOCK = ".lock";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String COMPLETED = "completed.";
+
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final Properties state;
+
+    private Checkpoint(final Path directory, final FileChannel lockChannel, final Properties state) {
+        this.directory = directory;
+        this.lockChannel = lockChannel;
+        this.state = state;
+    }
+
+    /**
+     * Lock the job directory and read its state, the directory is created if needed
+     *
+     * @param input The input of the conversion, its path, size and modification time are compared to those of the
+     * previous attempt
+     * @param settings Everything else that must not have changed since the previous attempt, e.g. the output path
+     * @throws IllegalStateException If another conversion is using the job directory
+     */
+    static Checkpoint open(final Path directory, final Path input, final String settings) {
+        try {
+            Files.createDirectories(directory);
+            final var lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            final FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (final IOException | OverlappingFileLockException e) {
+                lockChannel.close();
+                throw new IllegalStateException("Job directory " + directory + " is used by another conversion", e);
+            }
+            if (lock == null) {
+                lockChannel.close();
+                throw new IllegalStateException("Job directory " + directory + " is used by another conversion");
+            }
+            final var fingerprint = input.toAbsolutePath().normalize() + "\n" + Utils.size(input) + "\n" + Files.getLastModifiedTime(input).toMillis() + "\n" + settings;
+            final var state = new Properties();
+            final var stateFile = directory.resolve(STATE);
+            if (Files.exists(stateFile)) {
+                try (final var in = Files.newBufferedReader(stateFile)) {
+                    state.load(in);
+                }
+            }
+            final var checkpoint = new Checkpoint(directory, lockChannel, state);
+            if (!fingerprint.equals(state.getProperty(FINGERPRINT))) {
+                checkpoint.clear();
+                state.clear();
+                state.setProperty(FINGERPRINT, fingerprint);
+                checkpoint.save();
+            }
+            return checkpoint;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    boolean completed(final Stage stage) {
+        return state.containsKey(COMPLETED + stage);
+    }
+
+    /**
+     * @return A value saved when a stage completed, null if there is none
+     */
+    String get(final String key) {
+        return state.getProperty(key);
+    }
+
+    /**
+     * Mark a stage as completed and save it with the values a retry needs
+     */
+    void complete(final Stage stage, final Map<String, String> values) {
+        state.putAll(values);
+        state.setProperty(COMPLETED + stage, "true");
+        try {
+            save();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return A path in the job directory
+     */
+    Path resolve(final String name) {
+        return directory.resolve(name);
+    }
+
+    /**
+     * @return A folder in the job directory, created if it does not exist
+     */
+    Path folder(final String name) throws IOException {
+        return Files.createDirectories(directory.resolve(name));
+    }
+
+    /**
+     * @return An empty folder in the job directory, anything left in it by a previous attempt is deleted
+     */
+    Path reset(final String name) throws IOException {
+        final var folder = directory.resolve(name);
+        Utils.deleteIfExists(folder);
+        return Files.createDirectories(folder);
+    }
+
+    /**
+     * Delete the job directory once the conversion has completed
+     */
+    void delete() throws IOException {
+        close();
+        Utils.deleteIfExists(directory);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Closing the channel releases the lock
+        lockChannel.close();
+    }
+
+    private void save() throws IOException {
+        final var temp = directory.resolve(STATE + ".tmp");
+        try (final var out = Files.newBufferedWriter(temp)) {
+            state.store(out, null);
+        }
+        try (final var channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(STATE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void clear() throws IOException {
+        try (final DirectoryStream<Path> children = Files.newDirectoryStream(directory, path -> !path.getFileName().toString().equals(LOCK))) {
+            for (final var child : children) {
+                Utils.deleteIfExists(child);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package fi.disec.csip;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the PREMIS file of a package one element at a time, instead of building a JAXB model of it and
+ * marshalling that. No JAXB context is needed, and adding file objects to an existing PREMIS file copies it
+ * in a single streaming pass, so the memory used does not grow with the number of objects in the file.
+ */
+final class PremisWriter {
+    static final String PREMIS_NS = "http://www.loc.gov/premis/v3";
+
+    private static final String VERSION = "3.0";
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newFactory();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final List<FileObject> files = new ArrayList<>();
+    private final List<String[]> agents = new ArrayList<>();
+
+    /**
+     * Add a file object with its size and fixity
+     *
+     * @param path The package relative path of the file, used as its local identifier
+     * @param formatName The name of the format of the file
+     * @param fixity The complete fixity of the file
+     * @return this
+     */
+    PremisWriter file(final String path, final String formatName, final FixityDigest fixity) {
+        files.add(new FileObject(path, formatName, fixity.size(), new LinkedHashMap<>(fixity.checksums())));
+        return this;
+    }
+
+    /**
+     * Add an agent, agents are only written into new PREMIS files
+     *
+     * @param name The name of the agent
+     * @param type The type of the agent, e.g. Software
+     * @return this
+     */
+    PremisWriter agent(final String name, final String type) {
+        agents.add(new String[]{name, type});
+        return this;
+    }
+
+    /**
+     * Write a new PREMIS file with the added objects and agents. The stream is not closed.
+     */
+    void write(final OutputStream out) throws XMLStreamException {
+        final XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        try {
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            writer.writeStartElement("", "premis", PREMIS_NS);
+            writer.writeDefaultNamespace(PREMIS_NS);
+            writer.writeNamespace("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+            writer.writeAttribute("version", VERSION);
+            writeFiles(writer, "");
+            // The PREMIS schema puts agents after objects and events
+            for (final var agent : agents) {
+                writer.writeStartElement("", "agent", PREMIS_NS);
+                element(writer, "", "agentName", agent[0]);
+                element(writer, "", "agentType", agent[1]);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Copy an existing PREMIS file from in to out with the added file objects after its last object. The agents
+     * of the existing file are kept as they are. Neither stream is closed.
+     */
+    void append(final InputStream in, final OutputStream out) throws XMLStreamException {
+        final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        final XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        try {
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), reader.getVersion() == null ? "1.0" : reader.getVersion());
+            var depth = 0;
+            var written = false;
+            var prefix = "";
+            while (reader.hasNext()) {
+                final var event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 1) {
+                        prefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+                    } else if (depth == 2 && !written && !(PREMIS_NS.equals(reader.getNamespaceURI()) && "object".equals(reader.getLocalName()))) {
+                        writeFiles(writer, prefix);
+                        written = true;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 1 && !written) {
+                        writeFiles(writer, prefix);
+                        written = true;
+                    }
+                    depth--;
+                }
+                MetsPatcher.copy(event, reader, writer);
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    private void writeFiles(final XMLStreamWriter writer, final String prefix) throws XMLStreamException {
+        for (final var file : files) {
+            writer.writeStartElement(prefix, "object", PREMIS_NS);
+            final var xsi = writer.getNamespaceContext().getPrefix(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+            if (xsi == null) {
+                writer.writeNamespace("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+            }
+            writer.writeAttribute(xsi == null ? "xsi" : xsi, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", prefix.isEmpty() ? "file" : prefix + ":file");
+            writer.writeStartElement(prefix, "objectIdentifier", PREMIS_NS);
+            element(writer, prefix, "objectIdentifierType", "local");
+            element(writer, prefix, "objectIdentifierValue", file.path());
+            writer.writeEndElement();
+            writer.writeStartElement(prefix, "objectCharacteristics", PREMIS_NS);
+            for (final var checksum : file.checksums().entrySet()) {
+                writer.writeStartElement(prefix, "fixity", PREMIS_NS);
+                element(writer, prefix, "messageDigestAlgorithm", checksum.getKey());
+                element(writer, prefix, "messageDigest", checksum.getValue());
+                writer.writeEndElement();
+            }
+            element(writer, prefix, "size", Long.toString(file.size()));
+            writer.writeStartElement(prefix, "format", PREMIS_NS);
+            writer.writeStartElement(prefix, "formatDesignation", PREMIS_NS);
+            element(writer, prefix, "formatName", file.formatName());
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+    }
+
+    private static void element(final XMLStreamWriter writer, final String prefix, final String localName, final String value) throws XMLStreamException {
+        writer.writeStartElement(prefix, localName, PREMIS_NS);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+
+    private record FileObject(String path, String formatName, long size, Map<String, String> checksums) {
+    }
+
+}
@@ -1,9 +1,5 @@
 package fi.disec.csip;
 
-import gov.loc.premis.v3.AgentComplexType;
-import gov.loc.premis.v3.ObjectFactory;
-import gov.loc.premis.v3.PremisComplexType;
-import gov.loc.premis.v3.StringPlusAuthority;
 import org.roda_project.commons_ip.model.ParseException;
 import org.roda_project.commons_ip.utils.IPException;
 import org.roda_project.commons_ip.utils.METSEnums;
@@ -11,26 +7,53 @@ import org.roda_project.commons_ip2.model.*;
 import org.roda_project.commons_ip2.model.impl.BasicAIP;
 import org.roda_project.commons_ip2.model.impl.eark.EARKAIP;
 import org.roda_project.commons_ip2.model.impl.eark.EARKSIP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static fi.disec.csip.Utils.*;
 
 
 public class SIPToAIPConverter {
-    private static final String PREMIS_PACKAGE = "gov.loc.premis.v3";
+    private static final Logger LOGGER = LoggerFactory.getLogger(SIPToAIPConverter.class);
+    private static final String CONVERTER = "sip-to-aip";
     private static final String PREMIS_FILENAME = "premis.xml";
     private static final String PREMIS_SCHEMA = "premis.xsd";
     private static final String PREMIS_CLASSPATH = "premis/v3/" + PREMIS_SCHEMA;
+    private static final String PREMIS_PATH = IPConstants.METADATA + "/preservation/" + PREMIS_FILENAME;
+    private static final String METS_FILENAME = "METS.xml";
+    private static final String CHECKSUM_ALGORITHM = "SHA-256";
+    private static final String JOURNAL_FILENAME = "aip.journal";
+    private static final String BASE_PATH = "basePath";
+    private static final String ID = "id";
+    private static final String PARENT_LABEL = "Parent";
+    private static final String CHILDREN_LABEL = "Children";
+    private static final Set<String> METADATA_FOLDERS = Set.of(METS_FILENAME, IPConstants.METADATA, IPConstants.SCHEMAS);
     private static final IPAgent CREATOR_AGENT = new IPAgent(
             "YksaSipToAip",
             "CREATOR",
@@ -41,6 +64,56 @@ public class SIPToAIPConverter {
             IPAgentNoteTypeEnum.SOFTWARE_VERSION
     );
 
+    private final CompressionPolicy compressionPolicy;
+    private final ConversionListener listener;
+    private final List<String> fixityAlgorithms;
+    private final ConverterConfig config;
+
+    public SIPToAIPConverter() {
+        this(CompressionPolicy.DEFAULT);
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the AIP zip are stored and which are deflated with which level
+     */
+    public SIPToAIPConverter(final CompressionPolicy compressionPolicy) {
+        this(compressionPolicy, ConversionListener.NONE);
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the AIP zip are stored and which are deflated with which level
+     * @param listener Receives the metrics of each stage and the progress of conversions from a path
+     */
+    public SIPToAIPConverter(final CompressionPolicy compressionPolicy, final ConversionListener listener) {
+        this(compressionPolicy, listener, List.of(CHECKSUM_ALGORITHM));
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the AIP zip are stored and which are deflated with which level
+     * @param listener Receives the metrics of each stage and the progress of conversions from a path
+     * @param fixityAlgorithms The checksums of the submission recorded in the PREMIS file, e.g. SHA-256 and MD5,
+     * the first one is also used in METS.xml. They are computed while the submission is zipped.
+     */
+    public SIPToAIPConverter(final CompressionPolicy compressionPolicy, final ConversionListener listener, final List<String> fixityAlgorithms) {
+        this(compressionPolicy, listener, fixityAlgorithms, ConverterConfig.DEFAULT);
+    }
+
+    /**
+     * @param compressionPolicy Decides which files of the AIP zip are stored and which are deflated with which level
+     * @param listener Receives the metrics of each stage and the progress of conversions from a path
+     * @param fixityAlgorithms The checksums of the submission recorded in the PREMIS file, e.g. SHA-256 and MD5,
+     * the first one is also used in METS.xml. They are computed while the submission is zipped.
+     * @param config Where the temp folders are created and how much space they may use
+     */
+    public SIPToAIPConverter(final CompressionPolicy compressionPolicy, final ConversionListener listener, final List<String> fixityAlgorithms, final ConverterConfig config) {
+        // Fails early on unknown algorithms
+        new FixityDigest(fixityAlgorithms);
+        this.compressionPolicy = compressionPolicy;
+        this.listener = listener;
+        this.fixityAlgorithms = List.copyOf(fixityAlgorithms);
+        this.config = config;
+    }
+
     /**
      * Convert a SIP into a zipped AIP and write it to disk
      *
@@ -56,6 +129,18 @@ public class SIPToAIPConverter {
         }
     }
 
+    /**
+     * Convert a SIP into a zipped AIP and write it to a sink, e.g. to upload it while it is written. The AIP is
+     * named after the SIP without a .zip extension, and its output is aborted when the conversion fails.
+     *
+     * @param sip Path to the SIP, this is directly passed to {@link EARKSIP#parse(Path, Path)}
+     * @param sink Where the zip file is written to
+     * @return The resulting AIP that has already been written to the sink
+     */
+    public AIP convert(final Path sip, final OutputSink sink) {
+        return sink.write(BatchConverter.name(sip), out -> convert(sip, out));
+    }
+
     /**
      * Convert a SIP into a zipped AIP and write it into an outputStream
      *
@@ -64,28 +149,153 @@ public class SIPToAIPConverter {
      * @return The resulting AIP that has already been written to the outputStream
      */
     public AIP convert(final Path sip, final OutputStream out) {
-        Path tempFolder = null;
+        ScratchSpace.Lease scratch = null;
         try {
-            tempFolder = Files.createTempDirectory("sip-to-aip");
-            final var sipTemp = Files.createTempDirectory(tempFolder, "sip-extracted");
-            final var aipTemp = Files.createTempDirectory(tempFolder, "aip-extracted");
-            final IPInterface earksip = EARKSIP.parse(sip, sipTemp);
-            final var aip = convert(earksip, tempFolder);
-            final Path built;
+            // The SIP is extracted, a zipped SIP is then streamed as is and an extracted one is zipped
+            scratch = ScratchSpace.acquire(config, "sip-to-aip", extractedSize(sip));
+            final var recorder = new ConversionRecorder(CONVERTER, sip, scratch.folder(), listener);
+            final var built = build(sip, scratch, recorder);
+            final var aip = built.aip();
+            recorder.start();
+            final var validator = config.validate() ? new PackageValidator("AIP") : null;
+            final var stats = write(built, out, validator, null, recorder.progress(Stage.ZIP, built.size()));
+            recorder.end(Stage.ZIP, stats);
+            LOGGER.info("Zipped AIP {}: {}", aip.getId(), stats);
+            if (validator != null) {
+                recorder.validated(validator.report(null));
+            }
+            recorder.completed(aip.getId());
+            return aip;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (final ParseException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (scratch != null) {
+                scratch.close();
+            }
+        }
+    }
+
+    /**
+     * Parse a SIP and build the AIP into the folder of the scratch space, without zipping it
+     *
+     * @param sip Path to the SIP, this is directly passed to {@link EARKSIP#parse(Path, Path)}
+     * @return The built AIP to {@link #write(BuiltAip, OutputStream, PackageValidator, OutputStream, LongConsumer) write}
+     */
+    BuiltAip build(final Path sip, final ScratchSpace.Lease scratch, final ConversionRecorder recorder) throws IOException, ParseException {
+        final var tempFolder = scratch.folder();
+        final var sipTemp = Files.createTempDirectory(tempFolder, "sip-extracted");
+        final var aipTemp = Files.createTempDirectory(tempFolder, "aip-extracted");
+        recorder.start();
+        final IPInterface earksip = EARKSIP.parse(sip, sipTemp);
+        recorder.end(Stage.PARSE, recorder.usage(sip).bytes());
+        scratch.checkQuota();
+        // A zipped SIP is stored as is, instead of zipping the extracted SIP again
+        final var submissionSource = Files.isRegularFile(sip) ? sip : zipSubmission(earksip, tempFolder, recorder);
+        // The submission is only a placeholder while building, so that its bytes are not copied into the built
+        // AIP but streamed from the source when zipping
+        final var placeholder = Files.createFile(tempFolder.resolve("submission-placeholder"));
+        final var aip = convert(earksip, tempFolder, new IPFile(placeholder, earksip.getId() + ".zip"), recorder, UUID.randomUUID().toString());
+        recorder.start();
+        final Path built;
+        try {
+            built = aip.build(aipTemp);
+        } catch (final IPException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        final var aipSize = recorder.usage(aipTemp).bytes();
+        recorder.end(Stage.BUILD, aipSize);
+        scratch.checkQuota();
+        final var submission = IPConstants.SUBMISSION + "/" + earksip.getId() + ".zip";
+        return new BuiltAip(aip, aipTemp.resolve(aip.getId()), submission, submissionSource, aipSize + Files.size(submissionSource));
+    }
+
+    /**
+     * Zip an AIP built by {@link #build(Path, ScratchSpace.Lease, ConversionRecorder)}
+     *
+     * @param out The stream to write the zip file to, it is closed once the zip has been written
+     * @param validator Validates the AIP as it is written, null to not validate it
+     * @param premisCopy Also receives the generated PREMIS file, may be null
+     * @param progress Called with the number of uncompressed bytes written so far, may be null
+     */
+    CompressionStats write(final BuiltAip built, final OutputStream out, final PackageValidator validator, final OutputStream premisCopy, final LongConsumer progress) throws IOException {
+        return zipAip(built.root(), built.submission(), built.submissionSource(), out, null, validator, premisCopy, new MetsPatcher(), progress);
+    }
+
+    /**
+     * Convert a SIP into a zipped AIP keeping the progress in a job directory, so that a conversion that failed
+     * continues after its last completed stage when it is retried with the same arguments. The extracted SIP and
+     * the zipped submission of an extracted SIP are kept in the job directory, and the entries of the AIP zip are
+     * journaled as they are written, so a retry keeps the completely written entries of the zip file and appends
+     * to them. Building the AIP only writes its metadata and is repeated, keeping the id of the AIP. Built files
+     * that differ from the ones of the previous attempt, e.g. METS files with new identifiers, are written again
+     * from the first one that differs. The job
+     * directory is used instead of a temp folder and deleted once the AIP has been written. A job directory of
+     * another SIP, or of a SIP that has changed since, is cleared and the conversion starts over.
+     *
+     * @param sip Path to the SIP, this is directly passed to {@link EARKSIP#parse(Path, Path)}
+     * @param aip Path to write the zip file to, it is kept when the conversion fails
+     * @param jobDirectory The directory holding the state of the conversion, it can only be used by one
+     * conversion at a time
+     * @return The resulting AIP that has already been written to the given path
+     */
+    public AIP convertResumable(final Path sip, final Path aip, final Path jobDirectory) {
+        try (final var checkpoint = Checkpoint.open(jobDirectory, sip, aip.toAbsolutePath().normalize() + " " + fixityAlgorithms)) {
+            final var recorder = new ConversionRecorder(CONVERTER, sip, jobDirectory, listener);
+            final var parsed = checkpoint.completed(Stage.PARSE);
+            final var sipTemp = parsed ? checkpoint.folder("sip-extracted") : checkpoint.reset("sip-extracted");
+            recorder.start();
+            // A retry parses the SIP extracted by the previous attempt in place
+            final IPInterface earksip = EARKSIP.parse(parsed ? sipTemp.resolve(checkpoint.get(BASE_PATH)) : sip, sipTemp);
+            if (!parsed) {
+                recorder.end(Stage.PARSE, recorder.usage(sip).bytes());
+                final var basePath = earksip.getBasePath();
+                checkpoint.complete(Stage.PARSE, Map.of(BASE_PATH, (basePath.startsWith(sipTemp) ? sipTemp.relativize(basePath) : basePath.toAbsolutePath()).toString()));
+            }
+            final Path submissionSource;
+            if (Files.isRegularFile(sip)) {
+                submissionSource = sip;
+            } else if (checkpoint.completed(Stage.ZIP_SUBMISSION)) {
+                submissionSource = checkpoint.resolve(earksip.getId() + ".zip");
+            } else {
+                submissionSource = zipSubmission(earksip, jobDirectory, recorder);
+                checkpoint.complete(Stage.ZIP_SUBMISSION, Map.of());
+            }
+            // The entries already written to the AIP zip start with the id of the AIP
+            final var id = checkpoint.completed(Stage.METADATA) ? checkpoint.get(ID) : UUID.randomUUID().toString();
+            final var buildTemp = checkpoint.reset("build");
+            final var aipTemp = checkpoint.reset("aip-extracted");
+            final var placeholder = Files.createFile(buildTemp.resolve("submission-placeholder"));
+            final var result = convert(earksip, buildTemp, new IPFile(placeholder, earksip.getId() + ".zip"), recorder, id);
+            checkpoint.complete(Stage.METADATA, Map.of(ID, id));
+            recorder.start();
             try {
-                built = aip.build(aipTemp);
+                result.build(aipTemp);
             } catch (final IPException | InterruptedException e) {
                 throw new RuntimeException(e);
             }
-            // copyFolder(sipTemp.resolve(earksip.getId()), built.resolve(IPConstants.SUBMISSION), StandardCopyOption.REPLACE_EXISTING);
-            zip(aipTemp, out);
-            return aip;
+            final var aipSize = recorder.usage(aipTemp).bytes();
+            recorder.end(Stage.BUILD, aipSize);
+            recorder.start();
+            final var submission = IPConstants.SUBMISSION + "/" + earksip.getId() + ".zip";
+            final var validator = config.validate() ? new PackageValidator("AIP") : null;
+            final CompressionStats stats;
+            try (final var journal = ZipJournal.open(checkpoint.resolve(JOURNAL_FILENAME), aip, config.journalInterval())) {
+                stats = zipAip(aipTemp.resolve(id), submission, submissionSource, null, journal, validator, null, new MetsPatcher(), recorder.progress(Stage.ZIP, aipSize + Files.size(submissionSource)));
+            }
+            recorder.end(Stage.ZIP, stats);
+            LOGGER.info("Zipped AIP {}: {}", id, stats);
+            if (validator != null) {
+                recorder.validated(validator.report(aip));
+            }
+            checkpoint.delete();
+            recorder.completed(id);
+            return result;
         } catch (final IOException ex) {
             throw new UncheckedIOException(ex);
         } catch (final ParseException ex) {
             throw new RuntimeException(ex);
-        } finally {
-            deleteIfExists(tempFolder);
         }
     }
 
@@ -100,8 +310,398 @@ public class SIPToAIPConverter {
      * @see #convert(Path, OutputStream)
      */
     public AIP convert(final IPInterface sip, final Path tempFolder) {
+        final var recorder = new ConversionRecorder(CONVERTER, sip.getBasePath(), tempFolder, ConversionListener.NONE);
+        return convert(sip, tempFolder, new IPFile(zipSubmission(sip, tempFolder, recorder)), recorder, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Zip an extracted SIP into the temp folder so that it can be added as the submission
+     *
+     * @return The zip file
+     */
+    private Path zipSubmission(final IPInterface sip, final Path tempFolder, final ConversionRecorder recorder) {
+        recorder.start();
+        final Path sipZip = tempFolder.resolve(sip.getId() + ".zip");
+        final CompressionStats stats;
+        try (var stream = Files.newOutputStream(sipZip)) {
+            stats = zip(sip.getBasePath(), stream, ParallelZipWriter.Options.DEFAULT.withPolicy(compressionPolicy).withContentStore(config.contentStore()), Map.of());
+            LOGGER.debug("Zipped SIP {}: {}", sip.getId(), stats);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        recorder.end(Stage.ZIP_SUBMISSION, stats);
+        return sipZip;
+    }
+
+    /**
+     * Convert a zipped SIP into a zipped AIP without extracting the SIP to disk. Only the METS files,
+     * metadata and schemas of the SIP are extracted and parsed, the SIP zip itself is streamed as is
+     * into the submission folder of the AIP.
+     *
+     * @param sip Path to the SIP zip file
+     * @param aip Path to write the zip file to
+     * @return The resulting AIP that has already been written to the given path
+     */
+    public AIP convertStreaming(final Path sip, final Path aip) {
+        try (final var out = Files.newOutputStream(aip)) {
+            return convertStreaming(sip, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Convert a zipped SIP into a zipped AIP without extracting the SIP to disk and write it into an outputStream.
+     * Temporary disk usage is limited to roughly the size of the metadata in the SIP.
+     *
+     * @param sip Path to the SIP zip file
+     * @param out The stream to write the zip file to
+     * @return The resulting AIP that has already been written to the outputStream
+     * @see #convertStreaming(Path, Path)
+     */
+    public AIP convertStreaming(final Path sip, final OutputStream out) {
+        ScratchSpace.Lease scratch = null;
+        try (final var zipFile = new ZipFile(sip.toFile())) {
+            final var metadata = metadataEntries(zipFile, sip);
+            // The metadata is copied into a zip and extracted from it
+            scratch = ScratchSpace.acquire(config, "sip-to-aip", 2 * metadata.stream().mapToLong(ZipEntry::getSize).sum());
+            final var tempFolder = scratch.folder();
+            final var recorder = new ConversionRecorder(CONVERTER, sip, tempFolder, listener);
+            final var sipTemp = Files.createTempDirectory(tempFolder, "sip-extracted");
+            final var aipTemp = Files.createTempDirectory(tempFolder, "aip-extracted");
+            final var metadataZip = tempFolder.resolve("sip-metadata.zip");
+            recorder.start();
+            extractMetadata(zipFile, metadata, metadataZip);
+            final IPInterface earksip = EARKSIP.parse(metadataZip, sipTemp);
+            recorder.end(Stage.PARSE, recorder.usage(metadataZip).bytes());
+            scratch.checkQuota();
+            // The submission is only a placeholder while building, its bytes are streamed from the SIP when zipping
+            final var submission = Files.createFile(tempFolder.resolve(earksip.getId() + ".zip"));
+            final var aip = convert(earksip, tempFolder, new IPFile(submission), recorder, UUID.randomUUID().toString());
+            recorder.start();
+            try {
+                aip.build(aipTemp);
+            } catch (final IPException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            final var aipSize = recorder.usage(aipTemp).bytes();
+            recorder.end(Stage.BUILD, aipSize);
+            recorder.start();
+            final var validator = config.validate() ? new PackageValidator("AIP") : null;
+            final var stats = zipAip(aipTemp.resolve(aip.getId()), IPConstants.SUBMISSION + "/" + submission.getFileName(), sip, out, null, validator, null, new MetsPatcher(),
+                    recorder.progress(Stage.ZIP, aipSize + Files.size(sip)));
+            recorder.end(Stage.ZIP, stats);
+            LOGGER.info("Zipped AIP {}: {}", aip.getId(), stats);
+            if (validator != null) {
+                recorder.validated(validator.report(null));
+            }
+            recorder.completed(aip.getId());
+            return aip;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (final ParseException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (scratch != null) {
+                scratch.close();
+            }
+        }
+    }
+
+    /**
+     * Add a new version to a zipped AIP made by this converter: the descriptive metadata and schemas of a delta SIP
+     * are added to the AIP, replacing metadata files with the same name, and the delta SIP is added as another
+     * submission. The result is a rewritten zip file in which the entries that have not changed, above all the
+     * earlier submissions, are copied as they are without inflating and deflating them again, and only METS.xml and
+     * the PREMIS file are generated. The sizes and checksums of the earlier submissions are taken from the METS file
+     * of the AIP, so updating a large AIP costs time for the change and a plain copy of the rest.
+     *
+     * @param aip Path to the AIP zip file to update
+     * @param deltaSip Path to the zipped or extracted SIP with the changes, this is directly passed to
+     * {@link EARKSIP#parse(Path, Path)}
+     * @param updated Path to write the new version of the AIP to, it must not be the AIP itself
+     * @return The new version of the AIP, with the id of the AIP, that has already been written to the given path
+     */
+    public AIP update(final Path aip, final Path deltaSip, final Path updated) {
+        try (final var out = Files.newOutputStream(updated)) {
+            return update(aip, deltaSip, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Add a new version to a zipped AIP made by this converter and write it into an outputStream
+     *
+     * @param aip Path to the AIP zip file to update
+     * @param deltaSip Path to the zipped or extracted SIP with the changes
+     * @param out The stream to write the new version of the AIP to
+     * @return The new version of the AIP that has already been written to the outputStream
+     * @see #update(Path, Path, Path)
+     */
+    public AIP update(final Path aip, final Path deltaSip, final OutputStream out) {
+        ScratchSpace.Lease scratch = null;
+        try (final var zipFile = new ZipFile(aip.toFile())) {
+            final var index = ZipIndex.read(aip);
+            final var metadata = metadataEntries(zipFile, aip);
+            final var mets = metadata.stream().map(ZipEntry::getName).filter(name -> name.endsWith(METS_FILENAME)).min(Comparator.comparingInt(String::length)).orElseThrow();
+            // The entries of an AIP zip are in the folder named by its id
+            final var prefix = mets.substring(0, mets.length() - METS_FILENAME.length());
+            if (prefix.isEmpty() || prefix.indexOf('/') != prefix.length() - 1) {
+                throw new IllegalArgumentException(aip + " is not an AIP zip file with the package in its root folder");
+            }
+            final var id = prefix.substring(0, prefix.length() - 1);
+            // Only the metadata of the AIP is extracted, its submissions stay in the zip file
+            scratch = ScratchSpace.acquire(config, CONVERTER, extractedSize(deltaSip) + 2 * metadata.stream().mapToLong(ZipEntry::getSize).sum());
+            final var tempFolder = scratch.folder();
+            final var recorder = new ConversionRecorder(CONVERTER, deltaSip, tempFolder, listener);
+            final var metadataZip = tempFolder.resolve("aip-metadata.zip");
+            final var oldTemp = Files.createTempDirectory(tempFolder, "aip-metadata");
+            final var sipTemp = Files.createTempDirectory(tempFolder, "sip-extracted");
+            final var aipTemp = Files.createTempDirectory(tempFolder, "aip-extracted");
+            final var placeholders = Files.createTempDirectory(tempFolder, "submissions");
+            recorder.start();
+            extractMetadata(zipFile, metadata, metadataZip);
+            final AIP old = EARKAIP.parse(metadataZip, oldTemp);
+            final IPInterface earksip = EARKSIP.parse(deltaSip, sipTemp);
+            recorder.end(Stage.PARSE, recorder.usage(metadataZip).bytes() + recorder.usage(deltaSip).bytes());
+            scratch.checkQuota();
+            final var submission = IPConstants.SUBMISSION + "/" + earksip.getId() + ".zip";
+            if (index.entry(prefix + submission) != null) {
+                throw new IllegalArgumentException("The AIP " + id + " already has the submission " + submission);
+            }
+            final var submissionSource = Files.isRegularFile(deltaSip) ? deltaSip : zipSubmission(earksip, tempFolder, recorder);
+            final var placeholder = Files.createFile(tempFolder.resolve("submission-placeholder"));
+            final var result = convert(earksip, tempFolder, new IPFile(placeholder, earksip.getId() + ".zip"), recorder, id);
+            result.setProfile(old.getProfile());
+            final var names = new HashSet<String>();
+            result.getDescriptiveMetadata().forEach(descriptive -> names.add(descriptive.getMetadata().getFileName()));
+            for (final var descriptive : old.getDescriptiveMetadata()) {
+                if (names.add(descriptive.getMetadata().getFileName())) {
+                    result.addDescriptiveMetadata(descriptive);
+                }
+            }
+            final var schemas = new HashSet<String>();
+            result.getSchemas().forEach(schema -> schemas.add(schema.getFileName()));
+            for (final var schema : old.getSchemas()) {
+                if (schemas.add(schema.getFileName())) {
+                    result.addSchema(schema);
+                }
+            }
+            // The earlier submissions are placeholders while building, they are copied from the AIP when zipping
+            final List<ZipIndex.Entry> submissions = new ArrayList<>();
+            for (final var entry : index.entries()) {
+                final var name = entry.name().substring(Math.min(prefix.length(), entry.name().length()));
+                if (entry.name().startsWith(prefix) && name.startsWith(IPConstants.SUBMISSION + "/") && !name.endsWith("/")) {
+                    submissions.add(entry);
+                    result.addSubmission(new IPFile(Files.createFile(placeholders.resolve(UUID.randomUUID().toString())), name.substring(IPConstants.SUBMISSION.length() + 1)));
+                }
+            }
+            recorder.start();
+            try {
+                result.build(aipTemp);
+            } catch (final IPException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            final var aipSize = recorder.usage(aipTemp).bytes();
+            recorder.end(Stage.BUILD, aipSize);
+            scratch.checkQuota();
+            recorder.start();
+            final var validator = config.validate() ? new PackageValidator("AIP") : null;
+            final var stats = zipUpdate(aipTemp.resolve(id), submission, submissionSource, zipFile, index, submissions, out, validator,
+                    recorder.progress(Stage.ZIP, aipSize + Files.size(submissionSource) + submissions.stream().mapToLong(ZipIndex.Entry::size).sum()));
+            recorder.end(Stage.ZIP, stats);
+            LOGGER.info("Zipped the new version of AIP {}: {}", id, stats);
+            if (validator != null) {
+                recorder.validated(validator.report(null));
+            }
+            recorder.completed(id);
+            return result;
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (final ParseException | IPException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (scratch != null) {
+                scratch.close();
+            }
+        }
+    }
+
+    /**
+     * Plan how a SIP is split into a parent AIP and child AIPs of bounded size, for SIPs too large to be stored,
+     * transferred or retried as a single AIP
+     *
+     * @param sip Path to the zipped or extracted SIP
+     * @param segmentSize The maximum size of the files of a child AIP in bytes
+     * @return The plan with a new id for the parent AIP
+     * @see SegmentPlan
+     */
+    public SegmentPlan planSegments(final Path sip, final long segmentSize) {
+        return planSegments(sip, segmentSize, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Plan how a SIP is split into a parent AIP with the given id and child AIPs. Planning the same SIP with the
+     * same id gives the same plan, so nodes sharing the storage of the SIP and of the outputs can each convert some
+     * of the segments with {@link #convertSegment(Path, SegmentPlan, int, OutputSink)}.
+     *
+     * @param sip Path to the zipped or extracted SIP
+     * @param segmentSize The maximum size of the files of a child AIP in bytes
+     * @param parentId The id of the parent AIP
+     * @return The plan
+     */
+    public SegmentPlan planSegments(final Path sip, final long segmentSize, final String parentId) {
+        try {
+            return SegmentPlan.of(sipFiles(sip, Files.isRegularFile(sip) ? ZipIndex.read(sip) : null), segmentSize, parentId);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Convert a SIP into the parent AIP and child AIPs of a plan, converting the segments concurrently. Each AIP
+     * is written to the sink with its id as the name. A failing segment does not stop the others, its output is
+     * aborted and it can be converted again on its own with {@link #convertSegment(Path, SegmentPlan, int, OutputSink)}.
+     *
+     * @param sip Path to the zipped or extracted SIP
+     * @param plan The plan made for the SIP by {@link #planSegments(Path, long)}
+     * @param parallelism The maximum number of segments converted at the same time
+     * @param sink Where the AIPs are written to
+     * @return The parent AIP followed by the child AIPs
+     * @throws SegmentsFailedException If any of the segments could not be converted
+     */
+    public List<AIP> convertSegmented(final Path sip, final SegmentPlan plan, final int parallelism, final OutputSink sink) throws InterruptedException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+        }
+        final var threadCount = new AtomicInteger();
+        final var executor = Executors.newFixedThreadPool(parallelism, runnable -> new Thread(runnable, "segment-converter-" + threadCount.incrementAndGet()));
+        try {
+            final List<Future<AIP>> futures = new ArrayList<>();
+            for (var i = 0; i <= plan.segments().size(); i++) {
+                final var index = i;
+                futures.add(executor.submit(() -> convertSegment(sip, plan, index, sink)));
+            }
+            final List<AIP> aips = new ArrayList<>(futures.size());
+            final List<Integer> failed = new ArrayList<>();
+            final List<Throwable> causes = new ArrayList<>();
+            for (var i = 0; i < futures.size(); i++) {
+                try {
+                    aips.add(futures.get(i).get());
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof Error error) {
+                        throw error;
+                    }
+                    failed.add(i);
+                    causes.add(e.getCause());
+                }
+            }
+            if (!failed.isEmpty()) {
+                final var exception = new SegmentsFailedException(failed, causes.get(0));
+                causes.stream().skip(1).forEach(exception::addSuppressed);
+                throw exception;
+            }
+            return aips;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Convert a single segment of a plan and write it to the sink with its id as the name, e.g. to retry a segment
+     * that failed or to convert the segments of a plan on several nodes. The output of a failed segment is aborted.
+     *
+     * @param sip Path to the zipped or extracted SIP
+     * @param plan The plan made for the SIP
+     * @param index 0 for the parent AIP, otherwise the {@link SegmentPlan.Segment#index() index} of a child AIP
+     * @param sink Where the AIP is written to
+     * @return The AIP that has already been written to the sink
+     */
+    public AIP convertSegment(final Path sip, final SegmentPlan plan, final int index, final OutputSink sink) {
+        final var id = index == 0 ? plan.parentId() : plan.segments().get(index - 1).id();
+        try {
+            return sink.write(id, out -> convertSegment(sip, plan, index, out));
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Could not convert AIP {}", id, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Convert a segment into an AIP. Only the metadata of the SIP is extracted, and the files of the segment are
+     * zipped into its submission, copying the entries of a zipped SIP as they are. The METS file of the parent AIP
+     * points to the METS files of the child AIPs and theirs to the one of the parent.
+     */
+    private AIP convertSegment(final Path sip, final SegmentPlan plan, final int index, final OutputStream out) throws IOException {
+        final var parent = index == 0;
+        final var id = parent ? plan.parentId() : plan.segments().get(index - 1).id();
+        final var files = parent ? plan.files() : plan.segments().get(index - 1).files();
+        final var zipIndex = Files.isRegularFile(sip) ? ZipIndex.read(sip) : null;
+        final var sizes = sipFiles(sip, zipIndex);
+        if (!sizes.keySet().containsAll(files)) {
+            throw new IllegalArgumentException("The files of " + sip + " have changed since the segments were planned");
+        }
+        final var metadataSize = sizes.entrySet().stream().filter(file -> isMetadata(file.getKey())).mapToLong(Map.Entry::getValue).sum();
+        ScratchSpace.Lease scratch = null;
+        try {
+            // The submission of the segment is zipped into the scratch space and the metadata is extracted
+            scratch = ScratchSpace.acquire(config, CONVERTER, files.stream().mapToLong(sizes::get).sum() + 2 * metadataSize);
+            final var tempFolder = scratch.folder();
+            final var recorder = new ConversionRecorder(CONVERTER, sip, tempFolder, listener);
+            final var sipTemp = Files.createTempDirectory(tempFolder, "sip-extracted");
+            final var aipTemp = Files.createTempDirectory(tempFolder, "aip-extracted");
+            recorder.start();
+            final IPInterface earksip;
+            if (zipIndex == null) {
+                earksip = EARKSIP.parse(sip, sipTemp);
+            } else {
+                final var metadataZip = tempFolder.resolve("sip-metadata.zip");
+                try (final var zipFile = new ZipFile(sip.toFile())) {
+                    extractMetadata(zipFile, metadataEntries(zipFile, sip), metadataZip);
+                }
+                earksip = EARKSIP.parse(metadataZip, sipTemp);
+            }
+            recorder.end(Stage.PARSE, metadataSize);
+            scratch.checkQuota();
+            final var name = parent ? earksip.getId() + ".zip" : earksip.getId() + "-" + index + ".zip";
+            final var submissionSource = zipSipFiles(sip, zipIndex, files, tempFolder.resolve(name), recorder);
+            final var placeholder = Files.createFile(tempFolder.resolve("submission-placeholder"));
+            final var aip = parent ? convert(earksip, tempFolder, new IPFile(placeholder, name), recorder, id) : child(earksip, tempFolder, new IPFile(placeholder, name), recorder, id);
+            recorder.start();
+            try {
+                aip.build(aipTemp);
+            } catch (final IPException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            final var aipSize = recorder.usage(aipTemp).bytes();
+            recorder.end(Stage.BUILD, aipSize);
+            scratch.checkQuota();
+            recorder.start();
+            final var mets = parent ? new MetsPatcher().packages(CHILDREN_LABEL, plan.childIds()) : new MetsPatcher().packages(PARENT_LABEL, List.of(plan.parentId()));
+            final var validator = config.validate() ? new PackageValidator("AIP") : null;
+            final var stats = zipAip(aipTemp.resolve(id), IPConstants.SUBMISSION + "/" + name, submissionSource, out, null, validator, null, mets,
+                    recorder.progress(Stage.ZIP, aipSize + Files.size(submissionSource)));
+            recorder.end(Stage.ZIP, stats);
+            LOGGER.info("Zipped {} AIP {}: {}", parent ? "parent" : "child", id, stats);
+            if (validator != null) {
+                recorder.validated(validator.report(null));
+            }
+            recorder.completed(id);
+            return aip;
+        } catch (final ParseException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (scratch != null) {
+                scratch.close();
+            }
+        }
+    }
+
+    private static AIP convert(final IPInterface sip, final Path tempFolder, final IPFile submission, final ConversionRecorder recorder, final String id) {
         try {
-            final AIP aip = new EARKAIP(new BasicAIP(UUID.randomUUID().toString(), IPContentType.getMIXED()));
+            recorder.start();
+            final AIP aip = new EARKAIP(new BasicAIP(id, IPContentType.getMIXED()));
             aip.setProfile(sip.getProfile());
 
             // Not needed if there is no changes compared to the SIP
@@ -121,44 +721,324 @@ public class SIPToAIPConverter {
             }
 
             if (aip.getSchemas().isEmpty()) {
-                addDefaultSchemas(aip.getSchemas(), tempFolder);
+                addDefaultSchemas(aip.getSchemas());
             }
 
-            final Path sipZip = tempFolder.resolve(sip.getId() + ".zip");
-            try (var stream = Files.newOutputStream(sipZip)) {
-                zip(sip.getBasePath(), stream);
-            }
-            aip.addSubmission(new IPFile(sipZip));
+            aip.addSubmission(submission);
 
             addPreservationMetadata(aip, tempFolder);
             aip.addAgent(CREATOR_AGENT);
 
+            recorder.end(Stage.METADATA, recorder.usage(sip.getBasePath().resolve(IPConstants.METADATA)).bytes() + recorder.usage(schemas).bytes());
+            return aip;
+        } catch (final IPException | XMLStreamException e) {
+            throw new RuntimeException(e);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A child AIP of a segmented SIP, the descriptive metadata of the SIP is only in the parent AIP
+     */
+    private static AIP child(final IPInterface sip, final Path tempFolder, final IPFile submission, final ConversionRecorder recorder, final String id) {
+        try {
+            recorder.start();
+            final AIP aip = new EARKAIP(new BasicAIP(id, IPContentType.getMIXED()));
+            aip.setProfile(sip.getProfile());
+            addDefaultSchemas(aip.getSchemas());
+            aip.addSubmission(submission);
+            addPreservationMetadata(aip, tempFolder);
+            aip.addAgent(CREATOR_AGENT);
+            recorder.end(Stage.METADATA, 0);
             return aip;
-        } catch (final IPException | JAXBException | InterruptedException e) {
+        } catch (final IPException | XMLStreamException e) {
             throw new RuntimeException(e);
         } catch (final IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
-    private static void addPreservationMetadata(final AIP aip, final Path tempFolder) throws JAXBException, IPException, IOException {
-        final var premis = new PremisComplexType();
-        final var agentComplexType = new AgentComplexType();
-        final var agentType = new StringPlusAuthority();
-        agentType.setValue("Software");
-        agentComplexType.setAgentType(agentType);
-        final var agentName = new StringPlusAuthority();
-        agentName.setValue("Yksa");
-        agentComplexType.getAgentName().add(agentName);
-        premis.getAgent().add(agentComplexType);
+    /**
+     * Zip the given files of a SIP into the submission of a segment, the entries of a zipped SIP are copied as they are
+     *
+     * @param index The index of a zipped SIP, null for an extracted one
+     * @param files The SIP relative paths of the files
+     * @return The zip file
+     */
+    private Path zipSipFiles(final Path sip, final ZipIndex index, final List<String> files, final Path target, final ConversionRecorder recorder) throws IOException {
+        recorder.start();
+        final var prefix = index == null ? null : root(index, sip);
+        final var zs = new ParallelZipWriter(Files.newOutputStream(target), ParallelZipWriter.Options.DEFAULT.withPolicy(compressionPolicy).withContentStore(config.contentStore()));
+        try (zs) {
+            for (final var file : files) {
+                if (index == null) {
+                    zs.add(file, sip.resolve(file));
+                } else {
+                    zs.add(prefix + file, index, index.entry(prefix + file));
+                }
+            }
+        }
+        recorder.end(Stage.ZIP_SUBMISSION, zs.stats());
+        return target;
+    }
+
+    /**
+     * @param index The index of a zipped SIP, null for an extracted one
+     * @return The size of each file of the SIP by its SIP relative path
+     */
+    private static SortedMap<String, Long> sipFiles(final Path sip, final ZipIndex index) throws IOException {
+        final SortedMap<String, Long> files = new TreeMap<>();
+        if (index == null) {
+            try (final var stream = Files.walk(sip)) {
+                for (final var file : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                    files.put(sip.relativize(file).toString(), Files.size(file));
+                }
+            }
+        } else {
+            final var prefix = root(index, sip);
+            for (final var entry : index.entries()) {
+                if (entry.name().startsWith(prefix) && !entry.name().endsWith("/")) {
+                    files.put(entry.name().substring(prefix.length()), entry.size());
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return The folder of the package in a zip file, e.g. "sip/", the one of its shortest METS file path
+     */
+    private static String root(final ZipIndex index, final Path zip) throws IOException {
+        final var mets = index.entries().stream()
+                .map(ZipIndex.Entry::name)
+                .filter(name -> name.equals(METS_FILENAME) || name.endsWith("/" + METS_FILENAME))
+                .min(Comparator.comparingInt(String::length))
+                .orElseThrow(() -> new IOException("No " + METS_FILENAME + " found in " + zip));
+        return mets.substring(0, mets.length() - METS_FILENAME.length());
+    }
+
+    /**
+     * Copy the metadata entries of the SIP into a new zip so that they can be parsed without extracting the payload
+     *
+     * @see #metadataEntries(ZipFile, Path)
+     */
+    private static void extractMetadata(final ZipFile zipFile, final List<? extends ZipEntry> metadata, final Path metadataZip) throws IOException {
+        try (final var zs = new ZipOutputStream(Files.newOutputStream(metadataZip))) {
+            for (final var entry : metadata) {
+                zs.putNextEntry(new ZipEntry(entry.getName()));
+                try (final var in = zipFile.getInputStream(entry)) {
+                    in.transferTo(zs);
+                }
+                zs.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * @return The METS files, metadata and schemas of the SIP, at the package root and in each representation
+     */
+    private static List<? extends ZipEntry> metadataEntries(final ZipFile zipFile, final Path sip) throws IOException {
+        final var root = zipFile.stream()
+                .map(ZipEntry::getName)
+                .filter(name -> name.equals(METS_FILENAME) || name.endsWith("/" + METS_FILENAME))
+                .min(Comparator.comparingInt(String::length))
+                .orElseThrow(() -> new IOException("No " + METS_FILENAME + " found in " + sip));
+        final var prefix = root.substring(0, root.length() - METS_FILENAME.length());
+        return zipFile.stream()
+                .filter(entry -> !entry.isDirectory() && entry.getName().startsWith(prefix) && isMetadata(entry.getName().substring(prefix.length())))
+                .toList();
+    }
+
+    private static boolean isMetadata(final String relativePath) {
+        final var segments = relativePath.split("/");
+        if (METADATA_FOLDERS.contains(segments[0])) {
+            return segments.length > 1 || segments[0].equals(METS_FILENAME);
+        }
+        return segments.length > 2 && segments[0].equals(IPConstants.REPRESENTATIONS) && METADATA_FOLDERS.contains(segments[2]) && (segments.length > 3 || segments[2].equals(METS_FILENAME));
+    }
+
+    /**
+     * Zip the built AIP reading each file once. The submission is written first while its fixity is computed,
+     * then the other files, then the PREMIS file with the fixity of the submission and last METS.xml with the
+     * sizes and checksums of both, so no checksum needs another read of a file.
+     *
+     * @param submission The package relative path of the submission
+     * @param submissionSource The file whose bytes are written as the submission, e.g. the SIP zip in place of
+     * a placeholder that was built into the AIP
+     * @param journal Resumes the zip file of a previous attempt and records the entries written, null to write
+     * into out instead
+     * @param validator Validates the AIP as it is written, null to not validate it
+     * @param premisCopy Also receives the generated PREMIS file, may be null
+     * @param mets The changes to the built METS.xml, the sizes and checksums of the submission and PREMIS file are added
+     */
+    private CompressionStats zipAip(final Path aipRoot, final String submission, final Path submissionSource, final OutputStream out, final ZipJournal journal,
+                                    final PackageValidator validator, final OutputStream premisCopy, final MetsPatcher mets, final LongConsumer progress) throws IOException {
+        final var prefix = aipRoot.getFileName() + "/";
+        final var algorithm = fixityAlgorithms.get(0);
+        final var submissionFixity = new FixityDigest(fixityAlgorithms);
+        final var premisFixity = new FixityDigest(List.of(algorithm));
+        final List<Path> files;
+        try (final var stream = Files.walk(aipRoot)) {
+            files = stream.filter(p -> !Files.isDirectory(p)).sorted().filter(p -> {
+                final var name = aipRoot.relativize(p).toString();
+                return !name.equals(submission) && !name.equals(METS_FILENAME) && !name.equals(PREMIS_PATH);
+            }).toList();
+        }
+        final List<String> names = new ArrayList<>();
+        names.add(prefix + submission);
+        files.forEach(path -> names.add(prefix + aipRoot.relativize(path)));
+        final List<Path> sources = new ArrayList<>();
+        sources.add(submissionSource);
+        sources.addAll(files);
+        final var options = zipOptions(progress, validator);
+        final var zs = journal == null ? new ParallelZipWriter(out, options) : new ParallelZipWriter(journal.resume(names, sources), options);
+        try (zs) {
+            zs.add(names.get(0), submissionSource, submissionFixity);
+            for (var i = 0; i < files.size(); i++) {
+                zs.add(names.get(i + 1), files.get(i));
+            }
+            // The fixity of the submission is complete by the time the generated entries are written
+            zs.add(prefix + PREMIS_PATH, premisOut -> premis()
+                    .file(submission, "ZIP Format", submissionFixity)
+                    .write(premisFixity.wrap(premisCopy == null ? premisOut : tee(premisOut, premisCopy))));
+            zs.add(prefix + METS_FILENAME, metsOut -> {
+                mets.file(submission, submissionFixity.size(), submissionFixity.checksums().get(algorithm), algorithm)
+                        .file(PREMIS_PATH, premisFixity.size(), premisFixity.checksums().get(algorithm), algorithm);
+                try (final var in = Files.newInputStream(aipRoot.resolve(METS_FILENAME))) {
+                    mets.patch(in, metsOut);
+                }
+            });
+        }
+        return zs.stats();
+    }
+
+    /**
+     * Zip the new version of an AIP built by {@link #update(Path, Path, OutputStream)}. The earlier submissions and
+     * the built files that are byte for byte the same as in the AIP are copied from its zip file as they are, the new
+     * submission is zipped while its fixity is computed, and the PREMIS file of the AIP, with the new submission
+     * added, and METS.xml are generated last.
+     *
+     * @param submission The package relative path of the new submission
+     * @param submissions The entries of the earlier submissions in the AIP
+     */
+    private CompressionStats zipUpdate(final Path aipRoot, final String submission, final Path submissionSource, final ZipFile zipFile, final ZipIndex index,
+                                       final List<ZipIndex.Entry> submissions, final OutputStream out, final PackageValidator validator, final LongConsumer progress) throws IOException {
+        final var prefix = aipRoot.getFileName() + "/";
+        final var algorithm = fixityAlgorithms.get(0);
+        final var submissionFixity = new FixityDigest(fixityAlgorithms);
+        final var premisFixity = new FixityDigest(List.of(algorithm));
+        final List<Path> files;
+        try (final var stream = Files.walk(aipRoot)) {
+            files = stream.filter(p -> !Files.isDirectory(p)).sorted().filter(p -> {
+                final var name = aipRoot.relativize(p).toString();
+                return !name.startsWith(IPConstants.SUBMISSION + "/") && !name.equals(METS_FILENAME) && !name.equals(PREMIS_PATH);
+            }).toList();
+        }
+        final Set<String> names = new HashSet<>(List.of(prefix + submission, prefix + METS_FILENAME, prefix + PREMIS_PATH));
+        submissions.forEach(entry -> names.add(entry.name()));
+        files.forEach(path -> names.add(prefix + aipRoot.relativize(path)));
+        final var dropped = index.entries().stream().map(ZipIndex.Entry::name).filter(name -> !name.endsWith("/") && !names.contains(name)).toList();
+        if (!dropped.isEmpty()) {
+            throw new IllegalArgumentException("The AIP has entries that are not part of the new version: " + dropped);
+        }
+        final Map<String, MetsPatcher.Fixity> fixities;
+        try (final var mets = zipFile.getInputStream(zipFile.getEntry(prefix + METS_FILENAME))) {
+            fixities = MetsPatcher.files(mets);
+        } catch (final XMLStreamException e) {
+            throw new IOException("Could not read the METS file of " + index.file(), e);
+        }
+        final var premisEntry = zipFile.getEntry(prefix + PREMIS_PATH);
+        final var patcher = new MetsPatcher();
+        for (final var entry : submissions) {
+            final var href = entry.name().substring(prefix.length());
+            final var fixity = fixities.get(href);
+            if (fixity != null && fixity.size() != null && fixity.checksum() != null && fixity.checksumType() != null) {
+                patcher.file(href, fixity.size(), fixity.checksum(), fixity.checksumType());
+            } else {
+                // An AIP without the fixity of a submission in its METS file pays for reading it once
+                final var digest = new FixityDigest(List.of(algorithm));
+                try (final var in = zipFile.getInputStream(zipFile.getEntry(entry.name()))) {
+                    in.transferTo(digest.wrap(OutputStream.nullOutputStream()));
+                }
+                patcher.file(href, digest.size(), digest.checksums().get(algorithm), algorithm);
+            }
+        }
+        final var zs = new ParallelZipWriter(out, zipOptions(progress, validator));
+        try (zs) {
+            for (final var entry : submissions) {
+                zs.add(entry.name(), index, entry);
+            }
+            zs.add(prefix + submission, submissionSource, submissionFixity);
+            for (final var file : files) {
+                final var name = prefix + aipRoot.relativize(file);
+                final var entry = index.entry(name);
+                if (entry != null && entry.size() == Files.size(file) && entry.crc() == crc(file)) {
+                    zs.add(name, index, entry);
+                } else {
+                    zs.add(name, file);
+                }
+            }
+            // The objects of the earlier versions are copied from the PREMIS file of the AIP as they are
+            zs.add(prefix + PREMIS_PATH, premisOut -> {
+                final var premis = premis().file(submission, "ZIP Format", submissionFixity);
+                if (premisEntry == null) {
+                    premis.write(premisFixity.wrap(premisOut));
+                    return;
+                }
+                try (final var in = zipFile.getInputStream(premisEntry)) {
+                    premis.append(in, premisFixity.wrap(premisOut));
+                }
+            });
+            zs.add(prefix + METS_FILENAME, mets -> {
+                patcher.file(submission, submissionFixity.size(), submissionFixity.checksums().get(algorithm), algorithm)
+                        .file(PREMIS_PATH, premisFixity.size(), premisFixity.checksums().get(algorithm), algorithm);
+                try (final var in = Files.newInputStream(aipRoot.resolve(METS_FILENAME))) {
+                    patcher.patch(in, mets);
+                }
+            });
+        }
+        return zs.stats();
+    }
+
+    private ParallelZipWriter.Options zipOptions(final LongConsumer progress, final PackageValidator validator) {
+        return ParallelZipWriter.Options.DEFAULT.withPolicy(compressionPolicy).withProgress(progress).withContentStore(config.contentStore()).withValidator(validator);
+    }
+
+    private static long crc(final Path file) throws IOException {
+        final var crc = new CRC32();
+        try (final var in = new CheckedInputStream(Files.newInputStream(file), crc)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Add the PREMIS file, the one built into the AIP is replaced with one that has the fixity of the submission
+     * when the AIP is zipped
+     */
+    private static void addPreservationMetadata(final AIP aip, final Path tempFolder) throws XMLStreamException, IPException, IOException {
         final var premisTemp = Files.createTempFile(tempFolder, "premis", aip.getId());
-        JAXBContext.newInstance(PREMIS_PACKAGE).createMarshaller().marshal(new ObjectFactory().createPremis(premis), premisTemp.toFile());
-        aip.addPreservationMetadata(new IPMetadata(new IPFile(premisTemp, PREMIS_FILENAME), new MetadataType(MetadataType.MetadataTypeEnum.PREMIS)));
-        final var premisSchema = Files.createTempFile(tempFolder, "", PREMIS_SCHEMA);
-        try (final var out = Files.newOutputStream(premisSchema)) {
-            Objects.requireNonNull(SIPToAIPConverter.class.getClassLoader().getResourceAsStream(PREMIS_CLASSPATH), "Could not find resource " + PREMIS_CLASSPATH).transferTo(out);
+        try (final var out = Files.newOutputStream(premisTemp)) {
+            premis().write(out);
         }
-        aip.addSchema(new IPFile(premisSchema, PREMIS_SCHEMA));
+        aip.addPreservationMetadata(new IPMetadata(new IPFile(premisTemp, PREMIS_FILENAME), new MetadataType(MetadataType.MetadataTypeEnum.PREMIS)));
+        aip.addSchema(new IPFile(SchemaCache.get(SIPToAIPConverter.class, "/" + PREMIS_CLASSPATH, PREMIS_SCHEMA), PREMIS_SCHEMA));
+    }
+
+    private static PremisWriter premis() {
+        return new PremisWriter().agent("Yksa", "Software");
+    }
+
+    /**
+     * An AIP built into a temp folder that has not been zipped yet
+     *
+     * @param root The folder of the built AIP
+     * @param submission The package relative path of the submission
+     * @param submissionSource The file whose bytes are written as the submission in place of its placeholder
+     * @param size The size of the built AIP and of the submission in bytes
+     */
+    record BuiltAip(AIP aip, Path root, String submission, Path submissionSource, long size) {
     }
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+package fi.disec.csip;
+
+import org.roda_project.commons_ip2.model.IPConstants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.UUID;
+
+/**
+ * How a SIP is split into a parent AIP and child AIPs of bounded size. The parent AIP gets the METS file,
+ * metadata, schemas and documentation of the SIP, and the child AIPs get its representations: whole
+ * representations are put together while they fit into the segment size, and a representation that does not fit
+ * alone is split between its files, each of its segments then also getting the METS file and metadata of the
+ * representation. A single file larger than the segment size is a segment of its own.
+ * <p>
+ * The plan only depends on the files of the SIP, the segment size and the id of the parent, so every node that
+ * plans the same SIP with the same parent id gets the same segments and child ids, and can convert any of them.
+ *
+ * @param parentId The id of the parent AIP
+ * @param segmentSize The maximum size of the files of a segment in bytes
+ * @param files The SIP relative paths of the files in the submission of the parent AIP
+ * @param segments The child AIPs, in the order of their files
+ */
+public record SegmentPlan(String parentId, long segmentSize, List<String> files, List<Segment> segments) {
+    private static final String METS_FILENAME = "METS.xml";
+
+    public SegmentPlan {
+        files = List.copyOf(files);
+        segments = List.copyOf(segments);
+    }
+
+    /**
+     * @param files The size of each file of the SIP by its SIP relative path
+     */
+    static SegmentPlan of(final SortedMap<String, Long> files, final long segmentSize, final String parentId) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be positive but was " + segmentSize);
+        }
+        final List<String> parentFiles = new ArrayList<>();
+        final Map<String, Map<String, Long>> representations = new LinkedHashMap<>();
+        for (final var file : files.entrySet()) {
+            final var segments = file.getKey().split("/");
+            if (segments.length > 2 && segments[0].equals(IPConstants.REPRESENTATIONS)) {
+                representations.computeIfAbsent(segments[1], k -> new LinkedHashMap<>()).put(file.getKey(), file.getValue());
+            } else {
+                parentFiles.add(file.getKey());
+            }
+        }
+        final var planner = new Planner(parentId);
+        for (final var representation : representations.entrySet()) {
+            final var total = representation.getValue().values().stream().mapToLong(Long::longValue).sum();
+            if (planner.size + total > segmentSize) {
+                planner.close();
+            }
+            if (total <= segmentSize) {
+                representation.getValue().forEach(planner::add);
+                continue;
+            }
+            // The METS file and metadata describe the representation in each of its segments
+            final var prefix = IPConstants.REPRESENTATIONS + "/" + representation.getKey() + "/";
+            final Map<String, Long> descriptors = new LinkedHashMap<>();
+            final Map<String, Long> data = new LinkedHashMap<>();
+            representation.getValue().forEach((path, size) -> (isDescriptor(path.substring(prefix.length())) ? descriptors : data).put(path, size));
+            var first = true;
+            for (final var file : data.entrySet()) {
+                if (first || planner.size + file.getValue() > segmentSize) {
+                    planner.close();
+                    descriptors.forEach(planner::add);
+                    first = false;
+                }
+                planner.add(file.getKey(), file.getValue());
+            }
+            planner.close();
+        }
+        planner.close();
+        return new SegmentPlan(parentId, segmentSize, parentFiles, planner.segments);
+    }
+
+    private static boolean isDescriptor(final String representationPath) {
+        return representationPath.equals(METS_FILENAME) || representationPath.startsWith(IPConstants.METADATA + "/") || representationPath.startsWith(IPConstants.SCHEMAS + "/");
+    }
+
+    /**
+     * @return The id of the child AIP of the given segment, derived from the id of the parent
+     */
+    static String childId(final String parentId, final int index) {
+        return UUID.nameUUIDFromBytes((parentId + "/" + index).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * @return The ids of the child AIPs in the order of the segments
+     */
+    public List<String> childIds() {
+        return segments.stream().map(Segment::id).toList();
+    }
+
+    /**
+     * The files of a child AIP
+     *
+     * @param index The number of the segment, starting from 1 as 0 is the parent AIP
+     * @param id The id of the child AIP
+     * @param files The SIP relative paths of the files in the submission of the child AIP
+     * @param size The size of the files in bytes
+     */
+    public record Segment(int index, String id, List<String> files, long size) {
+        public Segment {
+            files = List.copyOf(files);
+        }
+    }
+
+    private static final class Planner {
+        private final String parentId;
+        private final List<Segment> segments = new ArrayList<>();
+        private List<String> files = new ArrayList<>();
+        private long size;
+
+        private Planner(final String parentId) {
+            this.parentId = parentId;
+        }
+
+        private void add(final String file, final long fileSize) {
+            files.add(file);
+            size += fileSize;
+        }
+
+        private void close() {
+            if (files.isEmpty()) {
+                return;
+            }
+            final var index = segments.size() + 1;
+            segments.add(new Segment(index, childId(parentId, index), files, size));
+            files = new ArrayList<>();
+            size = 0;
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package fi.disec.csip;
+
+import java.util.List;
+
+/**
+ * Thrown when some segments of a segmented conversion could not be converted, the other segments have been written
+ * and the failed ones can be converted again on their own
+ *
+ * @see SIPToAIPConverter#convertSegment(java.nio.file.Path, SegmentPlan, int, OutputSink)
+ */
+public class SegmentsFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Integer> segments;
+
+    /**
+     * @param segments The failed segments, 0 for the parent AIP
+     * @param cause Why the first of them failed, the others are suppressed
+     */
+    public SegmentsFailedException(final List<Integer> segments, final Throwable cause) {
+        super("Could not convert the segments " + segments, cause);
+        this.segments = List.copyOf(segments);
+    }
+
+    /**
+     * @return The failed segments, 0 for the parent AIP
+     */
+    public List<Integer> segments() {
+        return segments;
+    }
+
+}
@@ -1,27 +1,61 @@
 package fi.disec.csip;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.roda_project.commons_ip2.model.AIP;
 import org.roda_project.commons_ip2.validator.EARKSIPValidator;
 import org.roda_project.commons_ip2.validator.reporter.ValidationReportOutputJson;
 import org.roda_project.commons_ip2.validator.state.MetsValidatorState;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SIPToAIPConverterTest {
+    private static final String SAMPLE_ID = "uuid-B3E228EE-B429-45D8-B814-5F567B1A8754";
+
+    /**
+     * Deleted with everything in it after each test
+     */
+    @TempDir
+    Path temp;
+
+    private static Path sampleSip() {
+        try {
+            return Path.of(Objects.requireNonNull(SIPToAIPConverter.class.getClassLoader().getResource(SAMPLE_ID + ".zip")).toURI());
+        } catch (final URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
     @Test
     void testConvert() throws URISyntaxException, IOException, ParserConfigurationException, SAXException {
@@ -34,6 +68,11 @@ class SIPToAIPConverterTest {
             assertEquals("https://earkcsip.dilcis.eu/profile/E-ARK-CSIP.xml", aip.getProfile());
             assertEquals(Set.of("metadata/descriptive/DC.xml", "metadata/preservation/premis.xml", "schemas/DILCISExtensionSIPMETS.xsd", "schemas/xlink.xsd", "schemas/DILCISExtensionMETS.xsd", "schemas/mets1_12.xsd", "schemas/premis.xsd", "submission/uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip", "METS.xml"), aip.getZipEntries().keySet());
             assertTrue(Files.size(tempFile) > 0);
+            try (final var zipFile = new ZipFile(tempFile.toFile())) {
+                final var submission = zipFile.getEntry(aip.getId() + "/submission/uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip");
+                assertEquals(ZipEntry.STORED, submission.getMethod());
+                assertEquals(Files.size(sampleSip), submission.getSize());
+            }
             final ByteArrayOutputStream baos = new ByteArrayOutputStream();
             final ValidationReportOutputJson jsonReporter = new ValidationReportOutputJson(tempFile, baos);
             jsonReporter.setIpType("AIP");
@@ -50,4 +89,325 @@ class SIPToAIPConverterTest {
         }
     }
 
+    @Test
+    void testConvertStreaming() throws URISyntaxException, IOException, ParserConfigurationException, SAXException, NoSuchFieldException, IllegalAccessException {
+        final var sipToAIPConverter = new SIPToAIPConverter();
+        final var tempFile = Files.createTempFile(UUID.randomUUID().toString(), "aip.zip");
+        final var sampleSip = Path.of(Objects.requireNonNull(SIPToAIPConverter.class.getClassLoader().getResource("uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip")).toURI());
+        try {
+            final var aip = sipToAIPConverter.convertStreaming(sampleSip, tempFile);
+            assertEquals("AIP", aip.getType());
+            assertEquals(Set.of("metadata/descriptive/DC.xml", "metadata/preservation/premis.xml", "schemas/DILCISExtensionSIPMETS.xsd", "schemas/xlink.xsd", "schemas/DILCISExtensionMETS.xsd", "schemas/mets1_12.xsd", "schemas/premis.xsd", "submission/uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip", "METS.xml"), aip.getZipEntries().keySet());
+            try (final var zipFile = new ZipFile(tempFile.toFile())) {
+                final var submission = zipFile.getEntry(aip.getId() + "/submission/uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip");
+                assertEquals(ZipEntry.STORED, submission.getMethod());
+                assertEquals(Files.size(sampleSip), submission.getSize());
+            }
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final ValidationReportOutputJson jsonReporter = new ValidationReportOutputJson(tempFile, baos);
+            jsonReporter.setIpType("AIP");
+            final EARKSIPValidator earksipValidator = new EARKSIPValidator(jsonReporter);
+            Field metsValidatorState = earksipValidator.getClass().getDeclaredField("metsValidatorState");
+            metsValidatorState.setAccessible(true);
+            ((MetsValidatorState) metsValidatorState.get(earksipValidator)).setIpType("AIP");
+            final boolean isValid = earksipValidator.validate();
+            assertTrue(isValid, baos.toString(StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Test
+    void testConvertWithCompressionPolicy() throws IOException {
+        final var sipToAIPConverter = new SIPToAIPConverter(CompressionPolicy.deflate(CompressionPolicy.STORED));
+        final var tempFile = temp.resolve("aip.zip");
+        final var sampleSip = sampleSip();
+        final var aip = sipToAIPConverter.convert(sampleSip, tempFile);
+        try (final var zipFile = new ZipFile(tempFile.toFile())) {
+            assertEquals(aip.getZipEntries().size(), zipFile.size());
+            zipFile.stream().forEach(entry -> assertEquals(ZipEntry.STORED, entry.getMethod(), entry.getName()));
+        }
+    }
+
+    @Test
+    void testBatchConvert() throws IOException, InterruptedException {
+        final var sampleSip = sampleSip();
+        final var input = Files.createDirectory(temp.resolve("batch-input"));
+        final var output = Files.createDirectory(temp.resolve("batch-output"));
+        Files.copy(sampleSip, input.resolve("first.zip"));
+        Files.copy(sampleSip, input.resolve("second.zip"));
+        Files.writeString(input.resolve("broken.zip"), "not a zip");
+        // A folder and a zip file with the same name would be written to the same output, the later one is not converted
+        Files.createDirectory(input.resolve("third"));
+        Files.copy(sampleSip, input.resolve("third.zip"));
+        final var report = new BatchConverter(new SIPToAIPConverter()::convert, 2).convert(input, OutputSink.directory(output));
+        assertEquals(5, report.results().size());
+        assertEquals(2, report.succeeded());
+        assertEquals(List.of(input.resolve("broken.zip"), input.resolve("third"), input.resolve("third.zip")), report.failures().stream().map(BatchReport.Result::input).toList());
+        assertInstanceOf(IllegalArgumentException.class, report.failures().get(2).error());
+        assertTrue(Files.size(output.resolve("first.zip")) > 0);
+        assertTrue(Files.size(output.resolve("second.zip")) > 0);
+        assertFalse(Files.exists(output.resolve("broken.zip")));
+        assertFalse(Files.exists(output.resolve("third.zip")));
+    }
+
+    @Test
+    void testConvertWithListener() throws IOException {
+        final var stages = new ArrayList<Stage>();
+        final var summaries = new ArrayList<String>();
+        final var progress = new AtomicLong();
+        final var listener = new ConversionListener() {
+            @Override
+            public void stageCompleted(final Path input, final StageMetrics metrics) {
+                stages.add(metrics.stage());
+            }
+
+            @Override
+            public void progress(final Path input, final Stage stage, final long bytesDone, final long bytesTotal) {
+                progress.set(bytesDone);
+            }
+        };
+        final var sipToAIPConverter = new SIPToAIPConverter(CompressionPolicy.DEFAULT, listener.and(ConversionListener.jsonSummary(summaries::add)));
+        final var tempFile = temp.resolve("aip.zip");
+        final var sampleSip = sampleSip();
+        final var aip = sipToAIPConverter.convert(sampleSip, tempFile);
+        assertEquals(List.of(Stage.PARSE, Stage.METADATA, Stage.BUILD, Stage.ZIP), stages);
+        assertTrue(progress.get() > Files.size(sampleSip));
+        assertEquals(1, summaries.size());
+        assertTrue(summaries.get(0).contains("\"id\":\"" + aip.getId() + "\""), summaries.get(0));
+        assertTrue(summaries.get(0).contains("\"stage\":\"BUILD\""), summaries.get(0));
+    }
+
+    @Test
+    void testConvertWithFixity() throws IOException, NoSuchAlgorithmException {
+        final var sipToAIPConverter = new SIPToAIPConverter(CompressionPolicy.DEFAULT, ConversionListener.NONE, List.of("SHA-256", "MD5"));
+        final var tempFile = temp.resolve("aip.zip");
+        final var sampleSip = sampleSip();
+        final var aip = sipToAIPConverter.convertStreaming(sampleSip, tempFile);
+        final var md5 = HexFormat.of().withUpperCase().formatHex(MessageDigest.getInstance("MD5").digest(Files.readAllBytes(sampleSip)));
+        try (final var zipFile = new ZipFile(tempFile.toFile()); final var premis = zipFile.getInputStream(zipFile.getEntry(aip.getId() + "/metadata/preservation/premis.xml"))) {
+            final var content = new String(premis.readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(content.contains(md5), content);
+            assertTrue(content.contains(">" + Files.size(sampleSip) + "<"), content);
+        }
+    }
+
+    @Test
+    void testConvertWithConverterConfig() throws IOException {
+        final var scratchRoot = Files.createDirectory(temp.resolve("scratch-root"));
+        final var tempFile = temp.resolve("aip.zip");
+        final var sampleSip = sampleSip();
+        final var config = ConverterConfig.DEFAULT.withScratchRoots(scratchRoot);
+        final var usedRoots = new ArrayList<Path>();
+        final var listener = new ConversionListener() {
+            @Override
+            public void stageCompleted(final Path input, final StageMetrics metrics) {
+                try (final var stream = Files.list(scratchRoot)) {
+                    stream.forEach(usedRoots::add);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        new SIPToAIPConverter(CompressionPolicy.DEFAULT, listener, List.of("SHA-256"), config).convert(sampleSip, tempFile);
+        assertFalse(usedRoots.isEmpty());
+        final var tooSmall = new SIPToAIPConverter(CompressionPolicy.DEFAULT, ConversionListener.NONE, List.of("SHA-256"), config.withQuota(1));
+        assertThrows(InsufficientSpaceException.class, () -> tooSmall.convert(sampleSip, tempFile));
+        final var tooFull = new SIPToAIPConverter(CompressionPolicy.DEFAULT, ConversionListener.NONE, List.of("SHA-256"), config.withReservedSpace(Long.MAX_VALUE / 2));
+        assertThrows(InsufficientSpaceException.class, () -> tooFull.convert(sampleSip, tempFile));
+    }
+
+    @Test
+    void testConvertResumable() throws IOException {
+        final var jobDirectory = Files.createDirectory(temp.resolve("aip-job"));
+        final var tempFile = temp.resolve("aip.zip");
+        final var sampleSip = sampleSip();
+        // Fails when zipping the schemas, after the submission has been written
+        final CompressionPolicy failing = (name, file) -> {
+            if (name.endsWith(".xsd")) {
+                throw new IOException("Failing " + name);
+            }
+            return CompressionPolicy.DEFAULT.level(name, file);
+        };
+        assertThrows(UncheckedIOException.class, () -> new SIPToAIPConverter(failing).convertResumable(sampleSip, tempFile, jobDirectory));
+        assertTrue(Files.exists(jobDirectory.resolve("checkpoint.properties")));
+        final var stages = new ArrayList<Stage>();
+        final var listener = new ConversionListener() {
+            @Override
+            public void stageCompleted(final Path input, final StageMetrics metrics) {
+                stages.add(metrics.stage());
+            }
+        };
+        final var aip = new SIPToAIPConverter(CompressionPolicy.DEFAULT, listener).convertResumable(sampleSip, tempFile, jobDirectory);
+        assertEquals(List.of(Stage.METADATA, Stage.BUILD, Stage.ZIP), stages);
+        assertFalse(Files.exists(jobDirectory));
+        try (final var zipFile = new ZipFile(tempFile.toFile())) {
+            assertEquals(aip.getZipEntries().size(), zipFile.size());
+            final var submission = zipFile.getEntry(aip.getId() + "/submission/uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip");
+            try (final var in = zipFile.getInputStream(submission)) {
+                assertArrayEquals(Files.readAllBytes(sampleSip), in.readAllBytes());
+            }
+        }
+        // Stops right after every file of the AIP has been journaled, the retry builds the AIP again and keeps
+        // the entries whose files have not changed
+        final var interrupted = jobDirectory.resolveSibling(jobDirectory.getFileName() + "-interrupted");
+        final var journaling = new ConversionListener() {
+            @Override
+            public void stageCompleted(final Path input, final StageMetrics metrics) {
+                if (metrics.stage() == Stage.ZIP) {
+                    try (final var paths = Files.walk(jobDirectory)) {
+                        for (final var path : paths.toList()) {
+                            final var copy = interrupted.resolve(jobDirectory.relativize(path).toString());
+                            if (Files.isDirectory(path)) {
+                                Files.createDirectories(copy);
+                            } else {
+                                Files.copy(path, copy);
+                            }
+                        }
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        };
+        final var config = ConverterConfig.DEFAULT.withJournalInterval(0).withValidation(true);
+        new SIPToAIPConverter(CompressionPolicy.DEFAULT, journaling, List.of("SHA-256"), config).convertResumable(sampleSip, tempFile, jobDirectory);
+        Files.move(interrupted, jobDirectory);
+        final var reports = new ArrayList<ValidationReport>();
+        final var validating = new ConversionListener() {
+            @Override
+            public void validated(final Path input, final ValidationReport report) {
+                reports.add(report);
+            }
+        };
+        final var resumed = new SIPToAIPConverter(CompressionPolicy.DEFAULT, validating, List.of("SHA-256"), config).convertResumable(sampleSip, tempFile, jobDirectory);
+        assertEquals(1, reports.size());
+        assertTrue(reports.get(0).valid(), reports.get(0)::toJson);
+        try (final var zipFile = new ZipFile(tempFile.toFile())) {
+            assertEquals(resumed.getZipEntries().size(), zipFile.size());
+        }
+    }
+
+    @Test
+    void testConvertWithValidation() throws IOException {
+        final var tempFile = temp.resolve("aip.zip");
+        final var sampleSip = sampleSip();
+        final var reports = new ArrayList<ValidationReport>();
+        final var listener = new ConversionListener() {
+            @Override
+            public void validated(final Path input, final ValidationReport report) {
+                reports.add(report);
+            }
+        };
+        final var config = ConverterConfig.DEFAULT.withValidation(true);
+        new SIPToAIPConverter(CompressionPolicy.DEFAULT, listener, List.of("SHA-256"), config).convert(sampleSip, tempFile);
+        assertEquals(1, reports.size());
+        final var report = reports.get(0);
+        assertTrue(report.valid(), report::toJson);
+        assertEquals(ValidationReport.Outcome.PASSED, report.requirement("CSIP71").outcome());
+        assertEquals(ValidationReport.Outcome.PASSED, report.requirement("CSIP109").outcome());
+        assertTrue(report.toJson().contains("\"result\" : \"VALID\""));
+        new SIPToAIPConverter(CompressionPolicy.DEFAULT, listener).convert(sampleSip, tempFile);
+        assertEquals(1, reports.size());
+    }
+
+    @Test
+    void testUpdate() throws IOException {
+        final var tempFile = temp.resolve("aip.zip");
+        final var updatedFile = temp.resolve("updated-aip.zip");
+        final var deltaSip = temp.resolve("delta-sip.zip");
+        final var sampleSip = sampleSip();
+        // The delta SIP is the sample with another id
+        final var deltaId = "uuid-" + UUID.randomUUID();
+        try (final var zipFile = new ZipFile(sampleSip.toFile()); final var zs = new ZipOutputStream(Files.newOutputStream(deltaSip))) {
+            for (final var entry : zipFile.stream().toList()) {
+                zs.putNextEntry(new ZipEntry(entry.getName().replace(SAMPLE_ID, deltaId)));
+                try (final var in = zipFile.getInputStream(entry)) {
+                    final var bytes = in.readAllBytes();
+                    zs.write(entry.getName().equals(SAMPLE_ID + "/METS.xml") ? new String(bytes, StandardCharsets.UTF_8).replace(SAMPLE_ID, deltaId).getBytes(StandardCharsets.UTF_8) : bytes);
+                }
+                zs.closeEntry();
+            }
+        }
+        final var sipToAIPConverter = new SIPToAIPConverter();
+        final var aip = sipToAIPConverter.convert(sampleSip, tempFile);
+        final var updated = sipToAIPConverter.update(tempFile, deltaSip, updatedFile);
+        assertEquals(aip.getId(), updated.getId());
+        try (final var original = new ZipFile(tempFile.toFile()); final var zipFile = new ZipFile(updatedFile.toFile())) {
+            final var name = aip.getId() + "/submission/" + SAMPLE_ID + ".zip";
+            final var before = original.getEntry(name);
+            final var after = zipFile.getEntry(name);
+            assertEquals(before.getCrc(), after.getCrc());
+            assertEquals(before.getCompressedSize(), after.getCompressedSize());
+            assertEquals(before.getMethod(), after.getMethod());
+            try (final var in = zipFile.getInputStream(after)) {
+                assertArrayEquals(Files.readAllBytes(sampleSip), in.readAllBytes());
+            }
+            final var delta = zipFile.getEntry(aip.getId() + "/submission/" + deltaId + ".zip");
+            assertEquals(Files.size(deltaSip), delta.getSize());
+            try (final var in = zipFile.getInputStream(zipFile.getEntry(aip.getId() + "/METS.xml"))) {
+                final var mets = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(mets.contains("submission/" + SAMPLE_ID + ".zip"));
+                assertTrue(mets.contains("submission/" + deltaId + ".zip"));
+            }
+            try (final var in = zipFile.getInputStream(zipFile.getEntry(aip.getId() + "/metadata/preservation/premis.xml"))) {
+                final var premis = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(premis.contains("submission/" + SAMPLE_ID + ".zip"));
+                assertTrue(premis.contains("submission/" + deltaId + ".zip"));
+            }
+        }
+        // A submission can't be added twice
+        assertThrows(IllegalArgumentException.class, () -> sipToAIPConverter.update(updatedFile, deltaSip, tempFile));
+    }
+
+    @Test
+    void testConvertSegmented() throws IOException, InterruptedException {
+        final var outputs = Files.createDirectory(temp.resolve("segments"));
+        final var sampleSip = sampleSip();
+        final var sipToAIPConverter = new SIPToAIPConverter();
+        final var plan = sipToAIPConverter.planSegments(sampleSip, 1024);
+        assertEquals(plan, sipToAIPConverter.planSegments(sampleSip, 1024, plan.parentId()));
+        assertEquals(1, plan.segments().size());
+        assertEquals(List.of("representations/rep1/METS.xml", "representations/rep1/data/example.txt"), plan.segments().get(0).files());
+        final var childId = plan.segments().get(0).id();
+        final var aips = sipToAIPConverter.convertSegmented(sampleSip, plan, 2, OutputSink.directory(outputs));
+        assertEquals(List.of(plan.parentId(), childId), aips.stream().map(AIP::getId).toList());
+        try (final var parent = new ZipFile(outputs.resolve(plan.parentId() + ".zip").toFile()); final var child = new ZipFile(outputs.resolve(childId + ".zip").toFile())) {
+            try (final var in = parent.getInputStream(parent.getEntry(plan.parentId() + "/METS.xml"))) {
+                assertTrue(new String(in.readAllBytes(), StandardCharsets.UTF_8).contains("../" + childId + "/METS.xml"));
+            }
+            try (final var in = child.getInputStream(child.getEntry(childId + "/METS.xml"))) {
+                assertTrue(new String(in.readAllBytes(), StandardCharsets.UTF_8).contains("../" + plan.parentId() + "/METS.xml"));
+            }
+            assertTrue(parent.stream().anyMatch(entry -> entry.getName().endsWith("/metadata/descriptive/DC.xml")));
+            final var submission = temp.resolve("submission.zip");
+            try (final var in = child.getInputStream(child.getEntry(childId + "/submission/" + SAMPLE_ID + "-1.zip"))) {
+                Files.copy(in, submission, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (final var zipFile = new ZipFile(submission.toFile())) {
+                assertEquals(List.of(SAMPLE_ID + "/representations/rep1/METS.xml", SAMPLE_ID + "/representations/rep1/data/example.txt"), zipFile.stream().map(ZipEntry::getName).toList());
+            }
+        }
+        // A single segment can be converted again on its own
+        Files.delete(outputs.resolve(childId + ".zip"));
+        assertEquals(childId, sipToAIPConverter.convertSegment(sampleSip, plan, 1, OutputSink.directory(outputs)).getId());
+        assertTrue(Files.exists(outputs.resolve(childId + ".zip")));
+    }
+
+    @Test
+    void testConvertToSink() throws IOException {
+        final var sampleSip = sampleSip();
+        final var sipToAIPConverter = new SIPToAIPConverter();
+        final var memory = OutputSink.memory();
+        final var aip = sipToAIPConverter.convert(sampleSip, memory);
+        assertEquals(Set.of("uuid-B3E228EE-B429-45D8-B814-5F567B1A8754"), memory.names());
+        try (final var in = new ZipInputStream(new ByteArrayInputStream(memory.get("uuid-B3E228EE-B429-45D8-B814-5F567B1A8754")))) {
+            assertEquals(aip.getId() + "/submission/uuid-B3E228EE-B429-45D8-B814-5F567B1A8754.zip", in.getNextEntry().getName());
+        }
+        // A failed conversion leaves nothing behind
+        assertThrows(RuntimeException.class, () -> sipToAIPConverter.convert(Path.of("missing.zip"), memory));
+        assertEquals(Set.of("uuid-B3E228EE-B429-45D8-B814-5F567B1A8754"), memory.names());
+    }
+
+
 }
\ No newline at end of file